@@ -43,7 +43,11 @@ public class Aggregate extends Operator {
         gFieldIndex = gfield;
         op = aop;
         aggregateIt = null;
+        aggregator = newAggregator();
+    }
 
+    /** @return an empty aggregator for the type of the aggregate field */
+    private Aggregator newAggregator() {
         Type groupByType;
         if (gFieldIndex == Aggregator.NO_GROUPING){
             groupByType = null;
@@ -52,13 +56,10 @@ public class Aggregate extends Operator {
             groupByType = childIt.getTupleDesc().getFieldType(gFieldIndex);
         }
         Type aggregateType = childIt.getTupleDesc().getFieldType(aFieldIndex);
-        if (aggregateType == Type.INT_TYPE){
-            aggregator = new IntegerAggregator(gFieldIndex,groupByType,aFieldIndex,op);
-        }
         if (aggregateType == Type.STRING_TYPE){
-            aggregator = new StringAggregator(gFieldIndex,groupByType,aFieldIndex,op);
+            return new StringAggregator(gFieldIndex,groupByType,aFieldIndex,op);
         }
-
+        return new IntegerAggregator(gFieldIndex,groupByType,aFieldIndex,op);
     }
 
     /**
@@ -114,6 +115,9 @@ public class Aggregate extends Operator {
 	    TransactionAbortedException {
         super.open();
         childIt.open();
+        // start from no groups, as the aggregate may be opened again
+        if (aggregateIt != null)
+            aggregator = newAggregator();
         while(childIt.hasNext()){
             aggregator.mergeTupleIntoGroup(childIt.next());
         }
@@ -163,13 +167,12 @@ public class Aggregate extends Operator {
 
     @Override
     public DbIterator[] getChildren() {
-	// some code goes here
-	return new DbIterator[] {aggregateIt};
+	return new DbIterator[] {childIt};
     }
 
     @Override
     public void setChildren(DbIterator[] children) {
-	    aggregateIt = children[0];
+	    childIt = children[0];
     }
 
 }
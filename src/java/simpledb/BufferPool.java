@@ -5,6 +5,8 @@ import java.io.*;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -13,7 +15,13 @@ import java.util.concurrent.ConcurrentHashMap;
  * <p>
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
- * locks to read/write the page.
+ * locks to read/write the page. A page is also latched while it is changed
+ * and the change is logged, and while it is written to disk, so that it is
+ * never written with a change whose log record may not be on disk, nor
+ * marked clean after a change that was not written. Read-only transactions
+ * take no locks: they
+ * read the versions of tuples of a {@link Snapshot} instead (see {@link
+ * VersionManager}).
  * 
  * @Threadsafe, all fields are final
  */
@@ -28,11 +36,33 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    /** TODO for Lab 4: create your private Lock Manager class. 
-	Be sure to instantiate it in the constructor. */
+    /** The page locks of transactions */
+    private final LockManager lockManager;
+    /** The commit sequence numbers and the snapshots of transactions */
+    private final VersionManager versions;
 
     public int maxPages;
-    public HashMap<PageId,Page> pool;
+    /** Concurrent, so that pages can be looked up by background threads */
+    public ConcurrentMap<PageId,Page> pool;
+    /** The end of the last log record of each dirty page, which must be on
+        disk before the page is written (write-ahead logging) */
+    private final ConcurrentHashMap<PageId,Long> pageLSNs = new ConcurrentHashMap<PageId,Long>();
+    /** The dirty page table: the offset of the first log record of each
+        page that was updated since the page was last written (its recLSN) */
+    private final ConcurrentHashMap<PageId,Long> recLSNs = new ConcurrentHashMap<PageId,Long>();
+
+    /** How long, in milliseconds, the page writer waits for pages to write
+        before it exits */
+    static final long PAGE_WRITER_IDLE_TIME = 1000;
+
+    /** The pages latched by the insert or delete the current thread is
+        making, or null if it is not making one */
+    private final ThreadLocal<List<ReentrantLock>> updateLatches =
+            new ThreadLocal<List<ReentrantLock>>();
+
+    /** Pages waiting for the page writer, protected by itself */
+    private final LinkedHashSet<PageId> writeQueue = new LinkedHashSet<PageId>();
+    private Thread pageWriter = null; // protected by writeQueue
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -40,8 +70,10 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-        pool = new HashMap<PageId, Page>();
+        pool = new ConcurrentHashMap<PageId, Page>();
         maxPages = numPages;
+        lockManager = new LockManager();
+        versions = new VersionManager(this);
     }
     
     public static int getPageSize() {
@@ -68,22 +100,69 @@ public class BufferPool {
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
-     * @param perm the requested permissions on the page
+     * @param perm the requested permissions on the page; null is READ_ONLY
+     * @throws TransactionAbortedException if waiting for the lock would
+     *         deadlock, and the transaction was chosen to abort
+     * @throws DbException if a read-only transaction asks for READ_WRITE
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
 
+        if (versions.getSnapshot(tid) == null)
+            lockManager.acquire(tid, pid, perm == null ? Permissions.READ_ONLY : perm);
+        else if (perm == Permissions.READ_WRITE)
+            throw new DbException("transaction " + tid.getId() + " is read-only");
         Page p = pool.get(pid);
         if (p==null){
             p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
             if (pool.size()>maxPages){
                 evictPage();
             }
-            pool.put(pid,p);
+            if (p != null)
+                p = versions.load(p);
+        }
+        // latched last, so that an update holds no latch while evicting
+        List<ReentrantLock> latched = updateLatches.get();
+        ReentrantLock latch = latchOf(p);
+        if (perm == Permissions.READ_WRITE && latched != null && latch != null
+                && !latch.isHeldByCurrentThread()) {
+            latch.lock();
+            latched.add(latch);
         }
         return p;
     }
 
+    /** @return the latch of a page, or null if it has none */
+    private static ReentrantLock latchOf(Page p) {
+        return p instanceof HeapPage ? ((HeapPage) p).latch : null;
+    }
+
+    /** Start an insert or delete of the current thread: the pages it gets
+        with READ_WRITE stay latched until endUpdate() */
+    private void beginUpdate() {
+        updateLatches.set(new ArrayList<ReentrantLock>());
+    }
+
+    /** Release the latches of the update of the current thread */
+    private void endUpdate() {
+        List<ReentrantLock> latched = updateLatches.get();
+        updateLatches.remove();
+        for (ReentrantLock latch : latched)
+            latch.unlock();
+    }
+
+    /**
+     * Returns the cached copy of a page, without locking it or reading it
+     * from disk. Used to scan tables for statistics in the background; the
+     * page may be modified while it is read.
+     *
+     * @param pid the ID of the requested page
+     * @return the page, or null if it is not in the buffer pool
+     */
+    Page getCachedPage(PageId pid) {
+        return pool.get(pid);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -94,8 +173,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public  void releasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -104,28 +182,67 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction.  The changes of an aborted transaction are rolled
+     * back by the log (see {@link Transaction#abort}) before its locks are
+     * released here.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        if (versions.getSnapshot(tid) != null) {
+            versions.releaseSnapshot(tid);
+            return;
+        }
+        // numbered before the locks are released, so that no snapshot
+        // sees the changes of a later transaction without this one
+        if (commit)
+            versions.committed(tid);
+        Database.getCatalog().transactionComplete(tid);
+        lockManager.releaseAll(tid);
+    }
+
+    /**
+     * Take the snapshot read by a read-only transaction, which then reads
+     * tuple versions without locks, and may not write.
+     *
+     * @param tid the ID of the read-only transaction
+     */
+    Snapshot takeSnapshot(TransactionId tid) {
+        return versions.takeSnapshot(tid);
+    }
+
+    /** @return the snapshot of a read-only transaction, or null if the
+        transaction locks the pages it reads */
+    Snapshot getSnapshot(TransactionId tid) {
+        return versions.getSnapshot(tid);
+    }
+
+    /**
+     * Reclaim the tuple versions no snapshot needs any more. This is done
+     * in the background by a vacuum thread after transactions complete.
+     *
+     * @return the number of versions reclaimed
+     */
+    public int vacuum() {
+        return versions.vacuum();
+    }
+
+    /** @return the number of deadlocks found, each of which aborted a
+        transaction */
+    public long getDeadlockCount() {
+        return lockManager.getDeadlockCount();
     }
 
     /**
@@ -145,11 +262,22 @@ public class BufferPool {
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
         DbFile dbf = Database.getCatalog().getDatabaseFile(tableId);
-        ArrayList<Page> modified = dbf.insertTuple(tid, t);
-        for (Page p : modified){
-            p.markDirty(true,tid);
-            pool.put(p.getId(),p);
+        beginUpdate();
+        try {
+            ArrayList<Page> modified = dbf.insertTuple(tid, t);
+            LogFile log = Database.getLogFile();
+            for (Page p : modified){
+                noteDirty(p.getId(), log.logEnd());
+            }
+            long lsn = log.logInsert(tid, t);
+            for (Page p : modified){
+                noteUpdate(tid, p, lsn);
+            }
+        } finally {
+            endUpdate();
         }
+        Database.getCatalog().noteModification(tableId, tid);
+        TableStats.tupleInserted(tableId, t);
     }
 
     /**
@@ -167,13 +295,143 @@ public class BufferPool {
     public void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
             DbFile dbf = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-            ArrayList<Page> modified = dbf.deleteTuple(tid, t);
-            for (Page p : modified){
-                p.markDirty(true,tid);
-                pool.put(p.getId(),p);
+            beginUpdate();
+            try {
+                ArrayList<Page> modified = dbf.deleteTuple(tid, t);
+                LogFile log = Database.getLogFile();
+                for (Page p : modified){
+                    noteDirty(p.getId(), log.logEnd());
+                }
+                long lsn = log.logDelete(tid, t);
+                for (Page p : modified){
+                    noteUpdate(tid, p, lsn);
+                }
+            } finally {
+                endUpdate();
             }
+            Database.getCatalog().noteModification(dbf.getId(), tid);
+            TableStats.tupleDeleted(dbf.getId(), t);
         }
 
+    /**
+     * Undo the change of a slot by a transaction that rolls back, putting
+     * before back into the slot, and log the undo. The page is latched
+     * like that of an insert or delete.
+     *
+     * @param tid the transaction that rolls back
+     * @param pid the page of the slot
+     * @param slot the slot
+     * @param before the tuple of the slot before the change, or null
+     * @param after the tuple of the slot after the change, or null
+     */
+    void undoSlot(TransactionId tid, HeapPageId pid, int slot, Tuple before, Tuple after)
+        throws DbException, IOException, TransactionAbortedException {
+        beginUpdate();
+        try {
+            HeapPage page = (HeapPage) getPage(tid, pid, Permissions.READ_WRITE);
+            page.undoSlot(slot, before, tid);
+            LogFile log = Database.getLogFile();
+            noteDirty(pid, log.logEnd());
+            long lsn = log.logSlotUpdate(tid, pid, slot, after, before);
+            noteUpdate(tid, page, lsn);
+        } finally {
+            endUpdate();
+        }
+        Database.getCatalog().noteModification(pid.getTableId(), tid);
+        if (after != null)
+            TableStats.tupleDeleted(pid.getTableId(), after);
+        if (before != null)
+            TableStats.tupleInserted(pid.getTableId(), before);
+    }
+
+
+    /**
+     * Record that a page was updated by the specified transaction, whose
+     * last log record for the page ends at lsn: marks the page dirty, and
+     * makes sure it is not written before the log is forced up to lsn.
+     */
+    void noteUpdate(TransactionId tid, Page p, long lsn) {
+        p.markDirty(true, tid);
+        pool.put(p.getId(), p);
+        pageLSNs.put(p.getId(), lsn);
+    }
+
+    /**
+     * Record that a page is about to be updated by a log record that starts
+     * at or after offset first, the end of the log before the record is
+     * appended. This must be called before the record is appended, so that
+     * a checkpoint that does not find the page in the dirty page table
+     * comes before the record in the log.
+     */
+    void noteDirty(PageId pid, long first) {
+        recLSNs.putIfAbsent(pid, first);
+    }
+
+    /**
+     * Returns a copy of the dirty page table, the recLSN of every page that
+     * was updated since it was last written. Does not lock the buffer pool,
+     * so that checkpoints do not wait for it.
+     */
+    public Map<PageId,Long> dirtyPages() {
+        return new HashMap<PageId,Long>(recLSNs);
+    }
+
+    /**
+     * Write the specified pages to disk in the background, one at a time,
+     * so that transactions can use the buffer pool between the writes. The
+     * pages are written by a page writer thread, which is started if it is
+     * not running, and exits after PAGE_WRITER_IDLE_TIME without pages to
+     * write.
+     *
+     * @param pids the ids of the pages to write
+     */
+    public void writeBehind(Collection<PageId> pids) {
+        synchronized (writeQueue) {
+            writeQueue.addAll(pids);
+            if (pageWriter == null && !writeQueue.isEmpty()) {
+                pageWriter = new Thread(new Runnable() {
+                        public void run() {
+                            writeLoop();
+                        }
+                    }, "SimpleDb page writer");
+                pageWriter.setDaemon(true);
+                pageWriter.start();
+            }
+            writeQueue.notifyAll();
+        }
+    }
+
+    /** The body of the page writer thread */
+    private void writeLoop() {
+        while (true) {
+            PageId pid;
+            synchronized (writeQueue) {
+                long idleSince = System.currentTimeMillis();
+                while (writeQueue.isEmpty()) {
+                    long idle = System.currentTimeMillis() - idleSince;
+                    if (idle >= PAGE_WRITER_IDLE_TIME) {
+                        pageWriter = null;
+                        return;
+                    }
+                    try {
+                        writeQueue.wait(PAGE_WRITER_IDLE_TIME - idle);
+                    } catch (InterruptedException e) {
+                        // keep writing pages
+                    }
+                }
+                Iterator<PageId> it = writeQueue.iterator();
+                pid = it.next();
+                it.remove();
+            }
+            try {
+                flushPage(pid);
+            } catch (IOException e) {
+                // the page stays in the dirty page table, and is written
+                // by a later checkpoint or eviction
+                e.printStackTrace();
+            }
+        }
+    }
 
     /**
      * Flush all dirty pages to disk.
@@ -192,8 +450,9 @@ public class BufferPool {
         cache.
     */
     public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // not necessary for labs 1--4
+        pool.remove(pid);
+        pageLSNs.remove(pid);
+        recLSNs.remove(pid);
     }
 
     /**
@@ -202,36 +461,107 @@ public class BufferPool {
      */
     private synchronized  void flushPage(PageId pid) throws IOException {
         Page flush = pool.get(pid);
-        TransactionId dirtyTid = flush.isDirty();
-        if (dirtyTid!= null){
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(flush);
-            flush.markDirty(false,dirtyTid);
+        ReentrantLock latch = flush == null ? null : latchOf(flush);
+        if (latch != null)
+            latch.lock();
+        try {
+            TransactionId dirtyTid = flush == null ? null : flush.isDirty();
+            // removed before the page is written, so that updates made while it
+            // is written enter the dirty page table again
+            Long recLSN = recLSNs.remove(pid);
+            if (dirtyTid!= null){
+                Long lsn = pageLSNs.remove(pid);
+                try {
+                    if (lsn != null)
+                        Database.getLogFile().forceTo(lsn);
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(flush);
+                } catch (IOException e) {
+                    // a later update has a larger lsn, and a larger recLSN
+                    if (lsn != null)
+                        pageLSNs.putIfAbsent(pid, lsn);
+                    if (recLSN != null)
+                        recLSNs.put(pid, recLSN);
+                    throw e;
+                }
+                flush.markDirty(false,dirtyTid);
 
+            }
+        } finally {
+            if (latch != null)
+                latch.unlock();
         }
     }
 
     /** Write all pages of the specified transaction to disk.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for labs 1--4
+        for (Page p : pool.values()) {
+            if (tid.equals(p.isDirty()))
+                flushPage(p.getId());
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Pages that hold no tuple versions are discarded first; the versions
+     * of a page are kept by the VersionManager until it is read again.
+     * Pages latched by an update are skipped, since the update may wait
+     * for the log or for this buffer pool; if every page is latched, none
+     * is discarded.
      */
     private synchronized  void evictPage() throws DbException {
 
-        List<PageId> keySet = new ArrayList<PageId>(pool.keySet());
-        int flushIndex = (int) Math.random() % keySet.size();
-        PageId flushId = keySet.get(flushIndex);
+        Page page = latchAny(evictablePages());
+        if (page == null)
+            page = latchAny(new ArrayList<PageId>(pool.keySet()));
+        if (page == null)
+            return;
+        ReentrantLock latch = latchOf(page);
         try {
-            flushPage(flushId);
-            pool.remove(flushId);
+            flushPage(page.getId());
+            // a page changed since it was read above is kept
+            if (page.isDirty() == null)
+                versions.evict(page.getId(), page);
         } catch (IOException e) {
             throw new DbException("IO exception on Eviction");
+        } finally {
+            if (latch != null)
+                latch.unlock();
+        }
+    }
+
+    /**
+     * Latch one of the specified pages that no update latched, starting
+     * from a random one.
+     *
+     * @return the latched page, or null if there is none
+     */
+    private Page latchAny(List<PageId> pids) {
+        int start = (int) (Math.random() * pids.size());
+        for (int i = 0; i < pids.size(); i++) {
+            Page p = pool.get(pids.get((start + i) % pids.size()));
+            if (p == null)
+                continue;
+            ReentrantLock latch = latchOf(p);
+            if (latch == null)
+                return p;
+            // an update of this thread holds the latch of the page it changes
+            if (!latch.isHeldByCurrentThread() && latch.tryLock())
+                return p;
+        }
+        return null;
+    }
+
+    /** @return the ids of the pages that hold no tuple versions */
+    private List<PageId> evictablePages() {
+        List<PageId> pids = new ArrayList<PageId>();
+        for (Map.Entry<PageId,Page> e : pool.entrySet()) {
+            Page p = e.getValue();
+            if (!(p instanceof HeapPage) || ((HeapPage) p).getVersionCount() == 0)
+                pids.add(e.getKey());
         }
+        return pids;
     }
 
 }
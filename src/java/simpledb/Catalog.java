@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -21,6 +22,13 @@ public class Catalog {
         public String name;
         public DbFile db;
         public String pkey;
+        /** Number of tuples inserted into or deleted from the table */
+        public final AtomicLong modCount = new AtomicLong();
+        /** The running transactions that modified the table */
+        public final Set<TransactionId> writers =
+                Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+        /** Fraction of the pages of the table read to collect statistics */
+        public volatile double sampleRate = 1.0;
 
         public Table(String name_,DbFile db_, String pkeyField_){
             name =name_;
@@ -120,6 +128,100 @@ public class Catalog {
         return t.pkey;
     }
 
+    /**
+     * Returns the modification counter of the specified table: the number of
+     * tuples inserted into or deleted from it through the BufferPool since
+     * it was added to the catalog.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public long getModCount(int tableid) {
+        Table t = ids.get(tableid);
+        if (t == null){
+            throw new NoSuchElementException();
+        }
+        return t.modCount.get();
+    }
+
+    /**
+     * Record that a tuple was inserted into or deleted from the specified
+     * table. Does nothing if the table doesn't exist.
+     */
+    public void noteModification(int tableid) {
+        Table t = ids.get(tableid);
+        if (t != null){
+            t.modCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record that a tuple was inserted into or deleted from the specified
+     * table by a running transaction, whose change is uncommitted until
+     * {@link #transactionComplete} is called. Does nothing if the table
+     * doesn't exist.
+     */
+    public void noteModification(int tableid, TransactionId tid) {
+        Table t = ids.get(tableid);
+        if (t != null){
+            t.writers.add(tid);
+            t.modCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record that a transaction committed or aborted: the tables it
+     * modified are modified once more, by the commit or the rollback.
+     */
+    public void transactionComplete(TransactionId tid) {
+        for (Table t : ids.values()) {
+            if (t.writers.remove(tid))
+                t.modCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if a running transaction modified the specified table
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public boolean hasUncommittedChanges(int tableid) {
+        Table t = ids.get(tableid);
+        if (t == null){
+            throw new NoSuchElementException();
+        }
+        return !t.writers.isEmpty();
+    }
+
+    /**
+     * Returns the fraction of the pages of the specified table that are read
+     * to collect its statistics; 1 means the whole table is scanned.
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public double getSampleRate(int tableid) {
+        Table t = ids.get(tableid);
+        if (t == null){
+            throw new NoSuchElementException();
+        }
+        return t.sampleRate;
+    }
+
+    /**
+     * Sets the fraction of the pages of the specified table that are read
+     * to collect its statistics.
+     * @param rate the fraction, in (0, 1]
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public void setSampleRate(int tableid, double rate) {
+        if (!(rate > 0 && rate <= 1)){
+            throw new IllegalArgumentException("sample rate must be in (0, 1]: " + rate);
+        }
+        Table t = ids.get(tableid);
+        if (t == null){
+            throw new NoSuchElementException();
+        }
+        t.sampleRate = rate;
+    }
+
     public Iterator<Integer> tableIdIterator() {
         return ids.keySet().iterator();
     }
@@ -132,6 +234,19 @@ public class Catalog {
         return t.name;
     }
     
+    /**
+     * Remove the table with the specified id from the catalog. Does nothing
+     * if the table doesn't exist.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public void removeTable(int tableid) {
+        Table t = ids.remove(tableid);
+        if (t != null && names.get(t.name) == t) {
+            names.remove(t.name);
+        }
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         ids.clear();
@@ -149,7 +264,7 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [slotted] [sample=rate]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -177,11 +292,43 @@ public class Catalog {
                         }
                     }
                 }
+                String tableAnnotations = line.substring(line.indexOf(")") + 1).trim();
+                boolean slotted = false;
+                double sampleRate = 1.0;
+                for (String tableAnnotation : tableAnnotations.split("\\s+")) {
+                    String a = tableAnnotation.toLowerCase();
+                    if (a.length() == 0)
+                        continue;
+                    if (a.equals("slotted"))
+                        slotted = true;
+                    else if (a.startsWith("sample=")) {
+                        try {
+                            sampleRate = Double.parseDouble(a.substring("sample=".length()));
+                        } catch (NumberFormatException ex) {
+                            sampleRate = -1;
+                        }
+                        if (!(sampleRate > 0 && sampleRate <= 1)) {
+                            System.out.println("Invalid sample rate " + tableAnnotation);
+                            System.exit(0);
+                        }
+                    } else {
+                        System.out.println("Unknown annotation " + tableAnnotation);
+                        System.exit(0);
+                    }
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, slotted);
                 addTable(tabHf,name,primaryKey);
+                try {
+                    tabHf.checkFormat();
+                } catch (IOException e) {
+                    System.out.println("Invalid data file for table " + name
+                            + (slotted ? " (slotted)" : "") + ": " + e.getMessage());
+                    System.exit(0);
+                }
+                setSampleRate(tabHf.getId(), sampleRate);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
@@ -1,8 +1,8 @@
 package simpledb;
 import java.util.Vector;
 
-/** Class returned by {@link JoinOptimizer#computeCostAndCardOfSubplan} specifying the
-    cost and cardinality of the optimal plan represented by plan.
+/** Class specifying the cost and cardinality of the optimal plan
+    represented by plan.
 */
 public class CostCard {
     /** The cost of the optimal subplan */
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -20,6 +21,12 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private final PreparedQueryCache _preparedQueryCache = new PreparedQueryCache();
+    private final QueryResultCache _queryResultCache = new QueryResultCache();
+
+    /** Shared by all Database instances, so resetting the database does not
+        leak worker threads */
+    private final static ForkJoinPool _forkJoinPool = new ForkJoinPool();
 
     private Database() {
         _catalog = new Catalog();
@@ -50,6 +57,23 @@ public class Database {
         return _instance.get()._catalog;
     }
 
+    /** Return the cache of the plans of prepared queries of the static
+        Database instance */
+    public static PreparedQueryCache getPreparedQueryCache() {
+        return _instance.get()._preparedQueryCache;
+    }
+
+    /** Return the cache of the results of queries of the static Database
+        instance */
+    public static QueryResultCache getQueryResultCache() {
+        return _instance.get()._queryResultCache;
+    }
+
+    /** Return the fork/join pool used for parallel work within a query */
+    public static ForkJoinPool getForkJoinPool() {
+        return _forkJoinPool;
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
      * return it
@@ -0,0 +1,160 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The HashEquiJoin operator implements an equality join by hashing: when
+ * opened it reads its right (inner) child once into a hash table on the join
+ * field, and then probes the table with each tuple of its left (outer)
+ * child. Unlike the nested loops of {@link Join}, the inner child is read
+ * only once, which matters when it is itself a join.
+ */
+public class HashEquiJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private DbIterator child1;
+    private DbIterator child2;
+    private DbIterator[] children;
+    private TupleDesc td;
+    /** The tuples of child2 by the value of their join field */
+    private HashMap<Object, ArrayList<Tuple>> table = new HashMap<Object, ArrayList<Tuple>>();
+    private Tuple currLeft;
+    private ArrayList<Tuple> matches;
+    private int nextMatch;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children, whose operator
+     *            must be EQUALS
+     * @param child1_
+     *            Iterator for the left(outer) relation to join
+     * @param child2_
+     *            Iterator for the right(inner) relation to join, which is
+     *            hashed
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1_, DbIterator child2_) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("HashEquiJoin only supports EQUALS predicates");
+        pred = p;
+        child1 = child1_;
+        child2 = child2_;
+        children = new DbIterator[] { child1, child2 };
+        td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return the field name of join field1, quantified by alias or table
+     *         name
+     */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    /**
+     * @return the field name of join field2, quantified by alias or table
+     *         name
+     */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the hash key of field i of t, or null if it is not set */
+    private static Object keyOf(Tuple t, int i) {
+        if (t.isInt(i))
+            return Integer.valueOf(t.getInt(i));
+        Field f = t.getField(i);
+        if (f instanceof IntField)
+            return Integer.valueOf(((IntField) f).getValue());
+        return f;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        table.clear();
+        while (child2.hasNext()) {
+            Tuple t = child2.next();
+            Object key = keyOf(t, pred.getField2());
+            if (key == null)
+                continue; // matches nothing
+            ArrayList<Tuple> tuples = table.get(key);
+            if (tuples == null) {
+                tuples = new ArrayList<Tuple>(1);
+                table.put(key, tuples);
+            }
+            tuples.add(t);
+        }
+        currLeft = null;
+        matches = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        child2.close();
+        table.clear();
+        currLeft = null;
+        matches = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // the hash table of child2 is kept
+        child1.rewind();
+        currLeft = null;
+        matches = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of the next tuple of the left child
+     * with a matching tuple of the right child, as returned by
+     * {@link Join}.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (matches == null || nextMatch == matches.size()) {
+            if (!child1.hasNext())
+                return null;
+            currLeft = child1.next();
+            Object key = keyOf(currLeft, pred.getField1());
+            matches = key == null ? null : table.get(key);
+            nextMatch = 0;
+        }
+        Tuple right = matches.get(nextMatch++);
+        Tuple output = new Tuple(td);
+        int n1 = currLeft.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            output.copyField(i, currLeft, i);
+        for (int i = 0; i < right.getTupleDesc().numFields(); i++)
+            output.copyField(n1 + i, right, i);
+        return output;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return children;
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children_) {
+        children = children_;
+        child1 = children_[0];
+        child2 = children_[1];
+    }
+
+}
@@ -10,6 +10,9 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * A slotted heap file stores its tuples on {@link SlottedHeapPage}s instead,
+ * whose variable-length records make tables of short strings much smaller.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -19,6 +22,8 @@ public class HeapFile implements DbFile {
     File file;
     TupleDesc tupleDesc;
     int maxPageNo;
+    final boolean slotted;
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -27,11 +32,62 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param slotted
+     *            true if the pages of the file are {@link SlottedHeapPage}s
+     */
+    public HeapFile(File f, TupleDesc td, boolean slotted) {
         file = f;
         tupleDesc = td;
+        this.slotted = slotted;
         this.maxPageNo = (int) f.length() / BufferPool.getPageSize() - 1;
     }
 
+    /**
+     * @return true if the pages of this file are {@link SlottedHeapPage}s
+     */
+    public boolean isSlotted() {
+        return slotted;
+    }
+
+    /**
+     * Create a page of the format of this file from data.
+     */
+    HeapPage createPage(HeapPageId pid, byte[] data) throws IOException {
+        if (slotted)
+            return new SlottedHeapPage(pid, data);
+        return new HeapPage(pid, data);
+    }
+
+    /**
+     * Check that the first page of this file is in the format of this file,
+     * so that a file written in the fixed format but opened as slotted is
+     * rejected when its table is loaded rather than failing to parse later.
+     * The table must be in the catalog.
+     *
+     * @throws IOException if the page cannot be read or parsed
+     */
+    public void checkFormat() throws IOException {
+        if (file.length() == 0)
+            return;
+        byte[] data = new byte[BufferPool.getPageSize()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(data, 0, (int) Math.min(data.length, file.length()));
+        } finally {
+            raf.close();
+        }
+        createPage(new HeapPageId(getId(), 0), data);
+    }
+
     /**
      * Returns the File backing this HeapFile on disk.
      * 
@@ -72,7 +128,7 @@ public class HeapFile implements DbFile {
             read.seek(offset);
             read.read(content,0, BufferPool.getPageSize());
             read.close();
-            return new HeapPage((HeapPageId)pid,content);
+            return createPage((HeapPageId)pid,content);
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         } catch (IOException e) {
@@ -93,18 +149,45 @@ public class HeapFile implements DbFile {
     }
 
     public HeapPage getOpenPage(TransactionId tid) throws TransactionAbortedException, DbException {
+        return getOpenPage(tid, null);
+    }
+
+    /**
+     * Returns a page of this file with room for t (or with an empty slot if
+     * t is null), or null if there is none.
+     */
+    public HeapPage getOpenPage(TransactionId tid, Tuple t) throws TransactionAbortedException, DbException {
         PageId pid;
         HeapPage hPage;
+        BufferPool bp = Database.getBufferPool();
         for (int i = 0; i < numPages(); i++) {
             pid = new HeapPageId(getId(),i);
-            hPage = (HeapPage) Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
-            if (hPage.getNumEmptySlots()>0){
-                return hPage;
+            // look for room with a shared lock, and only lock the page
+            // that is used exclusively
+            boolean held = bp.holdsLock(tid, pid);
+            hPage = (HeapPage) bp.getPage(tid,pid,Permissions.READ_ONLY);
+            if (hasRoom(hPage, t)){
+                // the shared lock is released first rather than upgraded,
+                // since two inserters that both upgrade deadlock
+                if (!held)
+                    bp.releasePage(tid, pid);
+                hPage = (HeapPage) bp.getPage(tid,pid,Permissions.READ_WRITE);
+                // another inserter may have filled it meanwhile
+                if (hasRoom(hPage, t))
+                    return hPage;
             }
+            // nothing was read from a full page, so its lock can go
+            if (!held)
+                bp.releasePage(tid, pid);
         }
         return null;
     }
 
+    /** @return true if page has room for t, or an empty slot if t is null */
+    private static boolean hasRoom(HeapPage page, Tuple t) {
+        return t == null ? page.getNumEmptySlots()>0 : page.hasRoomFor(t);
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -118,25 +201,45 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        HeapPage insertPage = getOpenPage(tid);
-        if (insertPage!= null){
-            insertPage.insertTuple(t);
-        }
-        else{
-            HeapPageId id = new HeapPageId(getId(),numPages());
-            insertPage = new HeapPage(id,HeapPage.createEmptyPageData());
-            insertPage.insertTuple(t);
-            writePage(insertPage);
+        HeapPage insertPage = getOpenPage(tid, t);
+        while (insertPage == null){
+            // extend the file with an empty page, and insert into the
+            // buffer pool's copy of it, so that the tuple is only written
+            // to disk after it is logged
+            HeapPageId id = appendPage();
+            BufferPool bp = Database.getBufferPool();
+            boolean held = bp.holdsLock(tid, id);
+            insertPage = (HeapPage) bp.getPage(tid,id,Permissions.READ_WRITE);
+            // another inserter may have filled it before it was locked
+            if (!hasRoom(insertPage, t)){
+                if (!held)
+                    bp.releasePage(tid, id);
+                insertPage = null;
+            }
         }
+        insertPage.insertTuple(t, tid);
         return new ArrayList<Page>(Arrays.asList(insertPage));
     }
 
+    /**
+     * Extend the file with an empty page. Synchronized, so that two
+     * transactions extending the file at once append two pages, rather
+     * than both writing the same one over a page the other may have used.
+     *
+     * @return the id of the new page
+     */
+    private synchronized HeapPageId appendPage() throws IOException {
+        HeapPageId id = new HeapPageId(getId(),numPages());
+        writePage(createPage(id,HeapPage.createEmptyPageData()));
+        return id;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         PageId pid = t.getRecordId().getPageId();
         HeapPage deletePage = (HeapPage) Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
-        deletePage.deleteTuple(t);
+        deletePage.deleteTuple(t, tid);
         return new ArrayList<Page>(Arrays.asList(deletePage));
     }
 
@@ -150,6 +253,7 @@ public class HeapFile implements DbFile {
             private PageId pID = null;
             private Iterator<Tuple> tupleIt = null;
             private TransactionId tID = null;
+            private Snapshot snapshot = null;
             private HeapFile hFile;
 
             // Method for setting the transaction id of the iterator.
@@ -162,9 +266,17 @@ public class HeapFile implements DbFile {
             public void open() throws DbException, TransactionAbortedException {
                 // Initialize the state.
                 int tableId = HeapFile.this.getId();
+                snapshot = Database.getBufferPool().getSnapshot(tID);
                 pID = new HeapPageId(tableId, curPage);
-                page = Database.getBufferPool().getPage(tID, pID, null);
-                tupleIt = ((HeapPage) page).iterator();
+                page = Database.getBufferPool().getPage(tID, pID, Permissions.READ_ONLY);
+                tupleIt = tuples(page);
+            }
+
+            // A read-only transaction only sees the versions of its snapshot.
+            private Iterator<Tuple> tuples(Page page) {
+                if (snapshot == null)
+                    return ((HeapPage) page).iterator();
+                return ((HeapPage) page).visibleTuples(snapshot).iterator();
             }
 
             @Override
@@ -178,8 +290,8 @@ public class HeapFile implements DbFile {
                             int tableId = HeapFile.this.getId();
                             curPage++;
                             pID = new HeapPageId(tableId, curPage);
-                            page = Database.getBufferPool().getPage(tID, pID, null);
-                            tupleIt = ((HeapPage) page).iterator();
+                            page = Database.getBufferPool().getPage(tID, pID, Permissions.READ_ONLY);
+                            tupleIt = tuples(page);
                             return hasNext();
                         }
                     }
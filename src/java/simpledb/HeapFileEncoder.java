@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.regex.Pattern;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -66,6 +67,99 @@ public class HeapFileEncoder {
       convert(inFile,outFile,npagebytes,numFields,typeAr,',');
   }
 
+   /** Convert the specified input text file into a binary page file, in the
+    * format of {@link SlottedHeapPage} if slotted is true, and in that of
+    * HeapPage otherwise.
+    *
+    * @see #convert(File, File, int, int, Type[], char)
+    * @param slotted true to write the pages of a slotted HeapFile
+    * @throws IOException if the input/output file can't be opened or a
+    *   tuple does not fit on a page
+    */
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator, boolean slotted)
+      throws IOException {
+      if (!slotted) {
+          convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator);
+          return;
+      }
+      if (npagebytes > 65536)
+          throw new IOException("slotted pages must be at most 65536 bytes");
+
+      // as in SlottedHeapPage: a 2-byte directory entry count, 4-byte
+      // directory entries, and the records packed against the end of the
+      // page, the record of the first slot last
+      int minrecbytes = 0;
+      for (int i = 0; i < numFields; i++)
+          minrecbytes += typeAr[i] == Type.INT_TYPE ? 4 : 2;
+      int maxslots = (npagebytes - SlottedHeapPage.HEADER_BYTES)
+          / (SlottedHeapPage.SLOT_BYTES + minrecbytes);
+
+      BufferedReader br = new BufferedReader(new FileReader(inFile));
+      FileOutputStream os = new FileOutputStream(outFile);
+      byte[] page = new byte[npagebytes];
+      int nslots = 0;
+      int end = npagebytes;
+      int npages = 0;
+      try {
+          String line;
+          while ((line = br.readLine()) != null) {
+              if (line.trim().length() == 0)
+                  continue;
+              ByteArrayOutputStream recBAOS = new ByteArrayOutputStream();
+              DataOutputStream recStream = new DataOutputStream(recBAOS);
+              String[] fields = line.split(Pattern.quote(String.valueOf(fieldSeparator)), -1);
+              try {
+                  for (int i = 0; i < numFields; i++) {
+                      String f = fields[i].trim();
+                      if (typeAr[i] == Type.INT_TYPE) {
+                          recStream.writeInt(Integer.parseInt(f));
+                      } else {
+                          if (f.length() > Type.STRING_LEN)
+                              f = f.substring(0, Type.STRING_LEN);
+                          recStream.writeShort(f.length());
+                          recStream.writeBytes(f);
+                      }
+                  }
+              } catch (RuntimeException e) {
+                  System.out.println ("BAD LINE : " + line);
+                  continue;
+              }
+              byte[] rec = recBAOS.toByteArray();
+
+              int dirend = SlottedHeapPage.HEADER_BYTES + (nslots + 1) * SlottedHeapPage.SLOT_BYTES;
+              if (nslots == maxslots || end - rec.length < dirend) {
+                  os.write(page);
+                  npages++;
+                  page = new byte[npagebytes];
+                  nslots = 0;
+                  end = npagebytes;
+                  dirend = SlottedHeapPage.HEADER_BYTES + SlottedHeapPage.SLOT_BYTES;
+                  if (end - rec.length < dirend)
+                      throw new IOException("tuple does not fit on a page: " + line);
+              }
+              end -= rec.length;
+              System.arraycopy(rec, 0, page, end, rec.length);
+              writeShort(page, SlottedHeapPage.HEADER_BYTES + nslots * SlottedHeapPage.SLOT_BYTES, end);
+              writeShort(page, SlottedHeapPage.HEADER_BYTES + nslots * SlottedHeapPage.SLOT_BYTES + 2, rec.length);
+              nslots++;
+              writeShort(page, 0, nslots);
+          }
+          // flush the last page if it has records, or an empty page if the
+          // file is empty
+          if (nslots > 0 || npages == 0)
+              os.write(page);
+      } finally {
+          br.close();
+          os.close();
+      }
+  }
+
+  private static void writeShort(byte[] data, int offset, int v) {
+      data[offset] = (byte) (v >>> 8);
+      data[offset + 1] = (byte) v;
+  }
+
    /** Convert the specified input text file into a binary
     * page file. <br>
     * Assume format of the input file is (note that only integer fields are
@@ -2,10 +2,23 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * In memory, the tuples of a page are versions for the {@link Snapshot}s
+ * of read-only transactions: a tuple inserted with {@link
+ * #insertTuple(Tuple, TransactionId)} is stamped with the transaction that
+ * created it (its xmin), and a tuple deleted with {@link
+ * #deleteTuple(Tuple, TransactionId)} leaves its slot but is kept as a dead
+ * version, stamped with the transaction that deleted it (its xmax), until
+ * no snapshot can see it, when it is {@link #vacuum vacuumed}. The stamps
+ * are not part of the page data on disk: when a page is evicted, the
+ * {@link VersionManager} keeps a copy of its {@link Versions}, and gives
+ * them back to the page when it is read again. These methods synchronize
+ * on the page, so that a snapshot reads it without a lock.
  *
  * @see HeapFile
  * @see BufferPool
@@ -24,6 +37,60 @@ public class HeapPage implements Page {
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
+    /** The latch of this page, held by the BufferPool while the page is
+        changed and its change logged, and while it is written to disk */
+    final ReentrantLock latch = new ReentrantLock();
+
+    /** A tuple deleted from this page that a snapshot may still see */
+    private static class Version {
+        final int slot;
+        final Tuple tuple;
+        TransactionId xmin;
+        final TransactionId xmax;
+
+        Version(int slot, Tuple tuple, TransactionId xmin, TransactionId xmax) {
+            this.slot = slot;
+            this.tuple = tuple;
+            this.xmin = xmin;
+            this.xmax = xmax;
+        }
+    }
+
+    /**
+     * The versions of an evicted page: the slots stamped by each creator,
+     * and the dead versions.
+     */
+    static class Versions {
+        final HashMap<TransactionId, BitSet> xmins = new HashMap<TransactionId, BitSet>();
+        final ArrayList<Version> dead = new ArrayList<Version>();
+
+        /** Reclaim the versions that every snapshot sees the same way as
+            oldest, as {@link HeapPage#vacuum} does
+            @return the number of versions reclaimed */
+        int vacuum(Snapshot oldest) {
+            int reclaimed = 0;
+            for (Iterator<Map.Entry<TransactionId, BitSet>> it = xmins.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<TransactionId, BitSet> e = it.next();
+                if (oldest.sees(e.getKey())) {
+                    reclaimed += e.getValue().cardinality();
+                    it.remove();
+                }
+            }
+            return reclaimed + vacuumDead(dead, oldest);
+        }
+
+        boolean isEmpty() {
+            return xmins.isEmpty() && dead.isEmpty();
+        }
+    }
+
+    /** The xmin of the tuple of each slot, null if every snapshot sees it;
+        allocated by the first stamp */
+    private TransactionId[] xmin = null;
+    private final ArrayList<Version> deadVersions = new ArrayList<Version>();
+    /** The number of stamped tuples and dead versions */
+    private int versionCount = 0;
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -44,22 +111,23 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < getHeaderSize() + numSlots * td.getSize())
+            throw new EOFException("page data too short: " + data.length + " bytes");
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        System.arraycopy(data, 0, header, 0, header.length);
+
+        // the tuples are decoded straight from data, which they keep
+        // referring to for their string fields
         tuples = new Tuple[numSlots];
         try{
             // allocate and read the actual records of this page
             for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
+                tuples[i] = readNextTuple(data, header.length + i * td.getSize(), i);
         }catch(NoSuchElementException e){
             e.printStackTrace();
         }
-        dis.close();
 
         setBeforeImage();
 
@@ -67,6 +135,20 @@ public class HeapPage implements Page {
         dirtyTid = null;
     }
 
+    /**
+     * Constructor for subclasses that store tuples in a different page
+     * format. Creates a page with room for numSlots tuples and no header;
+     * the subclass is responsible for reading the tuples and calling
+     * {@link #setBeforeImage}.
+     */
+    protected HeapPage(HeapPageId id, int numSlots) {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = numSlots;
+        this.header = new byte[0];
+        this.tuples = new Tuple[numSlots];
+    }
+
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
@@ -91,7 +173,7 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid,oldDataRef);
+            return copyOf(oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -100,6 +182,11 @@ public class HeapPage implements Page {
         return null;
     }
     
+    /** Create a page of the same format as this one from data */
+    protected HeapPage copyOf(byte[] data) throws IOException {
+        return new HeapPage(pid, data);
+    }
+
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
@@ -117,17 +204,9 @@ public class HeapPage implements Page {
     /**
      * Suck up tuples from the source file.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
+    private Tuple readNextTuple(byte[] data, int offset, int slotId) throws NoSuchElementException {
+        // if associated bit is not set, the slot is empty
         if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
             return null;
         }
 
@@ -135,19 +214,28 @@ public class HeapPage implements Page {
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+        t.setArena(data);
+        for (int j=0; j<td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            if (type == Type.INT_TYPE) {
+                t.setInt(j, readInt(data, offset));
+            } else {
+                int strLen = readInt(data, offset);
+                if (strLen < 0 || strLen > Type.STRING_LEN)
+                    throw new NoSuchElementException("parsing error!");
+                t.setArenaString(j, offset + 4, strLen);
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            offset += type.getLen();
         }
 
         return t;
     }
 
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -192,10 +280,8 @@ public class HeapPage implements Page {
 
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
                 try {
-                    f.serialize(dos);
-                
+                    tuples[i].serializeField(j, dos);
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -288,6 +374,183 @@ public class HeapPage implements Page {
 
     }
 
+    /**
+     * Puts t into slot i of this page, or empties the slot if t is null,
+     * whatever the slot held before. Used by the recovery subsystem to apply
+     * the slot updates of the log, so applying the same update twice has
+     * the same effect as applying it once.
+     */
+    public void setSlot(int i, Tuple t) {
+        tuples[i] = t;
+        if (t != null)
+            t.setRecordId(new RecordId(this.pid, i));
+        markSlotUsed(i, t != null);
+    }
+
+    /**
+     * Adds the specified tuple to the page on behalf of a transaction,
+     * stamping it with the transaction as its creator.
+     * @throws DbException if the page is full (no empty slots) or tupledesc
+     *         is mismatch.
+     */
+    public synchronized void insertTuple(Tuple t, TransactionId tid) throws DbException {
+        insertTuple(t);
+        setXmin(t.getRecordId().tupleNo, tid);
+    }
+
+    /**
+     * Delete the specified tuple from the page on behalf of a transaction,
+     * keeping it as a dead version stamped with the transaction as its
+     * deleter.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public synchronized void deleteTuple(Tuple t, TransactionId tid) throws DbException {
+        RecordId rid = t.getRecordId();
+        int slot = rid == null ? -1 : rid.tupleNo;
+        Tuple old = slot >= 0 && slot < numSlots ? tuples[slot] : null;
+        deleteTuple(t);
+        deadVersions.add(new Version(slot, old, xminOf(slot), tid));
+        versionCount++;
+        setXmin(slot, null);
+    }
+
+    /**
+     * Undoes an update of slot i by transaction tid, putting before back
+     * into the slot (or emptying it if before is null). A tuple that tid
+     * deleted gets back the xmin of its dead version. Used by the recovery
+     * subsystem to roll back a transaction.
+     */
+    public synchronized void undoSlot(int i, Tuple before, TransactionId tid) {
+        TransactionId creator = null;
+        if (before != null) {
+            for (int v = deadVersions.size() - 1; v >= 0; v--) {
+                Version dead = deadVersions.get(v);
+                if (dead.slot == i && tid.equals(dead.xmax)) {
+                    creator = dead.xmin;
+                    deadVersions.remove(v);
+                    versionCount--;
+                    break;
+                }
+            }
+        }
+        setXmin(i, null);
+        setSlot(i, before);
+        setXmin(i, creator);
+    }
+
+    /**
+     * @return the tuples of this page that a snapshot sees: the tuples of
+     *         its slots whose creator it sees, and the dead versions whose
+     *         creator it sees but whose deleter it does not
+     */
+    public synchronized List<Tuple> visibleTuples(Snapshot snapshot) {
+        ArrayList<Tuple> visible = new ArrayList<Tuple>();
+        for (int i = 0; i < numSlots; i++) {
+            if (tuples[i] != null && snapshot.sees(xminOf(i)))
+                visible.add(tuples[i]);
+        }
+        for (Version dead : deadVersions) {
+            if (snapshot.sees(dead.xmin) && !snapshot.sees(dead.xmax))
+                visible.add(dead.tuple);
+        }
+        return visible;
+    }
+
+    /**
+     * Reclaims the versions of this page that every snapshot sees the same
+     * way as oldest: the xmin of a tuple is forgotten, and a dead version
+     * is dropped.
+     *
+     * @return the number of versions reclaimed
+     */
+    public synchronized int vacuum(Snapshot oldest) {
+        int reclaimed = 0;
+        for (int i = 0; xmin != null && i < numSlots; i++) {
+            if (xmin[i] != null && oldest.sees(xmin[i])) {
+                setXmin(i, null);
+                reclaimed++;
+            }
+        }
+        int dropped = vacuumDead(deadVersions, oldest);
+        versionCount -= dropped;
+        return reclaimed + dropped;
+    }
+
+    /** Drop the dead versions that every snapshot sees the same way as
+        oldest, and forget the creators they all see
+        @return the number of versions dropped */
+    private static int vacuumDead(List<Version> deadVersions, Snapshot oldest) {
+        int dropped = 0;
+        for (Iterator<Version> it = deadVersions.iterator(); it.hasNext(); ) {
+            Version dead = it.next();
+            if (oldest.sees(dead.xmax)) {
+                it.remove();
+                dropped++;
+            } else if (dead.xmin != null && oldest.sees(dead.xmin)) {
+                dead.xmin = null;
+            }
+        }
+        return dropped;
+    }
+
+    /** @return a copy of the versions of this page, or null if it has none */
+    synchronized Versions copyVersions() {
+        if (versionCount == 0)
+            return null;
+        Versions v = new Versions();
+        for (int i = 0; xmin != null && i < numSlots; i++) {
+            if (xmin[i] != null) {
+                BitSet slots = v.xmins.get(xmin[i]);
+                if (slots == null) {
+                    slots = new BitSet(numSlots);
+                    v.xmins.put(xmin[i], slots);
+                }
+                slots.set(i);
+            }
+        }
+        for (Version dead : deadVersions)
+            v.dead.add(new Version(dead.slot, dead.tuple, dead.xmin, dead.xmax));
+        return v;
+    }
+
+    /** Stamp this page, just read from disk, with the versions it had when
+        it was evicted */
+    synchronized void restoreVersions(Versions v) {
+        for (Map.Entry<TransactionId, BitSet> e : v.xmins.entrySet()) {
+            BitSet slots = e.getValue();
+            for (int i = slots.nextSetBit(0); i >= 0; i = slots.nextSetBit(i + 1))
+                setXmin(i, e.getKey());
+        }
+        for (Version dead : v.dead) {
+            deadVersions.add(new Version(dead.slot, dead.tuple, dead.xmin, dead.xmax));
+            versionCount++;
+        }
+    }
+
+    /** @return the number of stamped tuples and dead versions of this
+        page */
+    public synchronized int getVersionCount() {
+        return versionCount;
+    }
+
+    private TransactionId xminOf(int i) {
+        return xmin == null || i < 0 ? null : xmin[i];
+    }
+
+    private void setXmin(int i, TransactionId tid) {
+        if (xmin == null) {
+            if (tid == null)
+                return;
+            xmin = new TransactionId[numSlots];
+        }
+        if (xmin[i] == null && tid != null)
+            versionCount++;
+        else if (xmin[i] != null && tid == null)
+            versionCount--;
+        xmin[i] = tid;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -309,6 +572,13 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * Returns true if t can be inserted into this page.
+     */
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
@@ -0,0 +1,138 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A HyperLogLog sketch, which estimates the number of distinct values added
+ * to it in a fixed amount of memory.
+ * <p>
+ * Each value is hashed to 64 bits; the first <tt>precision</tt> bits select
+ * one of 2^precision registers, which keeps the largest number of leading
+ * zeroes (plus one) seen in the rest of the hash. The estimate is the
+ * normalized harmonic mean of 2^register over the registers, with linear
+ * counting of the empty registers for small cardinalities. The standard
+ * error is about 1.04 / sqrt(2^precision).
+ * <p>
+ * Sketches of the same precision can be merged, so sketches built over
+ * parts of a table give the sketch of the whole table.
+ */
+public class HyperLogLog {
+
+    /** Precision used for table statistics: 1024 registers, ~3% error */
+    public static final int DEFAULT_PRECISION = 10;
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * Create an empty sketch.
+     *
+     * @param precision
+     *            log2 of the number of registers, between 4 and 16
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16)
+            throw new IllegalArgumentException("precision must be between 4 and 16");
+        this.precision = precision;
+        registers = new byte[1 << precision];
+    }
+
+    /** Add an int value to the sketch */
+    public void addInt(int v) {
+        addHash(mix(v));
+    }
+
+    /** Add a string value to the sketch */
+    public void addString(String s) {
+        // 64-bit FNV-1a, as String.hashCode has only 32 bits
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        addHash(mix(h));
+    }
+
+    /** Add a value by its 64-bit hash, which must be well mixed */
+    public void addHash(long hash) {
+        int idx = (int) (hash >>> (64 - precision));
+        // the sentinel bit bounds the rank when the remaining bits are zero
+        long rest = (hash << precision) | (1L << (precision - 1));
+        int rank = Long.numberOfLeadingZeros(rest) + 1;
+        if (rank > registers[idx])
+            registers[idx] = (byte) rank;
+    }
+
+    /** The finalizer of MurmurHash3, which spreads every input bit */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53a6a21L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Add all values of another sketch of the same precision to this one.
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision)
+            throw new IllegalArgumentException("only sketches of the same precision can be merged");
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+        }
+    }
+
+    /** @return the estimated number of distinct values added */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeroes = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0)
+                zeroes++;
+        }
+        double alpha;
+        if (m == 16)
+            alpha = 0.673;
+        else if (m == 32)
+            alpha = 0.697;
+        else if (m == 64)
+            alpha = 0.709;
+        else
+            alpha = 0.7213 / (1 + 1.079 / m);
+        double e = alpha * m * m / sum;
+        if (e <= 2.5 * m && zeroes > 0)
+            e = m * Math.log((double) m / zeroes);
+        return Math.round(e);
+    }
+
+    /**
+     * Write this sketch to out, in the format read by {@link #read}.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeByte(precision);
+        out.write(registers);
+    }
+
+    /**
+     * Read a sketch written by {@link #write}.
+     */
+    public static HyperLogLog read(DataInputStream in) throws IOException {
+        int precision = in.readByte();
+        if (precision < 4 || precision > 16)
+            throw new IOException("invalid sketch precision " + precision);
+        HyperLogLog h = new HyperLogLog(precision);
+        in.readFully(h.registers);
+        return h;
+    }
+
+    public String toString() {
+        return "HyperLogLog(~" + estimate() + " distinct values)";
+    }
+}
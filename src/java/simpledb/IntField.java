@@ -50,27 +50,34 @@ public class IntField implements Field {
     public boolean compare(Predicate.Op op, Field val) {
 
         IntField iVal = (IntField) val;
+        return compare(op, value, iVal.value);
+    }
 
+    /**
+     * Compare two int values with the semantics of {@link #compare(Predicate.Op, Field)},
+     * for callers that have the values without IntField objects.
+     */
+    static boolean compare(Predicate.Op op, int value, int other) {
         switch (op) {
         case EQUALS:
-            return value == iVal.value;
+            return value == other;
         case NOT_EQUALS:
-            return value != iVal.value;
+            return value != other;
 
         case GREATER_THAN:
-            return value > iVal.value;
+            return value > other;
 
         case GREATER_THAN_OR_EQ:
-            return value >= iVal.value;
+            return value >= other;
 
         case LESS_THAN:
-            return value < iVal.value;
+            return value < other;
 
         case LESS_THAN_OR_EQ:
-            return value <= iVal.value;
+            return value <= other;
 
     case LIKE:
-        return value == iVal.value;
+        return value == other;
         }
 
         return false;
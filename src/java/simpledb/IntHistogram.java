@@ -0,0 +1,376 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A class to represent a fixed-width histogram over a single integer-based
+ * field.
+ * <p>
+ * The histogram has a fixed number of equal-width buckets. It is either
+ * built over a known range of values, or -- when the range is not known in
+ * advance -- grows with the values added: the buckets then have a
+ * power-of-two width and are aligned to multiples of it, and when a value
+ * falls outside of them the width is doubled, merging pairs of adjacent
+ * buckets. Growing histograms can be built in a single pass over a table,
+ * and histograms built over different parts of a table can be merged
+ * exactly with {@link #merge}.
+ */
+public class IntHistogram {
+
+    private final int[] counts;
+    private final boolean growing;
+    /** The value at the start of bucket 0 */
+    private long origin;
+    private long width;
+    /** The smallest and largest values added (or the declared range) */
+    private int min, max;
+    private int ntups;
+
+    /**
+     * Create a new IntHistogram.
+     * <p>
+     * This IntHistogram should maintain a histogram of integer values that it
+     * receives. It should split the histogram into "buckets" buckets.
+     * <p>
+     * The values that are being histogrammed will be provided one-at-a-time
+     * through the "addValue()" function.
+     *
+     * @param buckets
+     *            The number of buckets to split the input value into.
+     * @param min
+     *            The minimum integer value that will ever be passed to this
+     *            class for histogramming
+     * @param max
+     *            The maximum integer value that will ever be passed to this
+     *            class for histogramming
+     */
+    public IntHistogram(int buckets, int min, int max) {
+        counts = new int[Math.max(1, buckets)];
+        growing = false;
+        origin = min;
+        width = Math.max(1, ((long) max - min + counts.length) / counts.length);
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Create a new IntHistogram over values whose range is not known in
+     * advance.
+     *
+     * @param buckets
+     *            The number of buckets to split the input value into.
+     */
+    public IntHistogram(int buckets) {
+        counts = new int[Math.max(1, buckets)];
+        growing = true;
+        width = 1;
+    }
+
+    private IntHistogram(int[] counts, boolean growing) {
+        this.counts = counts;
+        this.growing = growing;
+    }
+
+    /**
+     * Write this histogram to out, in the format read by {@link #read}.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeBoolean(growing);
+        out.writeInt(counts.length);
+        out.writeLong(origin);
+        out.writeLong(width);
+        out.writeInt(min);
+        out.writeInt(max);
+        out.writeInt(ntups);
+        for (int c : counts)
+            out.writeInt(c);
+    }
+
+    /**
+     * Read a histogram written by {@link #write}.
+     */
+    public static IntHistogram read(DataInputStream in) throws IOException {
+        boolean growing = in.readBoolean();
+        int buckets = in.readInt();
+        if (buckets <= 0)
+            throw new IOException("invalid histogram size " + buckets);
+        IntHistogram h = new IntHistogram(new int[buckets], growing);
+        h.origin = in.readLong();
+        h.width = in.readLong();
+        h.min = in.readInt();
+        h.max = in.readInt();
+        h.ntups = in.readInt();
+        if (h.width <= 0)
+            throw new IOException("invalid histogram bucket width " + h.width);
+        for (int i = 0; i < buckets; i++)
+            h.counts[i] = in.readInt();
+        return h;
+    }
+
+    private static long floorDiv(long a, long b) {
+        long q = a / b;
+        if ((a % b != 0) && ((a < 0) != (b < 0)))
+            q--;
+        return q;
+    }
+
+    /** @return the bucket of v, which may be outside of the histogram */
+    private long bucketOf(long v) {
+        return floorDiv(v - origin, width);
+    }
+
+    /**
+     * Add a value to the set of values that you are keeping a histogram of.
+     *
+     * @param v
+     *            Value to add to the histogram
+     */
+    public void addValue(int v) {
+        if (growing) {
+            if (ntups == 0) {
+                origin = floorDiv(v, width) * width;
+                min = max = v;
+            } else {
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            cover(width);
+        }
+        long b = bucketOf(v);
+        if (b < 0)
+            b = 0;
+        if (b >= counts.length)
+            b = counts.length - 1;
+        counts[(int) b]++;
+        ntups++;
+    }
+
+    /**
+     * Remove a value previously added to this histogram. The range of the
+     * histogram is not narrowed, so after many removals getMin() and
+     * getMax() are only bounds of the values.
+     *
+     * @param v
+     *            Value to remove from the histogram
+     */
+    public void removeValue(int v) {
+        if (ntups == 0)
+            return;
+        long b = bucketOf(v);
+        if (b < 0)
+            b = 0;
+        if (b >= counts.length)
+            b = counts.length - 1;
+        if (counts[(int) b] > 0) {
+            counts[(int) b]--;
+            ntups--;
+        }
+    }
+
+    /**
+     * Make a growing histogram cover [min, max] with buckets at least
+     * minWidth wide.
+     */
+    private void cover(long minWidth) {
+        long newWidth = width;
+        while (newWidth < minWidth)
+            newWidth *= 2;
+        long newOrigin = floorDiv(min, newWidth) * newWidth;
+        while (floorDiv((long) max - newOrigin, newWidth) >= counts.length) {
+            newWidth *= 2;
+            newOrigin = floorDiv(min, newWidth) * newWidth;
+        }
+        if (newWidth == width && newOrigin == origin)
+            return;
+        int[] old = counts.clone();
+        java.util.Arrays.fill(counts, 0);
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] != 0)
+                counts[(int) floorDiv(origin + i * width - newOrigin, newWidth)] += old[i];
+        }
+        origin = newOrigin;
+        width = newWidth;
+    }
+
+    /**
+     * Add all values of another growing histogram with the same number of
+     * buckets to this growing histogram.
+     */
+    public void merge(IntHistogram other) {
+        if (!growing || !other.growing || counts.length != other.counts.length)
+            throw new IllegalArgumentException("only growing histograms of the same size can be merged");
+        if (other.ntups == 0)
+            return;
+        if (ntups == 0) {
+            System.arraycopy(other.counts, 0, counts, 0, counts.length);
+            origin = other.origin;
+            width = other.width;
+            min = other.min;
+            max = other.max;
+            ntups = other.ntups;
+            return;
+        }
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        cover(other.width);
+        for (int i = 0; i < other.counts.length; i++) {
+            if (other.counts[i] != 0)
+                counts[(int) bucketOf(other.origin + i * other.width)] += other.counts[i];
+        }
+        ntups += other.ntups;
+    }
+
+    /** @return a copy of this histogram */
+    IntHistogram copy() {
+        IntHistogram h = new IntHistogram(counts.clone(), growing);
+        h.origin = origin;
+        h.width = width;
+        h.min = min;
+        h.max = max;
+        h.ntups = ntups;
+        return h;
+    }
+
+    /** @return the number of values added to this histogram */
+    public int getNumValues() {
+        return ntups;
+    }
+
+    /** @return the smallest value added to this histogram */
+    public int getMin() {
+        return min;
+    }
+
+    /** @return the largest value added to this histogram */
+    public int getMax() {
+        return max;
+    }
+
+    /** @return the number of values in bucket b */
+    int getBucketCount(int b) {
+        return counts[b];
+    }
+
+    /** @return the width of the buckets of this histogram */
+    long getBucketWidth() {
+        return width;
+    }
+
+    /** @return the number of buckets of this histogram */
+    int getNumBuckets() {
+        return counts.length;
+    }
+
+    /** @return the value at the middle of bucket b */
+    double getBucketMiddle(int b) {
+        return origin + b * width + (width - 1) / 2.0;
+    }
+
+    /** Fraction of the values less than v, not counting those equal to v */
+    private double fractionLessThan(int v) {
+        if (v <= min)
+            return 0;
+        if (v > max)
+            return 1;
+        int b = (int) Math.min(counts.length - 1, Math.max(0, bucketOf(v)));
+        long bucketStart = origin + b * width;
+        double count = counts[b] * (double) (v - bucketStart) / width;
+        for (int i = 0; i < b; i++)
+            count += counts[i];
+        return count / ntups;
+    }
+
+    /** Fraction of the values equal to v */
+    private double fractionEqual(int v) {
+        if (v < min || v > max)
+            return 0;
+        int b = (int) Math.min(counts.length - 1, Math.max(0, bucketOf(v)));
+        return (double) counts[b] / width / ntups;
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on this
+     * table.
+     *
+     * For example, if "op" is "GREATER_THAN" and "v" is 5, return your
+     * estimate of the fraction of elements that are greater than 5.
+     *
+     * @param op
+     *            Operator
+     * @param v
+     *            Value
+     * @return Predicted selectivity of this particular operator and value
+     */
+    public double estimateSelectivity(Predicate.Op op, int v) {
+        if (ntups == 0)
+            return 0;
+        double sel;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            sel = fractionEqual(v);
+            break;
+        case NOT_EQUALS:
+            sel = 1 - fractionEqual(v);
+            break;
+        case LESS_THAN:
+            sel = fractionLessThan(v);
+            break;
+        case LESS_THAN_OR_EQ:
+            sel = fractionLessThan(v) + fractionEqual(v);
+            break;
+        case GREATER_THAN:
+            sel = 1 - fractionLessThan(v) - fractionEqual(v);
+            break;
+        case GREATER_THAN_OR_EQ:
+            sel = 1 - fractionLessThan(v);
+            break;
+        default:
+            sel = 1;
+        }
+        return Math.max(0, Math.min(1, sel));
+    }
+
+    /**
+     * @return the average selectivity of this histogram.
+     *
+     *         This is not an indispensable method to implement the basic join
+     *         optimization. It may be needed if you want to implement a more
+     *         efficient optimization
+     * */
+    public double avgSelectivity() {
+        if (ntups == 0)
+            return 0;
+        // the probability that two values of the histogram are equal,
+        // assuming values are uniform within a bucket
+        double sel = 0;
+        for (int c : counts)
+            sel += (double) c * c / width;
+        return sel / ((double) ntups * ntups);
+    }
+
+    /**
+     * @return an estimate of the number of distinct values in this
+     *         histogram, assuming values are uniform within a bucket.
+     */
+    public int estimateDistinctValues() {
+        long ndv = 0;
+        for (int c : counts)
+            ndv += Math.min(c, width);
+        return (int) Math.max(ndv, ntups > 0 ? 1 : 0);
+    }
+
+    /**
+     * @return A string describing this histogram, for debugging purposes
+     */
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("IntHistogram(" + ntups + " values in [" + min + ", " + max + "], width " + width + ":");
+        for (int c : counts)
+            sb.append(" " + c);
+        sb.append(")");
+        return sb.toString();
+    }
+}
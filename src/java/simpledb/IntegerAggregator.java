@@ -71,7 +71,7 @@ public class IntegerAggregator implements Aggregator {
         int oldCount = counts.get(tupleGroupField);
         counts.put(tupleGroupField,oldCount+1);
 
-        int tupleValue = ((IntField)tup.getField(aFieldIndex)).getValue();
+        int tupleValue = tup.getInt(aFieldIndex);
         int oldValue = groups.get(tupleGroupField);
         int newValue = oldValue;
         switch (op){
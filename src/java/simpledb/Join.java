@@ -67,6 +67,7 @@ public class Join extends Operator {
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        currLeft = null;
         child1.open();
         child2.open();
         super.open();
@@ -118,10 +119,10 @@ public class Join extends Operator {
                     Tuple output = new Tuple(getTupleDesc());
                     int j = 0;
                     for (int i = 0; i < left.getTupleDesc().numFields(); i++) {
-                        output.setField(j++,left.getField(i));
+                        output.copyField(j++, left, i);
                     }
                     for (int i = 0; i < right.getTupleDesc().numFields(); i++) {
-                        output.setField(j++,right.getField(i));
+                        output.copyField(j++, right, i);
                     }
                     return output;
                 }
@@ -1,6 +1,8 @@
 package simpledb;
 
+import java.awt.GraphicsEnvironment;
 import java.util.*;
+import java.util.concurrent.RecursiveAction;
 
 import javax.swing.*;
 import javax.swing.tree.*;
@@ -34,6 +36,9 @@ public class JoinOptimizer {
      * inner/outer here -- because DbIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
      * reason, the plan1
+     * <p>
+     * Equality joins are executed as a {@link HashEquiJoin}, which hashes
+     * plan2; other joins are nested loops {@link Join}s.
      * 
      * @param lj
      *            The join being considered
@@ -68,7 +73,10 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj.p == Predicate.Op.EQUALS)
+            j = new HashEquiJoin(p, plan1, plan2);
+        else
+            j = new Join(p, plan1, plan2);
 
         return j;
 
@@ -106,16 +114,21 @@ public class JoinOptimizer {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
+        } else if (j.p == Predicate.Op.EQUALS) {
+            // hash join: scan both sides once, hash every inner tuple into
+            // the table and probe it with every outer tuple
+            return cost1 + cost2 + HASH_BUILD_COST * card2 + card1;
         } else {
-            // Insert your code here.
-
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            // nested loops: scan the outer once, the inner once per outer
+            // tuple, and apply the predicate to every pair
+            return cost1 + card1 * cost2 + (double) card1 * card2;
         }
     }
 
+    /** Cost of adding a tuple to the hash table of a hash join, relative to
+        the cost of applying a predicate */
+    static final double HASH_BUILD_COST = 2.0;
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -156,9 +169,70 @@ public class JoinOptimizer {
             String field2PureName, int card1, int card2, boolean t1pkey,
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
-        int card = 1;
-        // some code goes here
-        return card <= 0 ? 1 : card;
+        double sel = estimateJoinSelectivity(joinOp, table1Alias, table2Alias,
+                field1PureName, field2PureName, stats, tableAliasToId);
+        return estimateJoinCardinality(joinOp, sel, card1, card2, t1pkey, t2pkey);
+    }
+
+    /**
+     * Estimate the join cardinality of two tables from the selectivity of
+     * the join predicate, or -1 if it is not known.
+     */
+    private static int estimateJoinCardinality(Predicate.Op joinOp, double sel,
+            int card1, int card2, boolean t1pkey, boolean t2pkey) {
+        double card;
+        if (joinOp == Predicate.Op.EQUALS) {
+            // a key matches at most one tuple of the other table
+            double keyBound;
+            if (t1pkey && t2pkey)
+                keyBound = Math.min(card1, card2);
+            else if (t1pkey)
+                keyBound = card2;
+            else if (t2pkey)
+                keyBound = card1;
+            else
+                keyBound = Math.max(card1, card2);
+            if (sel < 0)
+                card = keyBound;
+            else if (t1pkey || t2pkey)
+                card = Math.min(keyBound, sel * card1 * card2);
+            else
+                card = sel * card1 * card2;
+        } else {
+            card = (sel < 0 ? 0.3 : sel) * card1 * card2;
+        }
+        return card < 1 ? 1 : (int) Math.min(card, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Estimate the selectivity of a join predicate from the histograms of
+     * the joined fields.
+     *
+     * @return the estimated selectivity, or -1 if there are no statistics on
+     *         the fields
+     */
+    private static double estimateJoinSelectivity(Predicate.Op joinOp,
+            String table1Alias, String table2Alias, String field1PureName,
+            String field2PureName, Map<String, TableStats> stats,
+            Map<String, Integer> tableAliasToId) {
+        if (stats == null || tableAliasToId == null)
+            return -1;
+        Integer t1id = tableAliasToId.get(table1Alias);
+        Integer t2id = tableAliasToId.get(table2Alias);
+        if (t1id == null || t2id == null)
+            return -1;
+        Catalog catalog = Database.getCatalog();
+        TableStats s1 = stats.get(catalog.getTableName(t1id));
+        TableStats s2 = stats.get(catalog.getTableName(t2id));
+        if (s1 == null || s2 == null)
+            return -1;
+        try {
+            int f1 = catalog.getTupleDesc(t1id).fieldNameToIndex(field1PureName);
+            int f2 = catalog.getTupleDesc(t2id).fieldNameToIndex(field2PureName);
+            return s1.estimateJoinSelectivity(f1, joinOp, s2, f2);
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
     }
 
     /**
@@ -195,8 +269,27 @@ public class JoinOptimizer {
     }
 
     /**
-     * Compute a logical, reasonably efficient join on the specified tables. See
-     * PS4 for hints on how this should be implemented.
+     * Compute a logical, reasonably efficient join on the specified tables.
+     * <p>
+     * This is a Selinger-style dynamic programming enumeration of bushy
+     * plans over the relations of the joins: for every connected set of
+     * relations, in order of increasing size, the best plan is the cheapest
+     * way of joining the best plans of two parts of the set, either of which
+     * may itself be a join. Sets of relations are bitmasks, so the plans are
+     * found in arrays indexed by mask (see {@link PlanCache}), and only parts
+     * that are joined to each other are considered, so there are no cross
+     * products. Subqueries joined to a table are relations of their own, and
+     * are always the inner of their join. The sets of relations of the same
+     * size are planned in parallel (see {@link #enumeratePlans}).
+     * <p>
+     * Dynamic programming needs time and space exponential in the number of
+     * relations, so above {@link #getMaxDpRelations} relations the joins are
+     * ordered by a greedy search for a left-deep plan instead (see
+     * {@link #greedyPlan}).
+     * <p>
+     * The joins must not form cycles, since every join is executed as a
+     * separate Join operator. If the joins connect several separate groups
+     * of tables, each group is ordered separately.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -208,187 +301,468 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed: both inputs of a join are
+     *         computed by the joins before it.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
-     *             join, or or when another internal error occurs
+     *             join, when the joins form a cycle, or when another internal
+     *             error occurs
      */
     public Vector<LogicalJoinNode> orderJoins(
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
-        //Not necessary for labs 1-2
+        if (joins.size() == 0)
+            return joins;
+        long start = System.nanoTime();
+
+        JoinGraph g = new JoinGraph(stats, filterSelectivities);
+        PlanCache pc = null;
+        if (g.numRelations <= maxDpRelations)
+            pc = enumeratePlans(g, stats);
+
+        Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>();
+        ArrayList<CostCard> plans = new ArrayList<CostCard>();
+        for (long component : g.components()) {
+            CostCard cc;
+            if (pc != null) {
+                cc = new CostCard();
+                cc.plan = pc.getOrder(component);
+                cc.cost = pc.getCost(component);
+                cc.card = pc.getCard(component);
+            } else {
+                cc = greedyPlan(g, stats, component);
+            }
+            plans.add(cc);
+            order.addAll(cc.plan);
+        }
 
-        // some code goes here
-        //Replace the following
-        return joins;
+        if (explain) {
+            System.out.println("Join order: " + order);
+            for (CostCard cc : plans) {
+                System.out.println("  " + cc.plan + " (cost = " + cc.cost
+                        + ", card = " + cc.card + ")");
+            }
+            System.out.printf("Ordered %d joins of %d relations by %s in %.3f ms%n",
+                    joins.size(), g.numRelations,
+                    pc != null ? "dynamic programming" : "greedy search",
+                    (System.nanoTime() - start) / 1e6);
+            if (pc != null && !GraphicsEnvironment.isHeadless())
+                printJoins(order, pc, g);
+        }
+        return order;
     }
 
-    // ===================== Private Methods =================================
+    /** Largest number of relations whose joins can be ordered, as sets of
+        relations are bitmasks in a long */
+    static final int MAX_RELATIONS = 64;
+
+    /** Largest value of maxDpRelations, which bounds the size of the
+        PlanCache arrays */
+    static final int MAX_DP_RELATIONS = 20;
+
+    private static volatile int maxDpRelations = 16;
 
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
-     * 
-     * @param stats
-     *            table stats for all of the tables, referenced by table names
-     *            rather than alias (see {@link #orderJoins})
-     * @param filterSelectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
-     * @param joinToRemove
-     *            the join to remove from joinSet
-     * @param joinSet
-     *            the set of joins being considered
-     * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
-     * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
-     * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     * @return the largest number of relations whose joins are ordered by
+     *         dynamic programming; joins of more relations are ordered by a
+     *         greedy search
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
-            HashMap<String, TableStats> stats,
-            HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+    public static int getMaxDpRelations() {
+        return maxDpRelations;
+    }
+
+    /**
+     * Set the largest number of relations whose joins are ordered by
+     * dynamic programming, at most {@link #MAX_DP_RELATIONS}. Dynamic
+     * programming considers up to 3^n ways of splitting sets of n
+     * relations.
+     */
+    public static void setMaxDpRelations(int n) {
+        if (n < 0 || n > MAX_DP_RELATIONS)
+            throw new IllegalArgumentException("must be between 0 and " + MAX_DP_RELATIONS + ": " + n);
+        maxDpRelations = n;
+    }
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
+    /**
+     * The relations of the joins being ordered, and the joins between them.
+     * Relation i is bit i of a set of relations.
+     */
+    private class JoinGraph {
+        final int numRelations;
+        /** The alias of each relation, or null for a subquery */
+        final String[] aliases;
+        final double[] scanCosts;
+        final int[] cards;
+        /** The set of relations joined to each relation */
+        final long[] adjacent;
+        /** joinsBetween[a][b] is the join of relations a and b, with a as its
+            t1 if it can be swapped (and a subquery is always its t2) */
+        final LogicalJoinNode[][] joinsBetween;
+        /** pkeys[a][b] is true if the field of a in the join of a and b is a
+            primary key of a */
+        final boolean[][] pkeys;
+        /** selectivities[a][b] is the selectivity of joinsBetween[a][b], or
+            -1 if it is not known; estimated once, as it is the same in
+            every plan */
+        final double[][] selectivities;
+        /** The relation of each subquery join */
+        final IdentityHashMap<LogicalJoinNode, Integer> subplanRelations =
+                new IdentityHashMap<LogicalJoinNode, Integer>();
+        private final HashMap<String, Integer> relations = new HashMap<String, Integer>();
+
+        JoinGraph(HashMap<String, TableStats> stats,
+                HashMap<String, Double> filterSelectivities) throws ParsingException {
+            ArrayList<String> names = new ArrayList<String>();
+            for (LogicalJoinNode j : joins) {
+                addRelation(j.t1Alias, names);
+                if (j instanceof LogicalSubplanJoinNode) {
+                    subplanRelations.put(j, names.size());
+                    names.add(null);
+                } else {
+                    addRelation(j.t2Alias, names);
+                }
+            }
+            numRelations = names.size();
+            aliases = names.toArray(new String[numRelations]);
+            if (numRelations > MAX_RELATIONS)
+                throw new ParsingException("Cannot order joins of more than "
+                        + MAX_RELATIONS + " tables");
+
+            scanCosts = new double[numRelations];
+            cards = new int[numRelations];
+            for (int r = 0; r < numRelations; r++) {
+                if (aliases[r] == null)
+                    continue; // a subquery
+                String tableName = Database.getCatalog().getTableName(p.getTableId(aliases[r]));
+                TableStats s = stats.get(tableName);
+                if (s == null)
+                    throw new ParsingException("No statistics for table " + tableName);
+                Double sel = filterSelectivities.get(aliases[r]);
+                scanCosts[r] = s.estimateScanCost();
+                cards[r] = s.estimateTableCardinality(sel == null ? 1.0 : sel);
             }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+            adjacent = new long[numRelations];
+            joinsBetween = new LogicalJoinNode[numRelations][numRelations];
+            pkeys = new boolean[numRelations][numRelations];
+            selectivities = new double[numRelations][numRelations];
+            Map<String, Integer> aliasToId = p.getTableAliasToIdMapping();
+            // union-find over the relations, to detect cycles
+            int[] parent = new int[numRelations];
+            for (int r = 0; r < numRelations; r++)
+                parent[r] = r;
+            for (LogicalJoinNode j : joins) {
+                int a = relations.get(j.t1Alias);
+                int b = j instanceof LogicalSubplanJoinNode ? subplanRelations.get(j)
+                        : relations.get(j.t2Alias);
+                int ra = find(parent, a), rb = find(parent, b);
+                if (ra == rb)
+                    throw new ParsingException("Cannot order joins that form a cycle: "
+                            + j + " joins tables that are already joined");
+                parent[ra] = rb;
+                adjacent[a] |= 1L << b;
+                adjacent[b] |= 1L << a;
+                if (j instanceof LogicalSubplanJoinNode) {
+                    joinsBetween[a][b] = joinsBetween[b][a] = j;
+                } else {
+                    joinsBetween[a][b] = j;
+                    joinsBetween[b][a] = j.swapInnerOuter();
+                    pkeys[b][a] = isPkey(j.t2Alias, j.f2PureName);
+                    for (LogicalJoinNode oriented : new LogicalJoinNode[] { joinsBetween[a][b], joinsBetween[b][a] }) {
+                        selectivities[relations.get(oriented.t1Alias)][relations.get(oriented.t2Alias)] =
+                                estimateJoinSelectivity(oriented.p, oriented.t1Alias, oriented.t2Alias,
+                                        oriented.f1PureName, oriented.f2PureName, stats, aliasToId);
+                    }
+                }
+                pkeys[a][b] = isPkey(j.t1Alias, j.f1PureName);
+            }
+        }
+
+        private void addRelation(String alias, ArrayList<String> names) throws ParsingException {
+            if (alias == null || relations.containsKey(alias))
+                return;
+            if (p.getTableId(alias) == null)
+                throw new ParsingException("Unknown table " + alias);
+            relations.put(alias, names.size());
+            names.add(alias);
+        }
+
+        private int find(int[] parent, int r) {
+            while (parent[r] != r)
+                r = parent[r] = parent[parent[r]];
+            return r;
+        }
 
+        /** @return the relation of the t1 table of a join */
+        int relation1(LogicalJoinNode j) {
+            return relations.get(j.t1Alias);
+        }
+
+        /** @return the relation of the t2 table or subquery of a join */
+        int relation2(LogicalJoinNode j) {
+            if (j instanceof LogicalSubplanJoinNode)
+                return subplanRelations.get(j);
+            return relations.get(j.t2Alias);
+        }
+
+        /** @return the sets of relations joined to each other */
+        ArrayList<Long> components() {
+            ArrayList<Long> components = new ArrayList<Long>();
+            long seen = 0;
+            for (int r = 0; r < numRelations; r++) {
+                if ((seen & (1L << r)) != 0)
+                    continue;
+                long component = 1L << r, frontier = component;
+                while (frontier != 0) {
+                    int next = Long.numberOfTrailingZeros(frontier);
+                    frontier &= frontier - 1;
+                    long added = adjacent[next] & ~component;
+                    component |= added;
+                    frontier |= added;
+                }
+                seen |= component;
+                components.add(component);
+            }
+            return components;
+        }
+    }
+
+    /** Smallest number of relations whose plans are searched in parallel */
+    static final int PARALLEL_MIN_RELATIONS = 10;
+
+    /** Number of sets of relations planned by a task of the parallel search */
+    static final int SETS_PER_TASK = 64;
+
+    /**
+     * Find the best plan of every connected set of relations of g.
+     * <p>
+     * The plans of a set only depend on the plans of smaller sets, so the
+     * sets are planned level by level, in order of size, and the sets of a
+     * level are planned in parallel on the
+     * {@link Database#getForkJoinPool shared fork/join pool}. Each task only
+     * adds the plans of its own sets to the PlanCache, and only reads plans
+     * of earlier levels.
+     */
+    private PlanCache enumeratePlans(JoinGraph g, HashMap<String, TableStats> stats) {
+        int n = g.numRelations;
+        PlanCache pc = new PlanCache(n);
+        for (int r = 0; r < n; r++)
+            pc.addPlan(1L << r, g.scanCosts[r], g.cards[r], false, null, 0);
+
+        for (int size = 2; size <= n; size++) {
+            long[] level = subsetsOfSize(n, size);
+            if (n < PARALLEL_MIN_RELATIONS || level.length <= SETS_PER_TASK) {
+                Step step = new Step();
+                for (long mask : level)
+                    planSet(g, pc, stats, mask, step);
             } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+                Database.getForkJoinPool().invoke(
+                        new LevelTask(g, pc, stats, level, 0, level.length));
             }
         }
+        return pc;
+    }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+    /** @return the sets of size relations out of n, in increasing order */
+    private static long[] subsetsOfSize(int n, int size) {
+        long count = 1;
+        for (int i = 0; i < size; i++)
+            count = count * (n - i) / (i + 1);
+        long[] sets = new long[(int) count];
+        long mask = (1L << size) - 1;
+        for (int i = 0; i < sets.length; i++) {
+            sets[i] = mask;
+            // the next larger number with the same number of bits set
+            long lowest = mask & -mask, ripple = mask + lowest;
+            mask = (((ripple ^ mask) >>> 2) / lowest) | ripple;
         }
-        if (cost1 >= bestCostSoFar)
-            return null;
+        return sets;
+    }
 
-        CostCard cc = new CostCard();
+    /**
+     * Find the best plan of a set of relations, if it is connected, from the
+     * plans of its subsets.
+     */
+    private void planSet(JoinGraph g, PlanCache pc, HashMap<String, TableStats> stats,
+            long mask, Step step) {
+        // every split of mask into an outer and an inner part
+        for (long outer = (mask - 1) & mask; outer != 0; outer = (outer - 1) & mask) {
+            long inner = mask & ~outer;
+            if (!pc.hasPlan(outer) || !pc.hasPlan(inner))
+                continue; // a part is not connected
+            // without cycles, the parts are joined by at most one join
+            for (long rest = inner; rest != 0; rest &= rest - 1) {
+                int r = Long.numberOfTrailingZeros(rest);
+                long joined = g.adjacent[r] & outer;
+                if (joined != 0) {
+                    addJoin(g, pc, stats, outer, inner, Long.numberOfTrailingZeros(joined), r, step);
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Plans the sets level[lo, hi) of a level of the search. */
+    private class LevelTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final JoinGraph g;
+        private final PlanCache pc;
+        private final HashMap<String, TableStats> stats;
+        private final long[] level;
+        private final int lo, hi;
+
+        LevelTask(JoinGraph g, PlanCache pc, HashMap<String, TableStats> stats,
+                long[] level, int lo, int hi) {
+            this.g = g;
+            this.pc = pc;
+            this.stats = stats;
+            this.level = level;
+            this.lo = lo;
+            this.hi = hi;
+        }
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
-        return cc;
+        protected void compute() {
+            if (hi - lo <= SETS_PER_TASK) {
+                Step step = new Step();
+                for (int i = lo; i < hi; i++)
+                    planSet(g, pc, stats, level[i], step);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new LevelTask(g, pc, stats, level, lo, mid),
+                    new LevelTask(g, pc, stats, level, mid, hi));
+        }
     }
 
     /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
+     * Consider the plan for outer + inner that joins the best plans of
+     * outer and inner, on the join of relation k of outer and relation r of
+     * inner, and add it to pc if it is the best so far.
+     */
+    private void addJoin(JoinGraph g, PlanCache pc, HashMap<String, TableStats> stats,
+            long outer, long inner, int k, int r, Step step) {
+        LogicalJoinNode j = g.joinsBetween[k][r];
+        if (j instanceof LogicalSubplanJoinNode && g.aliases[k] == null)
+            return; // the subquery must be the inner
+        // a plan joins on a key if it is a single relation joined on its
+        // key, or if any of its joins is on a key
+        boolean outerPkey = Long.bitCount(outer) == 1 ? g.pkeys[k][r] : pc.hasPkey(outer);
+        boolean innerPkey = Long.bitCount(inner) == 1 ? g.pkeys[r][k] : pc.hasPkey(inner);
+        costJoin(j, g.selectivities[k][r], stats, pc.getCost(outer), pc.getCard(outer), outerPkey,
+                pc.getCost(inner), pc.getCard(inner), innerPkey, step);
+        long mask = outer | inner;
+        if (pc.hasPlan(mask) && step.cost >= pc.getCost(mask))
+            return;
+        boolean pkey = pc.hasPkey(outer) || pc.hasPkey(inner) || g.pkeys[k][r] || g.pkeys[r][k];
+        pc.addPlan(mask, step.cost, step.card, pkey, j, outer);
+    }
+
+    /** The cost, cardinality and join of joining two plans */
+    private static class Step {
+        LogicalJoinNode join;
+        double cost;
+        int card;
+    }
+
+    /**
+     * Compute the cost and cardinality of joining two plans by j, whose t1
+     * is in the outer plan.
+     *
+     * @param sel
+     *            the selectivity of j, or -1 if it is not known
+     * @param cost1
+     *            the cost of the outer plan
+     * @param card1
+     *            the cardinality of the outer plan
+     * @param pkey1
+     *            whether the outer plan joins on a primary key
+     * @param step
+     *            set to the join, its cost and its cardinality
      */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+    private void costJoin(LogicalJoinNode j, double sel, HashMap<String, TableStats> stats,
+            double cost1, int card1, boolean pkey1, double cost2, int card2,
+            boolean pkey2, Step step) {
+        step.join = j;
+        step.cost = estimateJoinCost(j, card1, card2, cost1, cost2);
+        if (j instanceof LogicalSubplanJoinNode)
+            step.card = estimateJoinCardinality(j, card1, card2, pkey1, pkey2, stats);
+        else
+            step.card = estimateJoinCardinality(j.p, sel, card1, card2, pkey1, pkey2);
+    }
+
+    /**
+     * Find a left-deep plan for a connected set of relations by greedy
+     * search: starting from each relation in turn, repeatedly add the
+     * relation that is cheapest to join to the plan so far, and keep the
+     * cheapest of the resulting plans. This takes O(n^3) joins to cost for
+     * n relations.
+     *
+     * @param component
+     *            the set of relations, which must be connected
+     * @return the best plan found
+     */
+    private CostCard greedyPlan(JoinGraph g, HashMap<String, TableStats> stats, long component) {
+        CostCard best = null;
+        Step step = new Step(), bestStep = new Step();
+        for (long starts = component; starts != 0; starts &= starts - 1) {
+            int first = Long.numberOfTrailingZeros(starts);
+            long set = 1L << first;
+            double cost = g.scanCosts[first];
+            int card = g.cards[first];
+            boolean pkey = false;
+            Vector<LogicalJoinNode> plan = new Vector<LogicalJoinNode>();
+            while (set != component) {
+                if (best != null && cost >= best.cost)
+                    break; // cannot beat the best plan
+                int bestR = -1, bestK = -1;
+                long frontier = 0;
+                for (long in = set; in != 0; in &= in - 1)
+                    frontier |= g.adjacent[Long.numberOfTrailingZeros(in)];
+                for (frontier &= ~set; frontier != 0; frontier &= frontier - 1) {
+                    int r = Long.numberOfTrailingZeros(frontier);
+                    // without cycles, r is joined to a single relation of set
+                    int k = Long.numberOfTrailingZeros(g.adjacent[r] & set);
+                    boolean prevPkey = plan.isEmpty() ? g.pkeys[k][r] : pkey;
+                    // the plan so far as the outer, then r as the outer
+                    for (int side = 0; side < 2; side++) {
+                        LogicalJoinNode j = side == 0 ? g.joinsBetween[k][r] : g.joinsBetween[r][k];
+                        if (j instanceof LogicalSubplanJoinNode && g.aliases[side == 0 ? k : r] == null)
+                            continue; // the subquery must be the inner
+                        if (side == 0)
+                            costJoin(j, g.selectivities[k][r], stats, cost, card, prevPkey,
+                                    g.scanCosts[r], g.cards[r], g.pkeys[r][k], step);
+                        else
+                            costJoin(j, g.selectivities[r][k], stats, g.scanCosts[r], g.cards[r],
+                                    g.pkeys[r][k], cost, card, prevPkey, step);
+                        if (bestR < 0 || step.cost < bestStep.cost) {
+                            bestR = r;
+                            bestK = k;
+                            bestStep.join = step.join;
+                            bestStep.cost = step.cost;
+                            bestStep.card = step.card;
+                        }
+                    }
+                }
+                plan.add(bestStep.join);
+                pkey = pkey || g.pkeys[bestK][bestR] || g.pkeys[bestR][bestK];
+                cost = bestStep.cost;
+                card = bestStep.card;
+                set |= 1L << bestR;
+            }
+            if (set == component && (best == null || cost < best.cost)) {
+                best = new CostCard();
+                best.plan = plan;
+                best.cost = cost;
+                best.card = card;
+            }
         }
-        return false;
+        return best;
     }
 
+    // ===================== Private Methods =================================
+
     /**
      * Return true if field is a primary key of the specified table, false
      * otherwise
@@ -405,20 +779,6 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(Vector<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
-    }
-
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
@@ -428,16 +788,12 @@ public class JoinOptimizer {
      *            the join plan to visualize
      * @param pc
      *            the PlanCache accumulated whild building the optimal plan
-     * @param stats
-     *            table statistics for base tables
-     * @param selectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
+     * @param g
+     *            the relations of the joins, which index pc and hold the
+     *            costs and cardinalities of the scans
      */
     private void printJoins(Vector<LogicalJoinNode> js, PlanCache pc,
-            HashMap<String, TableStats> stats,
-            HashMap<String, Double> selectivities) {
+            JoinGraph g) {
 
         JFrame f = new JFrame("Join Plan for " + p.getQuery());
 
@@ -449,77 +805,33 @@ public class JoinOptimizer {
 
         f.setSize(300, 500);
 
-        HashMap<String, DefaultMutableTreeNode> m = new HashMap<String, DefaultMutableTreeNode>();
+        // the tree of the plan containing each relation so far, and the
+        // relations of that plan
+        DefaultMutableTreeNode[] nodes = new DefaultMutableTreeNode[g.numRelations];
+        long[] plans = new long[g.numRelations];
+        DefaultMutableTreeNode treetop = null;
 
-        // int numTabs = 0;
-
-        // int k;
-        DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
-        boolean neither;
-
-        System.out.println(js);
         for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
-
-            String table1Name = Database.getCatalog().getTableName(
-                    this.p.getTableId(j.t1Alias));
-            String table2Name = Database.getCatalog().getTableName(
-                    this.p.getTableId(j.t2Alias));
-
-            // Double c = pc.getCost(pathSoFar);
-            neither = true;
-
-            root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
-            DefaultMutableTreeNode n = m.get(j.t1Alias);
-            if (n == null) { // never seen this table before
-                n = new DefaultMutableTreeNode(j.t1Alias
-                        + " (Cost = "
-                        + stats.get(table1Name).estimateScanCost()
-                        + ", card = "
-                        + stats.get(table1Name).estimateTableCardinality(
-                                selectivities.get(j.t1Alias)) + ")");
-                root.add(n);
-            } else {
-                // make left child root n
-                root.add(n);
-                neither = false;
-            }
-            m.put(j.t1Alias, root);
-
-            n = m.get(j.t2Alias);
-            if (n == null) { // never seen this table before
-
-                n = new DefaultMutableTreeNode(
-                        j.t2Alias == null ? "Subplan"
-                                : (j.t2Alias
-                                        + " (Cost = "
-                                        + stats.get(table2Name)
-                                                .estimateScanCost()
-                                        + ", card = "
-                                        + stats.get(table2Name)
-                                                .estimateTableCardinality(
-                                                        selectivities
-                                                                .get(j.t2Alias)) + ")"));
-                root.add(n);
-            } else {
-                // make right child root n
-                root.add(n);
-                neither = false;
-            }
-            m.put(j.t2Alias, root);
-
-            // unless this table doesn't join with other tables,
-            // all tables are accessed from root
-            if (!neither) {
-                for (String key : m.keySet()) {
-                    m.put(key, root);
+            int a = g.relation1(j), b = g.relation2(j);
+            long joined = 0;
+            DefaultMutableTreeNode root = new DefaultMutableTreeNode("Join " + j);
+            for (int r : new int[] { a, b }) {
+                if (nodes[r] == null) { // never seen this table before
+                    nodes[r] = new DefaultMutableTreeNode(g.aliases[r] == null ? "Subplan"
+                            : g.aliases[r] + " (Cost = " + g.scanCosts[r]
+                                    + ", card = " + g.cards[r] + ")");
+                    plans[r] = 1L << r;
                 }
+                root.add(nodes[r]);
+                joined |= plans[r];
+            }
+            root.setUserObject("Join " + j + " (Cost =" + pc.getCost(joined)
+                    + ", card = " + pc.getCard(joined) + ")");
+            for (long rest = joined; rest != 0; rest &= rest - 1) {
+                int r = Long.numberOfTrailingZeros(rest);
+                nodes[r] = root;
+                plans[r] = joined;
             }
-
             treetop = root;
         }
 
@@ -41,6 +41,8 @@ public class JoinPredicate implements Serializable {
      * @return true if the tuples satisfy the predicate.
      */
     public boolean filter(Tuple t1, Tuple t2) {
+        if (t1.isInt(fieldNo1) && t2.isInt(fieldNo2))
+            return IntField.compare(operator, t1.getInt(fieldNo1), t2.getInt(fieldNo2));
         return t1.getField(fieldNo1).compare(operator,t2.getField(fieldNo2));
     }
     
@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Limit is an operator that implements a relational LIMIT: it returns at most
+ * a fixed number of tuples from its child.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private DbIterator child;
+    private int limit;
+    private int returned;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            the maximum number of tuples to return
+     * @param child
+     *            The child operator
+     */
+    public Limit(int limit, DbIterator child) {
+        this.limit = limit;
+        this.child = child;
+    }
+
+    /**
+     * @return the maximum number of tuples this operator returns
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        returned = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        returned = 0;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns tuples from the child
+     * operator until the limit is reached.
+     *
+     * @return The next tuple, or null if there are no more tuples or the limit
+     *         has been reached
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (returned < limit && child.hasNext()) {
+            returned++;
+            return child.next();
+        }
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -0,0 +1,361 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager keeps the page locks of transactions for the BufferPool:
+ * shared locks for reading a page, and exclusive locks for writing it.
+ * A transaction that holds the only shared lock of a page can upgrade it
+ * to an exclusive lock. Locks are held until the transaction completes
+ * (strict two-phase locking).
+ * <p>
+ * The state of the locks is not protected by a single monitor: pages are
+ * spread over a fixed number of stripes, each protected by a
+ * ReentrantLock, and every locked page has its own wait queue (a
+ * Condition of its stripe), so transactions that lock different pages
+ * rarely wait for each other.
+ * <p>
+ * Deadlocks are detected as soon as they happen: the lock manager keeps a
+ * wait-for graph, with an edge from every waiting transaction to the
+ * holders of the lock it waits for, and a transaction that is about to
+ * wait looks for a cycle through itself. The youngest transaction of the
+ * cycle (the one with the largest id) is aborted: its request for a lock
+ * throws a TransactionAbortedException, and it must then abort, which
+ * releases its locks.
+ *
+ * @Threadsafe
+ */
+class LockManager {
+
+    /** Number of stripes of the lock table */
+    static final int STRIPES = 64;
+
+    /** The holders and the wait queue of the lock of a page, protected by
+        its stripe */
+    private static class PageLock {
+        TransactionId exclusive = null;
+        final HashSet<TransactionId> shared = new HashSet<TransactionId>();
+        final HashSet<TransactionId> waiters = new HashSet<TransactionId>();
+        final Condition released;
+
+        PageLock(ReentrantLock stripe) {
+            released = stripe.newCondition();
+        }
+
+        /** Grant the lock to tid if it is compatible with the holders */
+        boolean grant(TransactionId tid, boolean write) {
+            if (exclusive != null && exclusive.equals(tid))
+                return true;
+            if (exclusive != null)
+                return false;
+            if (!write) {
+                shared.add(tid);
+                return true;
+            }
+            if (shared.isEmpty() || (shared.size() == 1 && shared.contains(tid))) {
+                shared.clear();
+                exclusive = tid;
+                return true;
+            }
+            return false;
+        }
+
+        boolean isFree() {
+            return exclusive == null && shared.isEmpty() && waiters.isEmpty();
+        }
+
+        /** @return the transactions a waiter of this lock waits for */
+        Set<TransactionId> holders(TransactionId waiter) {
+            HashSet<TransactionId> holders = new HashSet<TransactionId>(shared);
+            if (exclusive != null)
+                holders.add(exclusive);
+            holders.remove(waiter);
+            return holders;
+        }
+    }
+
+    /** The wait-for graph, and the transactions chosen to be aborted */
+    private static class WaitForGraph {
+        private final HashMap<TransactionId, Set<TransactionId>> edges =
+                new HashMap<TransactionId, Set<TransactionId>>();
+        private final HashSet<TransactionId> victims = new HashSet<TransactionId>();
+        private long deadlocks = 0;
+
+        /** Record that waiter waits for the holders of a lock */
+        synchronized void setEdges(TransactionId waiter, Set<TransactionId> holders) {
+            edges.put(waiter, holders);
+        }
+
+        /** Record that tid does not wait any more, because it got its lock
+            or gave up */
+        synchronized void remove(TransactionId tid) {
+            edges.remove(tid);
+            victims.remove(tid);
+        }
+
+        synchronized boolean isVictim(TransactionId tid) {
+            return victims.contains(tid);
+        }
+
+        synchronized long getDeadlocks() {
+            return deadlocks;
+        }
+
+        /**
+         * Record that waiter waits for holders, and look for a deadlock.
+         *
+         * @return the youngest transaction of a cycle through waiter, which
+         *         is now a victim, or null if there is no cycle, or the
+         *         cycle already has a victim
+         */
+        synchronized TransactionId waitFor(TransactionId waiter, Set<TransactionId> holders) {
+            edges.put(waiter, holders);
+            List<TransactionId> cycle = findPath(waiter, waiter, new HashSet<TransactionId>());
+            if (cycle == null)
+                return null;
+            TransactionId youngest = null;
+            for (TransactionId tid : cycle) {
+                if (victims.contains(tid))
+                    return null; // will be broken by the abort of the victim
+                if (youngest == null || tid.getId() > youngest.getId())
+                    youngest = tid;
+            }
+            victims.add(youngest);
+            deadlocks++;
+            return youngest;
+        }
+
+        /** @return a path of edges from tid to target, or null */
+        private List<TransactionId> findPath(TransactionId tid, TransactionId target,
+                                             Set<TransactionId> visited) {
+            Set<TransactionId> next = edges.get(tid);
+            if (next == null || !visited.add(tid))
+                return null;
+            for (TransactionId n : next) {
+                List<TransactionId> path = n.equals(target) ? new ArrayList<TransactionId>()
+                    : findPath(n, target, visited);
+                if (path != null) {
+                    path.add(tid);
+                    return path;
+                }
+            }
+            return null;
+        }
+    }
+
+    /** A lock protecting the locks of the pages of a stripe */
+    private static class Stripe extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+        final HashMap<PageId, PageLock> locks = new HashMap<PageId, PageLock>();
+
+        /** @return the lock of a page, created if it does not exist */
+        PageLock lockOf(PageId pid) {
+            PageLock l = locks.get(pid);
+            if (l == null) {
+                l = new PageLock(this);
+                locks.put(pid, l);
+            }
+            return l;
+        }
+
+        /** Forget the lock of a page if nobody holds or waits for it */
+        void removeIfFree(PageId pid, PageLock l) {
+            if (l.isFree())
+                locks.remove(pid);
+        }
+    }
+
+    /** A transaction that was chosen to be aborted, and the lock it waits for */
+    private static class Victim {
+        final PageId pid;
+        final Stripe stripe;
+
+        Victim(PageId pid, Stripe stripe) {
+            this.pid = pid;
+            this.stripe = stripe;
+        }
+
+        /** Wake up the victim, so that it finds out it must abort */
+        void wakeUp() {
+            stripe.lock();
+            try {
+                PageLock l = stripe.locks.get(pid);
+                if (l != null)
+                    l.released.signalAll();
+            } finally {
+                stripe.unlock();
+            }
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> held =
+            new ConcurrentHashMap<TransactionId, Set<PageId>>();
+    private final WaitForGraph graph = new WaitForGraph();
+    /** The page each waiting transaction waits for */
+    private final ConcurrentHashMap<TransactionId, PageId> waitingFor =
+            new ConcurrentHashMap<TransactionId, PageId>();
+
+    LockManager() {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    private Stripe stripe(PageId pid) {
+        return stripes[(pid.hashCode() & Integer.MAX_VALUE) % STRIPES];
+    }
+
+    /**
+     * Acquire a lock on a page for a transaction, waiting for the
+     * transactions that hold incompatible locks to release them.
+     *
+     * @param tid the transaction requesting the lock
+     * @param pid the page to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if waiting for the lock would
+     *             deadlock, and the transaction was chosen to abort
+     */
+    void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        boolean write = perm == Permissions.READ_WRITE;
+        Stripe stripe = stripe(pid);
+        while (true) {
+            Victim victim = null;
+            stripe.lock();
+            try {
+                PageLock l = stripe.lockOf(pid);
+                if (l.waiters.contains(tid) && graph.isVictim(tid)) {
+                    stopWaiting(tid, pid, stripe, l);
+                    throw new TransactionAbortedException();
+                }
+                if (l.grant(tid, write)) {
+                    if (l.waiters.remove(tid)) {
+                        waitingFor.remove(tid);
+                        graph.remove(tid);
+                    }
+                    updateWaiters(l);
+                    break;
+                }
+
+                l.waiters.add(tid);
+                waitingFor.put(tid, pid);
+                TransactionId youngest = graph.waitFor(tid, l.holders(tid));
+                if (youngest != null && youngest.equals(tid)) {
+                    stopWaiting(tid, pid, stripe, l);
+                    throw new TransactionAbortedException();
+                }
+                if (youngest != null) {
+                    PageId vpid = waitingFor.get(youngest);
+                    if (vpid != null)
+                        victim = new Victim(vpid, stripe(vpid));
+                }
+                if (victim == null || victim.stripe == stripe) {
+                    if (victim != null)
+                        stripe.locks.get(victim.pid).released.signalAll();
+                    try {
+                        l.released.await();
+                    } catch (InterruptedException e) {
+                        stopWaiting(tid, pid, stripe, l);
+                        Thread.currentThread().interrupt();
+                        throw new TransactionAbortedException();
+                    }
+                    victim = null;
+                }
+            } finally {
+                stripe.unlock();
+            }
+            // the lock of another stripe is only taken without holding
+            // this one, so that stripes never wait for each other
+            if (victim != null)
+                victim.wakeUp();
+        }
+        Set<PageId> pages = held.get(tid);
+        if (pages == null) {
+            pages = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+            Set<PageId> other = held.putIfAbsent(tid, pages);
+            if (other != null)
+                pages = other;
+        }
+        pages.add(pid);
+    }
+
+    /** Give up waiting for a lock; the caller holds its stripe */
+    private void stopWaiting(TransactionId tid, PageId pid, Stripe stripe, PageLock l) {
+        l.waiters.remove(tid);
+        waitingFor.remove(tid);
+        graph.remove(tid);
+        stripe.removeIfFree(pid, l);
+    }
+
+    /** Make the edges of the waiters of a lock point to its current
+        holders; the caller holds its stripe */
+    private void updateWaiters(PageLock l) {
+        for (TransactionId w : l.waiters)
+            graph.setEdges(w, l.holders(w));
+    }
+
+    /** Release the lock of a transaction on a page, if it holds one */
+    void release(TransactionId tid, PageId pid) {
+        Stripe stripe = stripe(pid);
+        stripe.lock();
+        try {
+            PageLock l = stripe.locks.get(pid);
+            if (l != null) {
+                if (l.exclusive != null && l.exclusive.equals(tid))
+                    l.exclusive = null;
+                l.shared.remove(tid);
+                updateWaiters(l);
+                l.released.signalAll();
+                stripe.removeIfFree(pid, l);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        Set<PageId> pages = held.get(tid);
+        if (pages != null)
+            pages.remove(pid);
+    }
+
+    /** Release all locks of a transaction */
+    void releaseAll(TransactionId tid) {
+        Set<PageId> pages = held.remove(tid);
+        if (pages == null)
+            return;
+        for (PageId pid : pages)
+            release(tid, pid);
+    }
+
+    /** @return true if the transaction holds a lock on the page */
+    boolean holdsLock(TransactionId tid, PageId pid) {
+        Set<PageId> pages = held.get(tid);
+        return pages != null && pages.contains(pid);
+    }
+
+    /** @return true if the transaction holds an exclusive lock on the page */
+    boolean holdsExclusive(TransactionId tid, PageId pid) {
+        Stripe stripe = stripe(pid);
+        stripe.lock();
+        try {
+            PageLock l = stripe.locks.get(pid);
+            return l != null && l.exclusive != null && l.exclusive.equals(tid);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /** @return the pages the transaction holds locks on */
+    Set<PageId> lockedPages(TransactionId tid) {
+        Set<PageId> pages = held.get(tid);
+        return pages == null ? Collections.<PageId>emptySet()
+            : new HashSet<PageId>(pages);
+    }
+
+    /** @return the number of deadlocks found, each of which aborted a
+        transaction */
+    long getDeadlockCount() {
+        return graph.getDeadlocks();
+    }
+}
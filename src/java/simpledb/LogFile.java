@@ -2,8 +2,12 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.*;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -35,15 +39,26 @@ must not be declared synchronized and must begin with a block like:
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself is the master record of the log.  Its first
+long integer represents the offset of the last written checkpoint, or -1
+if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The second long integer of the master record is the offset of the
+first log record still needed by recovery, and the third the size of
+the segments of the log.
+
+<li> The log records are stored in segment files of that size, next to
+the master record (see {@link LogSegments}).  Offsets are positions in
+the log as if it were a single file that had never been truncated: the
+byte at offset lsn is in segment lsn / size, and truncating the log
+removes whole segments from the beginning of the log, but does not
+change the offsets of the others.
+
+<li> Log records are variable length, and may span segments.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
@@ -51,30 +66,103 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, and SLOT_UPDATE
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  A serialized page is a one byte tag for the class of the page
+(HEAP_PAGE or SLOTTED_HEAP_PAGE), the fields of its HeapPageId, and the
+length and bytes of the page data.  See LogFile.print() for an example.
+
+<li>SLOT_UPDATE records describe a change to a single slot of a HeapPage,
+the insertion or deletion of a tuple: the table id and page number of the
+page, the slot number, and the tuple in the slot before and after the
+change.  A tuple is a short byte length (-1 for an empty slot) followed by
+its fields, ints as 4 bytes and strings as a short length and their
+bytes.  Redoing the record puts the after tuple in the slot, and undoing
+it puts the before tuple back, so both can be repeated safely.  Rolling
+back a transaction logs the undo of each of its SLOT_UPDATE records as
+another SLOT_UPDATE record (a compensation record), and that of each of
+its UPDATE records as an UPDATE record with the images swapped, so that
+recovery can simply repeat the history of the log.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, and of the
+dirty pages of the buffer pool and their recLSN, the offset of the
+first log record that updated the page since it was last written.  The
+format of the record is an integer count of the number of transactions,
+as well as a long integer transaction id and a long integer first record
+offset for each active transaction, followed by an integer count of the
+number of dirty pages, as well as the integer table id and page number
+and the long integer recLSN of each dirty page.
 
 </ul>
 
+<p> <u> Log buffer: </u>
+<p>
+
+Records are not written to the file one field at a time: they are
+serialized into an in-memory log buffer, which is appended to the file in
+one write when it fills up, before the log is forced, and before the log
+file is read.  Records in the buffer already have their final offsets.
+
+<p> <u> Group commit: </u>
+<p>
+
+A commit must not return before its COMMIT record is on disk, but forcing
+the log once per commit limits the rate of commits to the rate of forces
+the disk supports. Instead, logCommit appends the COMMIT record and waits
+for a log flusher thread, which forces the log once for all the commits
+appended so far; commits that arrive while a force is running share the
+next one. The flusher can also wait up to {@link #setGroupCommitDelay a
+configurable delay} before forcing, so that more commits share each
+force, at the price of a longer latency for every commit.
+
+<p> A {@link Transaction#setAsyncCommit transaction} may also commit
+without waiting for the force: the flusher then forces the log at most
+{@link #setAsyncCommitInterval an interval} after the previous force, so
+a crash loses at most the async commits of that interval.  {@link
+#getDurableLSN} and {@link #getWrittenLSN} tell how far the log on disk
+lags behind the log written.
+
+<p> <u> Fuzzy checkpoints: </u>
+<p>
+
+A checkpoint does not write the pages of the buffer pool, so it does not
+stop transactions while they are written.  It only records the active
+transactions and the dirty pages, and asks the {@link
+BufferPool#writeBehind page writer} of the buffer pool to write those
+pages in the background.  Recovery repeats the log from the smallest
+recLSN of the last checkpoint (or the checkpoint itself, if no page was
+dirty), since the updates of earlier records are on disk, and undoes the
+transactions that were active at the checkpoint or began after it.  The
+log before that point and before the first record of the active
+transactions is not needed: logTruncate records the first needed offset
+in the master record, and then deletes the segments before it (or moves
+them to an {@link #setArchiveDirectory archive directory}.)
+
+<p> <u> Recovery: </u>
+<p>
+
+Recovery reads the log from the last checkpoint to find the transactions
+that neither committed nor aborted (the losers), and the dirty page
+table: the recLSN of the dirty pages of the checkpoint and of the pages
+updated after it.  It then logs the undo of the updates of the losers
+and their ABORT records, and finally redoes the updates from the recLSN
+of each page and undoes the updates of the losers on {@link
+#setRecoveryThreads several threads}: the pages are partitioned by id,
+and the updates of a page are applied by a single thread in log order.
 */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile raf; // the master record
+    private LogSegments segments; //protected by this
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,17 +170,78 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int SLOT_UPDATE_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
+    /** Tags of the classes of pages in UPDATE records */
+    static final byte HEAP_PAGE = 1;
+    static final byte SLOTTED_HEAP_PAGE = 2;
+
+    /** Size of the log buffer at which it is written to the file */
+    static final int LOG_BUFFER_SIZE = 64 * 1024;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /** Default size of the segments of the log */
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /** Size of the master record: the offsets of the last checkpoint and
+        of the first needed record, and the size of the segments */
+    final static int MASTER_RECORD_SIZE = 3 * LONG_SIZE;
+
     long currentOffset = -1;//protected by this
+    long base = 0; // offset of the first needed record //protected by this
+    long fileLength = 0; // offset of the end of the log on disk //protected by this
+    private long segmentSize = DEFAULT_SEGMENT_SIZE; //protected by this
+    private File archiveDir = null; //protected by this
+    private int recoveryThreads = Runtime.getRuntime().availableProcessors(); //protected by this
+    long forcedOffset = 0; // the log up to forcedOffset is on disk //protected by this
+
+    /** The log buffer: records appended after the first fileLength bytes */
+    private static class LogBuffer extends ByteArrayOutputStream {
+        LogBuffer() {
+            super(LOG_BUFFER_SIZE);
+        }
+
+        /** Write the contents of the buffer at offset lsn of the log, and
+            empty it */
+        void writeTo(LogSegments segments, long lsn) throws IOException {
+            segments.write(buf, 0, count, lsn);
+            reset();
+        }
+    }
+
+    private final LogBuffer buffer = new LogBuffer(); //protected by this
+    private final DataOutputStream out = new DataOutputStream(buffer); //protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    /** How long, in milliseconds, the flusher thread waits for commits
+        before it exits */
+    static final long FLUSHER_IDLE_TIME = 1000;
+
+    long commitSeq = 0; // number of COMMIT records appended //protected by this
+
+    /** Protects the state of group commit below */
+    private final Object groupCommit = new Object();
+    private long forceRequested = 0; // highest commitSeq waited for
+    private long forcedSeq = 0; // every commit up to forcedSeq is on disk
+    private IOException forceError = null; // error of the last failed force
+    private long failedSeq = 0; // commits up to failedSeq saw forceError
+    private Thread flusher = null;
+    private long forceCount = 0;
+    private volatile long groupCommitDelay = 0; // microseconds
+    private long asyncRequested = 0; // highest commitSeq of an async commit
+    private long lastForce = 0; // time of the last force, in milliseconds
+    private volatile long asyncCommitInterval = DEFAULT_ASYNC_COMMIT_INTERVAL; // milliseconds
+
+    /** Default for the longest time, in milliseconds, between an async
+        commit and the force of its COMMIT record */
+    public static final long DEFAULT_ASYNC_COMMIT_INTERVAL = 200;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -107,6 +256,7 @@ public class LogFile {
     public LogFile(File f) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,11 +277,85 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            buffer.reset();
+            openSegments(segmentSize);
+            segments.clear();
+            base = 0;
+            writeMasterRecord(NO_CHECKPOINT_ID);
+            fileLength = base;
+            currentOffset = fileLength;
+        }
+    }
+
+    /** Use segments of the specified size from now on */
+    private void openSegments(long size) throws IOException {
+        segments.close();
+        segments = new LogSegments(logFile, size);
+        segments.setArchiveDirectory(archiveDir);
+    }
+
+    /** Write the master record, and force it to disk
+        @param cpLoc the offset of the last checkpoint
+    */
+    private void writeMasterRecord(long cpLoc) throws IOException {
+        raf.seek(0);
+        raf.writeLong(cpLoc);
+        raf.writeLong(base);
+        raf.writeLong(segments.getSegmentSize());
+        raf.setLength(MASTER_RECORD_SIZE);
+        raf.getChannel().force(true);
+    }
+
+    /** Set the size of the segments of a new log.  Can only be called
+        before the log is recovered or records are appended to it.
+    */
+    public synchronized void setSegmentSize(long size) {
+        if (size <= 0)
+            throw new IllegalArgumentException("segment size must be positive: " + size);
+        if (!recoveryUndecided)
+            throw new IllegalStateException("the log is already in use");
+        segmentSize = size;
+    }
+
+    /** @return the size of the segments of the log */
+    public synchronized long getSegmentSize() {
+        return recoveryUndecided ? segmentSize : segments.getSegmentSize();
+    }
+
+    /** Move the segments of the log that are no longer needed to the
+        specified directory, instead of deleting them; null deletes them.
+    */
+    public synchronized void setArchiveDirectory(File dir) {
+        archiveDir = dir;
+        segments.setArchiveDirectory(dir);
+    }
+
+    /** @return the number of segment files of the log on disk */
+    public synchronized int getSegmentCount() {
+        return segments.segments().size();
+    }
+
+    /** @return the offset of the end of the log, including the buffer */
+    synchronized long logEnd() {
+        return fileLength + buffer.size();
+    }
+
+
+    /** Record the end of a record, and write the log buffer to the file
+        if it is full */
+    private void postAppend() throws IOException {
+        currentOffset = logEnd();
+        if (buffer.size() >= LOG_BUFFER_SIZE)
+            writeBuffer();
+    }
+
+    /** Write the contents of the log buffer to the file (without forcing
+        it to disk) */
+    synchronized void writeBuffer() throws IOException {
+        if (buffer.size() > 0) {
+            long length = logEnd();
+            buffer.writeTo(segments, fileLength);
+            fileLength = length;
         }
     }
 
@@ -144,46 +368,268 @@ public class LogFile {
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
+        // must do this first, since rollback only works for live
+        // transactions (needs tidToFirstLogRecord); it gets the pages
+        // without the monitors of the buffer pool and the log, like an
+        // insert does
+        rollback(tid);
+
+        synchronized(this) {
+            preAppend();
+            //Debug.log("ABORT");
+
+            out.writeInt(ABORT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            postAppend();
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+    }
 
-        synchronized (Database.getBufferPool()) {
+    /** Write a commit record to disk for the specified tid,
+        and force the log to disk.  The log is forced by the flusher
+        thread, once for all the commits waiting for it (see the group
+        commit note above.)
 
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
+        @param tid The committing transaction.
+    */
+    public void logCommit(TransactionId tid) throws IOException {
+        logCommit(tid, true);
+    }
 
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
+    /** Write a commit record for the specified tid.  If durable, wait
+        until the log is forced to disk like logCommit(tid); otherwise
+        return at once, and let the flusher thread force the log within
+        the async commit interval.
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
+        @param tid The committing transaction.
+        @param durable Whether to wait for the commit record to be on disk
+    */
+    public void logCommit(TransactionId tid, boolean durable) throws IOException {
+        long seq;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            postAppend();
+            tidToFirstLogRecord.remove(tid.getId());
+            seq = ++commitSeq;
+        }
+        if (durable)
+            waitForForce(seq);
+        else
+            requestForce(seq);
+    }
+
+    /** Make sure the log is forced past the specified commit within the
+        async commit interval, starting the flusher thread if it is not
+        running.
+
+        @param seq The commitSeq of the COMMIT record
+    */
+    private void requestForce(long seq) {
+        synchronized (groupCommit) {
+            if (seq > asyncRequested)
+                asyncRequested = seq;
+            startFlusher();
+            groupCommit.notifyAll();
+        }
+    }
+
+    /** Start the flusher thread if it is not running; the caller must
+        hold groupCommit */
+    private void startFlusher() {
+        if (flusher == null) {
+            flusher = new Thread(new Runnable() {
+                    public void run() {
+                        flushLoop();
+                    }
+                }, "SimpleDb log flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    /** Wait until the log is forced past the specified commit, starting
+        the flusher thread if it is not running.
+
+        @param seq The commitSeq of the COMMIT record to wait for
+        @throws IOException if the force of the commit failed
+    */
+    private void waitForForce(long seq) throws IOException {
+        boolean interrupted = false;
+        synchronized (groupCommit) {
+            if (seq > forceRequested)
+                forceRequested = seq;
+            startFlusher();
+            groupCommit.notifyAll();
+            while (forcedSeq < seq) {
+                if (failedSeq >= seq) {
+                    IOException e = new IOException("could not force the log");
+                    e.initCause(forceError);
+                    throw e;
+                }
+                try {
+                    groupCommit.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true; // the commit must still wait
+                }
             }
         }
+        if (interrupted)
+            Thread.currentThread().interrupt();
     }
 
-    /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+    /** The body of the flusher thread: force the log whenever a commit
+        waits for it, or an async commit waited for the async commit
+        interval since the last force, and exit after FLUSHER_IDLE_TIME
+        without commits */
+    private void flushLoop() {
+        while (true) {
+            synchronized (groupCommit) {
+                long idleSince = System.currentTimeMillis();
+                while (forceRequested <= forcedSeq) {
+                    long now = System.currentTimeMillis();
+                    if (asyncRequested > forcedSeq) {
+                        long due = lastForce + asyncCommitInterval;
+                        if (now >= due)
+                            break;
+                        try {
+                            groupCommit.wait(due - now);
+                        } catch (InterruptedException e) {
+                            // keep serving commits
+                        }
+                        idleSince = System.currentTimeMillis();
+                        continue;
+                    }
+                    long idle = now - idleSince;
+                    if (idle >= FLUSHER_IDLE_TIME) {
+                        flusher = null;
+                        return;
+                    }
+                    try {
+                        groupCommit.wait(FLUSHER_IDLE_TIME - idle);
+                    } catch (InterruptedException e) {
+                        // keep serving commits
+                    }
+                }
+            }
 
-        @param tid The committing transaction.
+            long delay = groupCommitDelay;
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay / 1000, (int) (delay % 1000) * 1000);
+                } catch (InterruptedException e) {
+                    // force now
+                }
+            }
+
+            long target = 0;
+            try {
+                long offset;
+                List<FileChannel> channels;
+                synchronized (this) {
+                    target = commitSeq;
+                    writeBuffer();
+                    offset = fileLength;
+                    channels = segments.unforced();
+                }
+                forceChannels(channels);
+                synchronized (this) {
+                    if (offset > forcedOffset)
+                        forcedOffset = offset;
+                }
+                forced(target);
+            } catch (IOException e) {
+                synchronized (groupCommit) {
+                    forceError = e;
+                    failedSeq = target;
+                    forceRequested = forcedSeq;
+                    groupCommit.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Force the specified segments of the log to disk */
+    private static void forceChannels(List<FileChannel> channels) throws IOException {
+        for (FileChannel ch : channels) {
+            try {
+                ch.force(true);
+            } catch (ClosedChannelException e) {
+                // the segment was removed after a checkpoint, or the log
+                // was shut down, which forced it
+            }
+        }
+    }
+
+    /** Record that every commit up to target is on disk */
+    private void forced(long target) {
+        synchronized (groupCommit) {
+            forceCount++;
+            lastForce = System.currentTimeMillis();
+            if (target > forcedSeq)
+                forcedSeq = target;
+            groupCommit.notifyAll();
+        }
+    }
+
+    /** Set how long, in microseconds, the flusher thread waits for more
+        commits before it forces the log.  With no delay, commits only
+        share a force if they arrive while another force is running.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void setGroupCommitDelay(long micros) {
+        if (micros < 0)
+            throw new IllegalArgumentException("delay must not be negative: " + micros);
+        groupCommitDelay = micros;
+    }
+
+    /** @return how long, in microseconds, the flusher thread waits for
+        more commits before it forces the log */
+    public long getGroupCommitDelay() {
+        return groupCommitDelay;
+    }
+
+    /** Set the interval, in milliseconds, at which the flusher thread
+        forces the log while there are async commits that are not on disk.
+        A crash loses at most the async commits of the last interval.
+    */
+    public void setAsyncCommitInterval(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("interval must not be negative: " + millis);
+        asyncCommitInterval = millis;
+        synchronized (groupCommit) {
+            groupCommit.notifyAll();
+        }
+    }
+
+    /** @return the interval, in milliseconds, at which async commits are
+        forced to disk */
+    public long getAsyncCommitInterval() {
+        return asyncCommitInterval;
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** @return the offset up to which the log is on disk */
+    public synchronized long getDurableLSN() {
+        return forcedOffset;
+    }
+
+    /** @return the offset of the end of the log, including records that
+        are not on disk yet */
+    public long getWrittenLSN() {
+        return logEnd();
+    }
+
+    /** @return the number of times the log was forced to disk */
+    public long getForceCount() {
+        synchronized (groupCommit) {
+            return forceCount;
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -197,7 +643,12 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        logWrite(tid.getId(), before, after);
+    }
+
+    private void logWrite(long tid, Page before, Page after)
+        throws IOException  {
+        Debug.log("WRITE, offset = " + logEnd());
         preAppend();
         /* update record conists of
 
@@ -207,92 +658,289 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid);
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(out,before);
+        writePageData(out,after);
+        out.writeLong(currentOffset);
+        postAppend();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
+    void writePageData(DataOutput out, Page p) throws IOException{
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+        // page class tag
+        // id data (table id and page number)
+        // page data length
+        // page data
+
+        byte tag;
+        if (p.getClass() == SlottedHeapPage.class)
+            tag = SLOTTED_HEAP_PAGE;
+        else if (p.getClass() == HeapPage.class)
+            tag = HEAP_PAGE;
+        else
+            throw new IOException("cannot log pages of " + p.getClass().getName());
+        HeapPageId pid = (HeapPageId) p.getId();
+
+        out.writeByte(tag);
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.pageNumber());
+        byte[] pageData = p.getPageData();
+        out.writeInt(pageData.length);
+        out.write(pageData);
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** Copy a serialized page from in to out, without decoding it */
+    void copyPageData(DataInput in, DataOutput out) throws IOException {
+        out.writeByte(in.readByte());
+        out.writeInt(in.readInt());
+        out.writeInt(in.readInt());
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+        out.writeInt(pageData.length);
+        out.write(pageData);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    Page readPageData(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        HeapPageId pid = new HeapPageId(in.readInt(), in.readInt());
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+
+        switch (tag) {
+        case HEAP_PAGE:
+            return new HeapPage(pid, pageData);
+        case SLOTTED_HEAP_PAGE:
+            return new SlottedHeapPage(pid, pageData);
+        default:
+            throw new IOException("unknown page tag " + tag + " in log");
+        }
+    }
+
+    /** Write a SLOT_UPDATE record for the insertion of t by the specified
+        transaction; t must be on its page already.
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+        @return the offset of the end of the record, which must be on disk
+        before the page of t is written
+    */
+    public long logInsert(TransactionId tid, Tuple t) throws IOException {
+        RecordId rid = t.getRecordId();
+        return logSlotUpdate(tid, (HeapPageId) rid.getPageId(), rid.tupleno(), null, t);
+    }
+
+    /** Write a SLOT_UPDATE record for the deletion of t by the specified
+        transaction.
+
+        @return the offset of the end of the record, which must be on disk
+        before the page of t is written
+    */
+    public long logDelete(TransactionId tid, Tuple t) throws IOException {
+        RecordId rid = t.getRecordId();
+        return logSlotUpdate(tid, (HeapPageId) rid.getPageId(), rid.tupleno(), t, null);
+    }
+
+    /** Write a SLOT_UPDATE record, for a change of the tuple in the
+        specified slot from before to after (null for an empty slot.)
+
+        @return the offset of the end of the record
+    */
+    synchronized long logSlotUpdate(TransactionId tid, HeapPageId pid, int slot,
+                                    Tuple before, Tuple after)
+        throws IOException {
+        return logSlotUpdate(tid.getId(), pid, slot, before, after);
+    }
+
+    private long logSlotUpdate(long tid, HeapPageId pid, int slot,
+                               Tuple before, Tuple after)
+        throws IOException {
+        preAppend();
+        out.writeInt(SLOT_UPDATE_RECORD);
+        out.writeLong(tid);
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.pageNumber());
+        out.writeInt(slot);
+        writeTupleData(out, before);
+        writeTupleData(out, after);
+        out.writeLong(currentOffset);
+        long end = logEnd();
+        postAppend();
+        return end;
+    }
+
+    void writeTupleData(DataOutput out, Tuple t) throws IOException {
+        if (t == null) {
+            out.writeShort(-1);
+            return;
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        int n = t.getTupleDesc().numFields();
+        int size = 0;
+        for (int i = 0; i < n; i++)
+            size += t.varFieldSize(i);
+        byte[] data = new byte[size];
+        int offset = 0;
+        for (int i = 0; i < n; i++)
+            offset = t.writeVarField(i, data, offset);
+        out.writeShort(size);
+        out.write(data);
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /** Read a tuple of the specified table written by writeTupleData, or
+        null for an empty slot */
+    Tuple readTupleData(DataInput in, int tableId) throws IOException {
+        int size = in.readShort();
+        if (size < 0)
+            return null;
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                t.setField(i, new IntField(in.readInt()));
+            } else {
+                byte[] s = new byte[in.readUnsignedShort()];
+                in.readFully(s);
+                t.setField(i, new StringField(new String(s, "ISO-8859-1"), Type.STRING_LEN));
+            }
+        }
+        return t;
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** Copy a tuple from in to out, without decoding it */
+    void copyTupleData(DataInput in, DataOutput out) throws IOException {
+        int size = in.readShort();
+        out.writeShort(size);
+        if (size > 0) {
+            byte[] data = new byte[size];
+            in.readFully(data);
+            out.write(data);
+        }
+    }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+    /** The contents of an UPDATE or SLOT_UPDATE record */
+    private class Update {
+        final long start; // offset of the record
+        final long tid;
+        final PageId pid;
+        final int slot; // -1 for UPDATE records
+        final Tuple before, after;
+        final Page beforePage, afterPage;
+
+        /** Read the rest of a record of the specified type */
+        Update(DataInput in, int type, long tid, long start) throws IOException {
+            this.start = start;
+            this.tid = tid;
+            if (type == SLOT_UPDATE_RECORD) {
+                int tableId = in.readInt();
+                pid = new HeapPageId(tableId, in.readInt());
+                slot = in.readInt();
+                before = readTupleData(in, tableId);
+                after = readTupleData(in, tableId);
+                beforePage = afterPage = null;
+            } else {
+                beforePage = readPageData(in);
+                afterPage = readPageData(in);
+                pid = afterPage.getId();
+                slot = -1;
+                before = after = null;
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        }
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /** A stream over the log file that keeps track of its offset in it */
+    private static class LogInput extends DataInputStream {
+        private static class Counter extends FilterInputStream {
+            long offset;
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            Counter(InputStream in, long offset) {
+                super(in);
+                this.offset = offset;
+            }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0)
+                    offset++;
+                return b;
+            }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0)
+                    offset += n;
+                return n;
+            }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                offset += skipped;
+                return skipped;
+            }
+        }
+
+        LogInput(InputStream in, long offset) {
+            super(new Counter(new BufferedInputStream(in, LOG_BUFFER_SIZE), offset));
+        }
+
+        /** @return the offset in the log of the next byte read */
+        long offset() {
+            return ((Counter) in).offset;
+        }
+    }
+
+    /** @return a stream over the log file from the specified offset; the
+        log buffer must have been written */
+    private LogInput readLog(long offset) throws IOException {
+        return new LogInput(segments.read(offset), offset);
+    }
+
+    /** The contents of a CHECKPOINT record */
+    private static class Checkpoint {
+        final long start; // offset of the record
+        final HashMap<Long, Long> active = new HashMap<Long, Long>(); // first record by tid
+        final HashMap<PageId, Long> dirty = new HashMap<PageId, Long>(); // recLSN by page
+
+        /** Read the rest of a record */
+        Checkpoint(DataInput in, long start) throws IOException {
+            this.start = start;
+            int n = in.readInt();
+            for (int i = 0; i < n; i++)
+                active.put(in.readLong(), in.readLong());
+            n = in.readInt();
+            for (int i = 0; i < n; i++)
+                dirty.put(new HeapPageId(in.readInt(), in.readInt()), in.readLong());
+        }
+
+        /** @return the offset from which the log must be redone */
+        long redoStart() {
+            long min = start;
+            for (long recLSN : dirty.values())
+                min = Math.min(min, recLSN);
+            return min;
         }
-        return newPage;
 
+        /** @return the offset of the first record needed by recovery */
+        long firstNeeded() {
+            long min = redoStart();
+            for (long first : active.values())
+                min = Math.min(min, first);
+            return min;
+        }
+    }
+
+    /** @return the last checkpoint in the log, or null if there is none;
+        the log buffer must have been written */
+    private Checkpoint readCheckpoint() throws IOException {
+        raf.seek(0);
+        long cpLoc = raf.readLong();
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return null;
+        DataInputStream in = readLog(cpLoc);
+        if (in.readInt() != CHECKPOINT_RECORD)
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        in.readLong();
+        return new Checkpoint(in, cpLoc);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,53 +955,63 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        postAppend();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The dirty
+        pages are not written by the checkpoint, but in the background by
+        the page writer of the buffer pool (see the note on fuzzy
+        checkpoints above.)
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        Map<PageId, Long> dirty;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            // pages dirtied after this are updated by records after the
+            // checkpoint (see BufferPool.noteDirty)
+            dirty = Database.getBufferPool().dirtyPages();
+            startCpOffset = logEnd();
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                out.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                out.writeLong(tidToFirstLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            out.writeInt(dirty.size());
+            for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+                out.writeInt(e.getKey().getTableId());
+                out.writeInt(e.getKey().pageNumber());
+                out.writeLong(e.getValue());
             }
+            out.writeLong(currentOffset);
+            postAppend();
+
+            //once the CP is on disk, make sure the CP location in the
+            // master record is updated
+            force();
+            writeMasterRecord(startCpOffset);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
+        Database.getBufferPool().writeBehind(dirty.keySet());
         logTruncate();
     }
 
@@ -361,95 +1019,20 @@ public class LogFile {
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
-        }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
+        writeBuffer();
+        Checkpoint cp = readCheckpoint();
+        if (cp == null)
+            return;
+        long minLogRecord = cp.firstNeeded();
+        if (minLogRecord <= base)
+            return;
+
+        // we can truncate everything before minLogRecord; once the
+        // master record says so, the segments before it are not needed
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord);
+        base = minLogRecord;
+        writeMasterRecord(cp.start);
+        segments.removeBefore(minLogRecord);
         //print();
     }
 
@@ -463,10 +1046,54 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+        // collect the updates of the transaction
+        ArrayList<Update> updates = new ArrayList<Update>();
+        synchronized(this) {
+            preAppend();
+            Long first = tidToFirstLogRecord.get(tid.getId());
+            if (first == null)
+                throw new NoSuchElementException("transaction " + tid.getId() + " is not live");
+
+            writeBuffer();
+            LogInput in = readLog(first);
+            long offset = first;
+            while (offset < fileLength) {
+                int type = in.readInt();
+                long recordTid = in.readLong();
+                if (type == UPDATE_RECORD || type == SLOT_UPDATE_RECORD) {
+                    Update u = new Update(in, type, recordTid, offset);
+                    if (recordTid == tid.getId())
+                        updates.add(u);
+                } else if (type == CHECKPOINT_RECORD) {
+                    new Checkpoint(in, offset);
+                }
+                in.readLong();
+                offset = in.offset();
+            }
+        }
+
+        // and undo them, latest first; the pages are got and latched
+        // outside the monitor of the log, like those of an insert
+        BufferPool bp = Database.getBufferPool();
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            Update u = updates.get(i);
+            if (u.slot < 0) {
+                // the compensation record must be on disk before the
+                // restored image is
+                logWrite(tid, u.afterPage, u.beforePage);
+                force();
+                synchronized (bp) {
+                    Database.getCatalog().getDatabaseFile(u.pid.getTableId()).writePage(u.beforePage);
+                    bp.discardPage(u.pid);
+                }
+                continue;
+            }
+            try {
+                bp.undoSlot(tid, (HeapPageId) u.pid, u.slot, u.before, u.after);
+            } catch (DbException e) {
+                throw (IOException) new IOException("could not roll back " + u.pid).initCause(e);
+            } catch (TransactionAbortedException e) {
+                throw (IOException) new IOException("could not roll back " + u.pid).initCause(e);
             }
         }
     }
@@ -478,6 +1105,7 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+            segments.close();
             raf.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
@@ -493,18 +1121,229 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                buffer.reset();
+                if (raf.length() < MASTER_RECORD_SIZE) {
+                    openSegments(segmentSize);
+                    segments.clear();
+                    base = 0;
+                    writeMasterRecord(NO_CHECKPOINT_ID);
+                }
+                raf.seek(LONG_SIZE);
+                base = raf.readLong();
+                openSegments(raf.readLong());
+                fileLength = Math.max(base, segments.end());
+
+                // start from the last checkpoint: the log before its
+                // smallest recLSN is on disk, and the records of the
+                // transactions active at the checkpoint may need undo
+                LinkedHashMap<Long, Long> losers = new LinkedHashMap<Long, Long>();
+                long end = base; // end of the last complete record
+                Checkpoint cp = readCheckpoint();
+                if (cp != null) {
+                    end = cp.firstNeeded();
+                    losers.putAll(cp.active);
+                }
+
+                // analysis: find the transactions that neither
+                // committed nor aborted, and the pages that may miss
+                // updates: the dirty pages of the checkpoint, and the
+                // pages updated after it
+                HashMap<PageId, Long> dirty = new HashMap<PageId, Long>();
+                if (cp != null)
+                    dirty.putAll(cp.dirty);
+                ArrayList<Update> updates = new ArrayList<Update>();
+                LogInput in = readLog(end);
+                try {
+                    while (end < fileLength) {
+                        long start = end;
+                        int type = in.readInt();
+                        long tid = in.readLong();
+                        Update u = null;
+                        switch (type) {
+                        case BEGIN_RECORD:
+                            losers.put(tid, end);
+                            break;
+                        case COMMIT_RECORD:
+                        case ABORT_RECORD:
+                            losers.remove(tid);
+                            break;
+                        case CHECKPOINT_RECORD:
+                            new Checkpoint(in, start);
+                            break;
+                        case UPDATE_RECORD:
+                        case SLOT_UPDATE_RECORD:
+                            u = new Update(in, type, tid, start);
+                            break;
+                        default:
+                            throw new EOFException("unknown record type " + type);
+                        }
+                        in.readLong();
+                        end = in.offset();
+                        if (u != null) {
+                            if ((cp == null || start >= cp.start) && !dirty.containsKey(u.pid))
+                                dirty.put(u.pid, start);
+                            updates.add(u);
+                        }
+                    }
+                } catch (EOFException e) {
+                    // a partly written record at the end of the log
+                }
+                segments.truncate(end);
+                fileLength = end;
+                currentOffset = end;
+
+                // partition the updates by page, so that each page is
+                // redone and undone by a single thread in log order
+                int n = recoveryThreads;
+                ArrayList<RecoveryPartition> partitions = new ArrayList<RecoveryPartition>();
+                for (int i = 0; i < n; i++)
+                    partitions.add(new RecoveryPartition());
+                for (Update u : updates) {
+                    // pages written after the update have it already
+                    Long recLSN = dirty.get(u.pid);
+                    if (recLSN != null && u.start >= recLSN)
+                        partitions.get(partition(u.pid, n)).redo.add(u);
+                }
+
+                // log the undo of each update of the losers, latest
+                // first, and their end, before any recovered page is
+                // written
+                for (int i = updates.size() - 1; i >= 0; i--) {
+                    Update u = updates.get(i);
+                    // ids of transactions are reused after a restart
+                    Long begin = losers.get(u.tid);
+                    if (begin == null || u.start < begin)
+                        continue;
+                    partitions.get(partition(u.pid, n)).undo.add(u);
+                    if (u.slot >= 0)
+                        logSlotUpdate(u.tid, (HeapPageId) u.pid, u.slot, u.after, u.before);
+                    else
+                        logWrite(u.tid, u.afterPage, u.beforePage);
+                }
+                for (long tid : losers.keySet()) {
+                    preAppend();
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(tid);
+                    out.writeLong(currentOffset);
+                    postAppend();
+                }
+                force();
+
+                // redo and undo the partitions in parallel, and install
+                // the recovered pages
+                ExecutorService workers = Executors.newFixedThreadPool(n);
+                try {
+                    for (Future<Collection<PageId>> f : workers.invokeAll(partitions)) {
+                        for (PageId pid : f.get()) {
+                            Database.getBufferPool().discardPage(pid);
+                            Database.getCatalog().noteModification(pid.getTableId());
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    throw (IOException) new InterruptedIOException("recovery was interrupted").initCause(e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    throw new RuntimeException("recovery failed", e.getCause());
+                } finally {
+                    workers.shutdownNow();
+                }
+                tidToFirstLogRecord.clear();
             }
          }
     }
 
+    /** @return the partition of the updates of the specified page */
+    private static int partition(PageId pid, int partitions) {
+        return (pid.hashCode() & Integer.MAX_VALUE) % partitions;
+    }
+
+    /** The updates of the pages of a partition to redo and undo during
+        recovery; calling it applies them, writes the pages, and returns
+        their ids */
+    private class RecoveryPartition implements Callable<Collection<PageId>> {
+        final ArrayList<Update> redo = new ArrayList<Update>(); // in log order
+        final ArrayList<Update> undo = new ArrayList<Update>(); // latest first
+
+        public Collection<PageId> call() throws IOException {
+            HashMap<PageId, HeapPage> pages = new HashMap<PageId, HeapPage>();
+            HashMap<PageId, Page> images = new HashMap<PageId, Page>();
+            for (Update u : redo)
+                apply(u, false, pages, images);
+            for (Update u : undo)
+                apply(u, true, pages, images);
+
+            ArrayList<PageId> written = new ArrayList<PageId>();
+            for (Page p : images.values()) {
+                Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                written.add(p.getId());
+            }
+            for (HeapPage p : pages.values()) {
+                Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                written.add(p.getId());
+            }
+            return written;
+        }
+    }
+
+    /** Set the number of threads that redo and undo updates during
+        recovery; the updates of a page are always applied by one thread
+        in log order.  Defaults to the number of processors.
+    */
+    public synchronized void setRecoveryThreads(int threads) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("recovery needs a thread: " + threads);
+        recoveryThreads = threads;
+    }
+
+    /** @return the number of threads that apply updates during recovery */
+    public synchronized int getRecoveryThreads() {
+        return recoveryThreads;
+    }
+
+    /** Redo or undo an update on the pages being recovered
+
+        @param pages The pages read for slot updates, by id
+        @param images The full page images of UPDATE records, by id
+    */
+    private void apply(Update u, boolean undo, Map<PageId, HeapPage> pages,
+                       Map<PageId, Page> images) {
+        if (u.slot < 0) {
+            images.put(u.pid, undo ? u.beforePage : u.afterPage);
+            pages.remove(u.pid);
+            return;
+        }
+        HeapPage page = pages.get(u.pid);
+        if (page == null) {
+            Page image = images.remove(u.pid);
+            page = (HeapPage) (image != null ? image
+                : Database.getCatalog().getDatabaseFile(u.pid.getTableId()).readPage(u.pid));
+            pages.put(u.pid, page);
+        }
+        page.setSlot(u.slot, undo ? u.before : u.after);
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        writeBuffer();
+        forceChannels(segments.unforced());
+        forcedOffset = fileLength;
+        forced(commitSeq);
+    }
+
+    /** Force the log to disk, if the part of it up to the specified
+        offset is not on disk yet.  Used to write the log ahead of the
+        pages it describes.
+
+        @param offset The end of the last record that must be on disk
+    */
+    public synchronized void forceTo(long offset) throws IOException {
+        if (offset > forcedOffset)
+            force();
     }
 
 }
@@ -0,0 +1,206 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * LogSegments stores the records of the log in a sequence of segment
+ * files of a fixed size, so that the beginning of the log can be removed
+ * by deleting whole files. The byte at offset lsn of the log is at
+ * position lsn % segmentSize of segment number lsn / segmentSize; segment
+ * n is stored in the file named after the master record of the log
+ * followed by "." and n. Records may span segments.
+ * <p>
+ * Segments that are no longer needed are deleted, or moved to an archive
+ * directory if one was set. LogSegments is not thread safe: it is used
+ * under the lock of its LogFile.
+ *
+ * @see LogFile
+ */
+class LogSegments {
+
+    private final File dir;
+    private final String prefix;
+    private final long segmentSize;
+    private File archiveDir = null;
+
+    /** Open segment files by number */
+    private final TreeMap<Long, RandomAccessFile> open = new TreeMap<Long, RandomAccessFile>();
+    /** Segments written since the last call to unforced() */
+    private final LinkedHashSet<FileChannel> unforced = new LinkedHashSet<FileChannel>();
+
+    /**
+     * @param master the master record of the log, next to which the
+     *            segments are stored
+     * @param segmentSize the size of a segment in bytes
+     */
+    LogSegments(File master, long segmentSize) {
+        File abs = master.getAbsoluteFile();
+        this.dir = abs.getParentFile();
+        this.prefix = abs.getName() + ".";
+        this.segmentSize = segmentSize;
+    }
+
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** Move segments to dir instead of deleting them, or delete them if
+        dir is null */
+    void setArchiveDirectory(File dir) {
+        this.archiveDir = dir;
+    }
+
+    private File file(long segment) {
+        return new File(dir, prefix + segment);
+    }
+
+    /** @return the numbers of the segments on disk, in order */
+    SortedSet<Long> segments() {
+        TreeSet<Long> segments = new TreeSet<Long>();
+        String[] names = dir.list();
+        if (names == null)
+            return segments;
+        for (String name : names) {
+            if (!name.startsWith(prefix))
+                continue;
+            try {
+                segments.add(Long.parseLong(name.substring(prefix.length())));
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+        return segments;
+    }
+
+    /** @return the channel of a segment, or null if it does not exist and
+        create is false */
+    private FileChannel channel(long segment, boolean create) throws IOException {
+        RandomAccessFile raf = open.get(segment);
+        if (raf == null) {
+            File f = file(segment);
+            if (!create && !f.exists())
+                return null;
+            raf = new RandomAccessFile(f, "rw");
+            open.put(segment, raf);
+        }
+        return raf.getChannel();
+    }
+
+    /** Write len bytes of b at offset lsn of the log */
+    void write(byte[] b, int off, int len, long lsn) throws IOException {
+        while (len > 0) {
+            FileChannel ch = channel(lsn / segmentSize, true);
+            long pos = lsn % segmentSize;
+            int n = (int) Math.min(len, segmentSize - pos);
+            ByteBuffer bb = ByteBuffer.wrap(b, off, n);
+            while (bb.hasRemaining())
+                pos += ch.write(bb, pos);
+            unforced.add(ch);
+            off += n;
+            len -= n;
+            lsn += n;
+        }
+    }
+
+    /** @return the channels of the segments written since the last call,
+        which must be forced to make the writes durable */
+    List<FileChannel> unforced() {
+        List<FileChannel> channels = new ArrayList<FileChannel>(unforced);
+        unforced.clear();
+        return channels;
+    }
+
+    /** @return a stream over the log from offset lsn to its end */
+    InputStream read(final long lsn) {
+        return new InputStream() {
+            private long next = lsn;
+
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+                FileChannel ch = channel(next / segmentSize, false);
+                if (ch == null)
+                    return -1;
+                long pos = next % segmentSize;
+                int n = (int) Math.min(len, segmentSize - pos);
+                int r = ch.read(ByteBuffer.wrap(b, off, n), pos);
+                if (r > 0)
+                    next += r;
+                return r;
+            }
+        };
+    }
+
+    /** @return the offset of the end of the log on disk, or -1 if there
+        are no segments */
+    long end() throws IOException {
+        SortedSet<Long> segments = segments();
+        if (segments.isEmpty())
+            return -1;
+        long last = segments.last();
+        return last * segmentSize + file(last).length();
+    }
+
+    /** Remove the log from offset end on, e.g. a partly written record */
+    void truncate(long end) throws IOException {
+        long last = end / segmentSize;
+        for (long segment : segments()) {
+            if (segment > last)
+                remove(segment, false);
+        }
+        FileChannel ch = channel(last, false);
+        if (ch != null)
+            ch.truncate(end % segmentSize);
+    }
+
+    /**
+     * Remove the segments that only hold log before offset lsn, moving
+     * them to the archive directory if there is one.
+     *
+     * @return the number of segments removed
+     */
+    int removeBefore(long lsn) throws IOException {
+        int removed = 0;
+        for (long segment : segments()) {
+            if ((segment + 1) * segmentSize > lsn)
+                break;
+            remove(segment, archiveDir != null);
+            removed++;
+        }
+        return removed;
+    }
+
+    private void remove(long segment, boolean archive) throws IOException {
+        RandomAccessFile raf = open.remove(segment);
+        if (raf != null) {
+            unforced.remove(raf.getChannel());
+            raf.close();
+        }
+        File f = file(segment);
+        boolean done = archive ? f.renameTo(new File(archiveDir, f.getName())) : f.delete();
+        if (!done)
+            throw new IOException("could not " + (archive ? "archive " : "delete ") + f);
+    }
+
+    /** Delete all segments */
+    void clear() throws IOException {
+        for (long segment : segments())
+            remove(segment, false);
+    }
+
+    /** Close the open segment files */
+    void close() throws IOException {
+        for (RandomAccessFile raf : open.values())
+            raf.close();
+        open.clear();
+        unforced.clear();
+    }
+}
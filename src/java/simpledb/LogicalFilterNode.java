@@ -15,6 +15,10 @@ public class LogicalFilterNode {
     
     /* The constant on the right side of the filter */
     public String c;
+
+    /** The index of the query parameter on the right side of the filter
+        instead of a constant, or -1 if there is a constant */
+    public int parameter = -1;
     
     /** The field from t which is in the filter. The pure name, without alias or tablename*/
     public String fieldPureName;
@@ -33,8 +33,14 @@ public class LogicalPlan {
     private boolean hasAgg = false;
     private String aggOp;
     private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields;
+    private Vector<Boolean> oByAsc;
+    private boolean hasLimit = false;
+    private int limit;
+    private int numParameters = 0;
+    /** The predicates of the parameter filters of the last physical plan */
+    private Vector<Predicate> parameters = new Vector<Predicate>();
     private String query;
 //    private Query owner;
 
@@ -47,6 +53,8 @@ public class LogicalPlan {
         tableMap = new HashMap<String,Integer>();
 
         selectList = new Vector<LogicalSelectListNode>();
+        oByFields = new Vector<String>();
+        oByAsc = new Vector<Boolean>();
         this.query = "";
     }
 
@@ -105,6 +113,41 @@ public class LogicalPlan {
         filters.addElement(lf);
     }
 
+    /** Add a new filter comparing a field to the next parameter of the
+     *   query, whose value is bound when the query is executed (see
+     *   {@link PreparedQuery}). Parameters are numbered from 0 in the
+     *   order they are added.
+     *   @param field The name of the over which the filter applies, as
+     *   in {@link #addFilter}
+     *   @param p The predicate for the filter
+     *   @return the index of the parameter
+     *   @throws ParsingException if field is not in one of the tables
+     *   added via {@link #addScan} or if field is ambiguous
+     */
+    public int addParameterFilter(String field, Predicate.Op p) throws ParsingException {
+        field = disambiguateName(field);
+        String table = field.split("[.]")[0];
+
+        LogicalFilterNode lf = new LogicalFilterNode(table, field.split("[.]")[1], p, null);
+        lf.parameter = numParameters++;
+        filters.addElement(lf);
+        return lf.parameter;
+    }
+
+    /** @return the number of parameters of the query, added via {@link #addParameterFilter} */
+    public int numParameters() {
+        return numParameters;
+    }
+
+    /** @return the predicates of the filters on the parameters of the
+     *   query in the last plan made by {@link #physicalPlan}, by parameter
+     *   index. Their operands are placeholders, which must be replaced
+     *   before the plan is executed.
+     */
+    public Vector<Predicate> getParameters() {
+        return parameters;
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -203,19 +246,31 @@ public class LogicalPlan {
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  Calling this
+        several times sorts on several fields, the field added first being the most significant.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.addElement(field);
+        oByAsc.addElement(asc);
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT to the query: at most n tuples of the result are returned.
+        Combined with an ORDER BY, the sort is replaced by a {@link TopN}.
+        @param n the maximum number of tuples to return
+     * @throws ParsingException if n is negative
+    */
+    public void addLimit(int n) throws ParsingException {
+        if (n < 0)
+            throw new ParsingException("LIMIT must not be negative");
+        limit = n;
+        hasLimit = true;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -306,6 +361,8 @@ public class LogicalPlan {
 
         }
 
+        parameters = new Vector<Predicate>();
+        parameters.setSize(numParameters);
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -323,7 +380,9 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
+            if (lf.parameter >= 0) // a placeholder of the right type
+                f = ftyp == Type.INT_TYPE ? new IntField(0) : new StringField("", Type.STRING_LEN);
+            else if (ftyp == Type.INT_TYPE)
                 f = new IntField(new Integer(lf.c).intValue());
             else
                 f = new StringField(lf.c, Type.STRING_LEN);
@@ -338,7 +397,14 @@ public class LogicalPlan {
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            double sel;
+            if (lf.parameter >= 0) {
+                // the plan is used for every value of the parameter
+                parameters.set(lf.parameter, p);
+                sel = s.avgSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p);
+            } else {
+                sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            }
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -475,7 +541,22 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] oByIndexes = new int[oByFields.size()];
+            boolean[] oByAscs = new boolean[oByFields.size()];
+            for (int i = 0; i < oByIndexes.length; i++) {
+                try {
+                    oByIndexes[i] = node.getTupleDesc().fieldNameToIndex(oByFields.elementAt(i));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + oByFields.elementAt(i) + " in ORDER BY");
+                }
+                oByAscs[i] = oByAsc.elementAt(i);
+            }
+            if (hasLimit)
+                node = new TopN(oByIndexes, oByAscs, limit, node);
+            else
+                node = new OrderBy(oByIndexes, oByAscs, node);
+        } else if (hasLimit) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
@@ -1,24 +1,49 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * Tuples are sorted on one or more fields, each ascending or descending.
+ * Sorting uses a bounded amount of memory: tuples are read from the child
+ * into runs of at most <tt>sortPages</tt> pages worth of tuples, whose strings
+ * are copied out of the pages they were read from (see {@link Tuple#detach}).
+ * If the whole input fits in a single run it is sorted in memory; otherwise
+ * each run is sorted and spilled to a {@link TempHeapFile}, and the runs are
+ * k-way merged with a heap as the output is consumed. A merge reads one page
+ * of each of its runs at a time, so at most <tt>sortPages - 1</tt> runs are
+ * merged at once: while there are more, groups of them are merged into
+ * longer runs first. Runs are sorted by a {@link TupleSorter}, in parallel
+ * when they are large.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of pages of tuples an OrderBy keeps in memory. */
+    public static final int DEFAULT_SORT_PAGES = BufferPool.DEFAULT_PAGES;
+
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
+    private int[] orderByFields;
+    private boolean[] asc;
+    private TupleSorter sorter;
     private Iterator<Tuple> it;
-    private boolean asc;
+    private int runCapacity;
+    private int fanIn;
+
+    private ArrayList<TempHeapFile> runs = new ArrayList<TempHeapFile>();
+    private PriorityQueue<RunCursor> merge;
+    private int numRuns;
+    private int mergePasses;
+    private long spillBytes;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -27,61 +52,286 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(orderbyField, asc, child, DEFAULT_SORT_PAGES);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts using at most sortPages pages
+     * worth of tuples in memory.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param sortPages
+     *            the number of pages of tuples held in memory per sorted run.
+     */
+    public OrderBy(int orderbyField, boolean asc, DbIterator child, int sortPages) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child, sortPages);
+    }
+
+    /**
+     * Creates a new OrderBy node sorting on several fields.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each sort field, true if its sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child) {
+        this(orderbyFields, asc, child, DEFAULT_SORT_PAGES);
+    }
+
+    /**
+     * Creates a new OrderBy node sorting on several fields with at most
+     * sortPages pages worth of tuples in memory.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each sort field, true if its sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param sortPages
+     *            the number of pages of tuples held in memory per sorted run.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child, int sortPages) {
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.sorter = new TupleSorter(orderbyFields, asc);
+        int tuplesPerPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        this.runCapacity = Math.max(1, sortPages) * Math.max(1, tuplesPerPage);
+        this.fanIn = Math.max(2, sortPages - 1);
     }
-    
+
     public boolean isASC()
     {
-	return this.asc;
+	return this.asc[0];
     }
-    
+
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
-    
+
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(this.orderByFields[0]);
     }
-    
+
+    /**
+     * @return the indexes of all sort fields, most significant first
+     */
+    public int[] getOrderByFields()
+    {
+        return this.orderByFields.clone();
+    }
+
+    /**
+     * @return for each sort field, true if its sort order is ascending
+     */
+    public boolean[] getAscending()
+    {
+        return this.asc.clone();
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    /**
+     * @return the number of sorted runs spilled to disk by the last open(),
+     *         or 0 if the input was sorted entirely in memory.
+     */
+    public int getNumRuns() {
+        return numRuns;
+    }
+
+    /**
+     * @return the number of passes of the last open() that merged groups of
+     *         runs into longer runs, because there were more runs than could
+     *         be merged at once.
+     */
+    public int getMergePasses() {
+        return mergePasses;
+    }
+
+    /**
+     * @return the number of bytes written to temporary files by the last
+     *         open(), including the runs written by merge passes.
+     */
+    public long getSpillBytes() {
+        return spillBytes;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        deleteRuns();
+        childTups.clear();
+        numRuns = 0;
+        mergePasses = 0;
+        spillBytes = 0;
+
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        // load the tuples in runs of at most runCapacity tuples, spilling
+        // every full run to disk
+        while (child.hasNext()) {
+            if (childTups.size() >= runCapacity)
+                spillRun();
+            childTups.add(child.next().detach());
+        }
+        if (runs.isEmpty()) {
+            sorter.sort(childTups);
+            it = childTups.iterator();
+        } else {
+            if (!childTups.isEmpty())
+                spillRun();
+            while (runs.size() > fanIn)
+                mergePass();
+            startMerge();
+        }
         super.open();
     }
 
+    /** Sort the in-memory run and write it out to a new temporary file. */
+    private void spillRun() throws DbException {
+        sorter.sort(childTups);
+        TempHeapFile run = null;
+        try {
+            run = TempHeapFile.create(td);
+            runs.add(run);
+            for (Tuple t : childTups)
+                run.append(t);
+            run.finish();
+        } catch (IOException e) {
+            throw new DbException("unable to spill sorted run: " + e.getMessage());
+        }
+        numRuns++;
+        spillBytes += run.sizeInBytes();
+        childTups.clear();
+    }
+
+    /** Merge the runs in groups of fanIn runs, replacing each group with
+        the longer run it is merged into. */
+    private void mergePass() throws DbException, TransactionAbortedException {
+        ArrayList<TempHeapFile> merged = new ArrayList<TempHeapFile>();
+        for (int i = 0; i < runs.size(); i += fanIn) {
+            List<TempHeapFile> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+            if (group.size() == 1) {
+                merged.add(group.get(0));
+                continue;
+            }
+            PriorityQueue<RunCursor> queue = mergeQueue(group);
+            TempHeapFile run = null;
+            try {
+                run = TempHeapFile.create(td);
+                merged.add(run);
+                RunCursor c;
+                while ((c = queue.poll()) != null) {
+                    run.append(c.head);
+                    if (c.advance())
+                        queue.add(c);
+                }
+                run.finish();
+            } catch (IOException e) {
+                for (RunCursor c : queue)
+                    c.it.close();
+                // the runs still to merge are deleted by close()
+                for (TempHeapFile r : merged) {
+                    if (!runs.contains(r))
+                        r.delete();
+                }
+                throw new DbException("unable to spill merged run: " + e.getMessage());
+            }
+            spillBytes += run.sizeInBytes();
+            for (TempHeapFile r : group)
+                r.delete();
+        }
+        runs = merged;
+        mergePasses++;
+    }
+
+    /** (Re)start the k-way merge over all spilled runs. */
+    private void startMerge() throws DbException, TransactionAbortedException {
+        closeMerge();
+        merge = mergeQueue(runs);
+    }
+
+    /** @return a heap of cursors over the non-empty runs, ordered by their
+        current tuples */
+    private PriorityQueue<RunCursor> mergeQueue(List<TempHeapFile> runs)
+            throws DbException, TransactionAbortedException {
+        final TupleComparator cmp = new TupleComparator(orderByFields, asc);
+        PriorityQueue<RunCursor> queue = new PriorityQueue<RunCursor>(runs.size(),
+                new Comparator<RunCursor>() {
+                    public int compare(RunCursor c1, RunCursor c2) {
+                        return cmp.compare(c1.head, c2.head);
+                    }
+                });
+        for (TempHeapFile run : runs) {
+            RunCursor c = new RunCursor(run.sequentialIterator());
+            if (c.advance())
+                queue.add(c);
+        }
+        return queue;
+    }
+
+    private void closeMerge() {
+        if (merge != null) {
+            for (RunCursor c : merge)
+                c.it.close();
+        }
+        merge = null;
+    }
+
+    private void deleteRuns() {
+        closeMerge();
+        for (TempHeapFile run : runs)
+            run.delete();
+        runs.clear();
+    }
+
     public void close() {
         super.close();
+        child.close();
+        deleteRuns();
+        childTups.clear();
         it = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (!runs.isEmpty())
+            startMerge();
+        else
+            it = childTups.iterator();
     }
 
     /**
      * Operator.fetchNext implementation. Returns tuples from the child operator
      * in order
-     * 
+     *
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
+        if (merge != null) {
+            RunCursor c = merge.poll();
+            if (c == null)
+                return null;
+            Tuple t = c.head;
+            if (c.advance())
+                merge.add(c);
+            return t;
+        }
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -98,26 +348,25 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
-}
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+    /** The current position of the merge in one spilled run. */
+    private static class RunCursor {
+        final DbFileIterator it;
+        Tuple head;
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
+        RunCursor(DbFileIterator it) throws DbException, TransactionAbortedException {
+            this.it = it;
+            it.open();
+        }
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        /** Move to the next tuple of the run; closes the run when it is exhausted. */
+        boolean advance() throws DbException, TransactionAbortedException {
+            if (it.hasNext()) {
+                head = it.next();
+                return true;
+            }
+            it.close();
+            head = null;
+            return false;
+        }
     }
-    
 }
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -12,6 +14,55 @@ import jline.SimpleCompletor;
 public class Parser {
     static boolean explain = false;
 
+    /** A LIMIT clause ending a statement. ZQL does not understand LIMIT, so it
+        is stripped from the statement text before parsing. */
+    static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+LIMIT\\s+(\\d+)\\s*;\\s*$", Pattern.CASE_INSENSITIVE);
+
+    /** The LIMIT of the statement being processed, or -1 if it has none */
+    private int statementLimit = -1;
+
+    /** True while a statement is parsed by {@link #prepare}, which allows
+        parameters in it */
+    private boolean preparing = false;
+
+    /** The number of subqueries enclosing the expression being parsed */
+    private int subqueryDepth = 0;
+
+    /** Remove the LIMIT clause (if any) from the end of the statement s,
+        remembering its value for the statement handlers. A LIMIT inside a
+        string literal is left alone.
+        @return s without its LIMIT clause
+    */
+    String stripLimit(String s) {
+        statementLimit = -1;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (m.find() && !inStringLiteral(s, m.start())) {
+            statementLimit = Integer.parseInt(m.group(1));
+            return s.substring(0, m.start()) + ";";
+        }
+        return s;
+    }
+
+    /** @return true if position pos of the statement s is inside a quoted
+        string literal ('' being a quote inside one) */
+    private static boolean inStringLiteral(String s, int pos) {
+        boolean quoted = false;
+        for (int i = 0; i < pos; i++) {
+            if (s.charAt(i) == '\'')
+                quoted = !quoted;
+        }
+        return quoted;
+    }
+
+    /** Apply the LIMIT of the statement being processed (if any) to lp. */
+    private void applyLimit(LogicalPlan lp) throws simpledb.ParsingException {
+        if (statementLimit >= 0) {
+            lp.addLimit(statementLimit);
+            statementLimit = -1;
+        }
+    }
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -62,6 +113,21 @@ public class Parser {
             boolean isJoin = false;
             Predicate.Op op = getOp(wx.getOperator());
 
+            if (isParameter(ops.elementAt(1))) {
+                if (!preparing)
+                    throw new simpledb.ParsingException(
+                            "Parameters are only supported in prepared statements.");
+                if (subqueryDepth > 0)
+                    throw new simpledb.ParsingException(
+                            "Parameters are not supported in subqueries.");
+                if (!(ops.elementAt(0) instanceof ZConstant)
+                        || ((ZConstant) ops.elementAt(0)).getType() != ZConstant.COLUMNNAME)
+                    throw new simpledb.ParsingException(
+                            "Parameters can only be compared to fields, as in field op ?.");
+                lp.addParameterFilter(((ZConstant) ops.elementAt(0)).getValue(), op);
+                return;
+            }
+
             boolean op1const = ops.elementAt(0) instanceof ZConstant; // otherwise
                                                                       // is a
                                                                       // Query
@@ -94,6 +160,7 @@ public class Parser {
                 }
 
                 if (!op2const) { // right op is a nested query
+                    subqueryDepth++;
                     try {
                         LogicalPlan sublp = parseQueryLogicalPlan(tid,
                                 (ZQuery) ops.elementAt(1));
@@ -106,6 +173,8 @@ public class Parser {
                     } catch (Zql.ParseException e) {
                         throw new simpledb.ParsingException("Invalid subquery "
                                 + ops.elementAt(1));
+                    } finally {
+                        subqueryDepth--;
                     }
                 } else {
                     tab2field = ((ZConstant) ops.elementAt(1)).getValue();
@@ -132,6 +201,12 @@ public class Parser {
 
     }
 
+    /** @return true if e is a parameter (<tt>?</tt>) of a prepared statement */
+    private static boolean isParameter(ZExp e) {
+        return e instanceof ZExpression && ((ZExpression) e).getOperator().equals("?")
+                && ((ZExpression) e).nbOperands() == 0;
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
@@ -253,19 +328,15 @@ public class Parser {
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
-
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
         }
         return lp;
     }
@@ -278,10 +349,27 @@ public class Parser {
             simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
+        QueryResultCache cache = Database.getQueryResultCache();
+        String sql = null;
+        if (cache.isEnabled()) {
+            sql = PreparedQueryCache.normalize(s.toString());
+            if (statementLimit >= 0)
+                sql += " limit " + statementLimit;
+            DbIterator result = cache.get(tId, sql);
+            if (result != null) {
+                statementLimit = -1;
+                if (explain)
+                    System.out.println("The query result is cached.");
+                query.setPhysicalPlan(result);
+                return query;
+            }
+        }
+
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        applyLimit(lp);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
-        query.setPhysicalPlan(physicalPlan);
+        query.setPhysicalPlan(sql == null ? physicalPlan : cache.wrap(tId, sql, physicalPlan));
         query.setLogicalPlan(lp);
 
         if (physicalPlan != null) {
@@ -387,6 +475,7 @@ public class Parser {
         } else {
             ZQuery zq = (ZQuery) s.getQuery();
             LogicalPlan lp = parseQueryLogicalPlan(tId, zq);
+            applyLimit(lp);
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
@@ -408,6 +497,10 @@ public class Parser {
             throw new simpledb.ParsingException("Unknown table : "
                     + s.getTable());
         }
+        if (statementLimit >= 0) {
+            throw new simpledb.ParsingException(
+                    "LIMIT is only supported in SELECT statements.");
+        }
         String name = s.getTable();
         Query sdbq = new Query(tid);
 
@@ -465,12 +558,13 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                applyLimit(lp);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -484,6 +578,55 @@ public class Parser {
                 "Cannot generate logical plan for expression : " + s);
     }
 
+    /**
+     * Prepare a query with parameters for repeated execution: parse it and
+     * optimize it once, and execute it with different values of the
+     * parameters by {@link PreparedQuery#bind}. A parameter is written
+     * <tt>?</tt>, and may replace the constant of a filter of the form
+     * <tt>field op constant</tt> in the WHERE clause (but not in a
+     * subquery).
+     * <p>
+     * Plans are kept in the {@link Database#getPreparedQueryCache prepared
+     * query cache} when their PreparedQuery is closed, so preparing the same
+     * statement again (up to white space) reuses its plan unless the
+     * statistics of the tables have changed since.
+     *
+     * @param s
+     *            the text of a SELECT statement
+     * @throws simpledb.ParsingException
+     *             if s is not a valid SELECT statement
+     */
+    public PreparedQuery prepare(String s) throws simpledb.ParsingException {
+        String sql = PreparedQueryCache.normalize(s);
+        PreparedQueryCache cache = Database.getPreparedQueryCache();
+        long statsVersion = TableStats.getStatsVersion();
+        PreparedQuery q = cache.take(sql, statsVersion);
+        if (q != null)
+            return q;
+
+        ZqlParser p = new ZqlParser(new ByteArrayInputStream(stripLimit(sql).getBytes()));
+        preparing = true;
+        try {
+            ZStatement stmt = p.readStatement();
+            if (!(stmt instanceof ZQuery))
+                throw new simpledb.ParsingException("Only SELECT statements can be prepared: " + s);
+            // the scans of the plan are bound to a transaction by bind()
+            TransactionId tid = new TransactionId();
+            LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+            applyLimit(lp);
+            DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), explain);
+            return new PreparedQuery(sql, statsVersion, plan, lp.getParameters(), cache);
+        } catch (Zql.ParseException e) {
+            throw new simpledb.ParsingException(
+                    "Invalid SQL expression: \n \t " + e);
+        } catch (IOException e) {
+            throw new simpledb.ParsingException(e);
+        } finally {
+            preparing = false;
+            statementLimit = -1;
+        }
+    }
+
     public void setTransaction(Transaction t) {
         curtrans = t;
     }
@@ -501,9 +644,20 @@ public class Parser {
         }
     }
 
+    /** Read the remaining contents of is as UTF-8 text. */
+    static String readStatementText(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) > 0)
+            bos.write(buf, 0, n);
+        return bos.toString("UTF-8");
+    }
+
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            String text = stripLimit(readStatementText(is));
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(text.getBytes("UTF-8")));
             ZStatement s = p.readStatement();
 
             Query query = null;
@@ -581,11 +735,11 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "order by", "limit" };
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 5) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -595,9 +749,19 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-cache] [-f queryFile]";
+
+    /** Where the statistics of the tables are persisted between runs */
+    protected File statsFile;
 
     protected void shutdown() {
+        if (statsFile != null) {
+            try {
+                TableStats.saveStatistics(statsFile);
+            } catch (IOException e) {
+                System.out.println("Could not save statistics: " + e.getMessage());
+            }
+        }
         System.out.println("Bye");
     }
 
@@ -606,7 +770,8 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        statsFile = new File(argv[0] + ".stats");
+        TableStats.loadStatistics(statsFile);
 
         String queryFile = null;
 
@@ -615,6 +780,9 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-cache")) {
+                    Database.getQueryResultCache().setEnabled(true);
+                    System.out.println("Query result cache enabled.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -1,50 +1,106 @@
 package simpledb;
-import java.util.HashMap;
-import java.util.Set;
 import java.util.Vector;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to join a given set of relations.
+ * <p>
+ * Sets of relations are represented as bitmasks over the relations of the
+ * query (bit i set if relation i is in the set), and the plans are kept in
+ * arrays indexed by mask. A plan is stored as its last join and the set of
+ * relations of the outer (left) input of that join; the inner input is the
+ * rest of the set, and the plans of both inputs are found in the cache
+ * again, down to single relations.
+ * <p>
+ * The plans of different sets are kept in different array elements, so
+ * several threads may add plans concurrently as long as each set is planned
+ * by a single thread, and a plan is only read by other threads after they
+ * synchronize with the thread that added it (for example, by joining the
+ * fork/join tasks that planned the smaller sets).
+ */
 public class PlanCache {
-    HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>> bestOrders= new HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>>();
-    HashMap<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<Set<LogicalJoinNode>,Double>();
-    HashMap<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<Set<LogicalJoinNode>,Integer>();
-    
-    /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
+    final double[] bestCosts;
+    final int[] bestCardinalities;
+    /** Whether a join of the plan is on a primary key */
+    final boolean[] pkeys;
+    final LogicalJoinNode[] lastJoins;
+    /** The relations of the outer input of the last join of each plan */
+    final int[] outers;
+
+    /** Create an empty PlanCache for plans over numRelations relations */
+    PlanCache(int numRelations) {
+        int size = 1 << numRelations;
+        bestCosts = new double[size];
+        bestCardinalities = new int[size];
+        pkeys = new boolean[size];
+        lastJoins = new LogicalJoinNode[size];
+        outers = new int[size];
+        java.util.Arrays.fill(bestCosts, Double.NaN);
+    }
+
+    /** Add a new cost, cardinality and plan for a particular set of relations.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
-        specified join set
-        @param s the set of joins for which a new ordering (plan) is being added
+        specified set
+        @param mask the set of relations for which a new plan is being added
         @param cost the estimated cost of the specified plan
         @param card the estimatied cardinality of the specified plan
-        @param order the ordering of the joins in the plan
+        @param pkey whether the plan joins on a primary key
+        @param lastJoin the last join of the plan, or null for a single relation
+        @param outer the relations of the outer input of lastJoin, a subset of mask
     */
-    void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
-        bestCosts.put(s,cost);
-        bestCardinalities.put(s,card);
-    }
-    
-    /** Find the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best order for
-        @return the best order for s in the cache
+    void addPlan(long mask, double cost, int card, boolean pkey, LogicalJoinNode lastJoin, long outer) {
+        int m = (int) mask;
+        bestCosts[m] = cost;
+        bestCardinalities[m] = card;
+        pkeys[m] = pkey;
+        lastJoins[m] = lastJoin;
+        outers[m] = (int) outer;
+    }
+
+    /** @return true if there is a plan for the specified set of relations */
+    boolean hasPlan(long mask) {
+        return !Double.isNaN(bestCosts[(int) mask]);
+    }
+
+    /** Find the best join order in the cache for the specified set of relations.
+        The joins of both inputs of a join come before it, outer input first.
+        @param mask the set of relations to look up the best order for
+        @return the best order for mask in the cache, or null if there is none
     */
-    Vector<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    Vector<LogicalJoinNode> getOrder(long mask) {
+        if (!hasPlan(mask))
+            return null;
+        Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>();
+        addOrder((int) mask, order);
+        return order;
     }
-    
-    /** Find the cost of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cost for
-        @return the cost of the best order for s in the cache
+
+    private void addOrder(int m, Vector<LogicalJoinNode> order) {
+        if (lastJoins[m] == null)
+            return;
+        addOrder(outers[m], order);
+        addOrder(m & ~outers[m], order);
+        order.add(lastJoins[m]);
+    }
+
+    /** Find the cost of the best plan in the cache for the specified set of relations
+        @param mask the set of relations to look up the best cost for
+        @return the cost of the best plan for mask in the cache
     */
-    double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    double getCost(long mask) {
+        return bestCosts[(int) mask];
     }
-    
-    /** Find the cardinality of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cardinality for
-        @return the cardinality of the best order for s in the cache
+
+    /** Find the cardinality of the best plan in the cache for the specified set of relations
+        @param mask the set of relations to look up the best cardinality for
+        @return the cardinality of the best plan for mask in the cache
     */
-    int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    int getCard(long mask) {
+        return bestCardinalities[(int) mask];
+    }
+
+    /** @return true if the best plan for the specified set of relations
+        joins on a primary key */
+    boolean hasPkey(long mask) {
+        return pkeys[(int) mask];
     }
 }
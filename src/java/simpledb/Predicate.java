@@ -87,6 +87,18 @@ public class Predicate implements Serializable {
     {
         return operand;
     }
+
+    /**
+     * Change the operand that tuples are compared to, e.g. to bind a new
+     * value to a parameter of a prepared query.
+     *
+     * @param operand_
+     *            field value to compare passed in tuples to
+     */
+    public void setOperand(Field operand_)
+    {
+        operand = operand_;
+    }
     
     /**
      * Compares the field number of t specified in the constructor to the
@@ -99,6 +111,8 @@ public class Predicate implements Serializable {
      * @return true if the comparison is true, false otherwise.
      */
     public boolean filter(Tuple t) {
+        if (operand instanceof IntField && t.isInt(fieldNo))
+            return IntField.compare(operator, t.getInt(fieldNo), ((IntField) operand).getValue());
         return t.getField(fieldNo).compare(operator,operand);
     }
 
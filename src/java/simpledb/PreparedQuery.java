@@ -0,0 +1,162 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * A PreparedQuery is a query that was parsed and optimized once, with
+ * parameters (written <tt>?</tt> in the SQL text, as in
+ * <tt>t.f = ?</tt>) in place of some of the constants of its WHERE clause.
+ * It is executed by binding a value to every parameter and calling
+ * {@link #bind}, any number of times.
+ * <p>
+ * PreparedQueries are made by {@link Parser#prepare}, and are kept in the
+ * {@link Database#getPreparedQueryCache prepared query cache} when they are
+ * closed, so preparing the same SQL again reuses the plan, and even its
+ * operators, as long as the statistics it was optimized with are current.
+ * <p>
+ * A PreparedQuery is not thread-safe, and runs one execution at a time:
+ * the query returned by {@link #bind} must be closed before the parameters
+ * are changed or the query is bound again.
+ */
+public class PreparedQuery {
+
+    private final String sql;
+    private final long statsVersion;
+    private final DbIterator plan;
+    private final Predicate[] parameters;
+    private final boolean[] bound;
+    private final ArrayList<SeqScan> scans = new ArrayList<SeqScan>();
+    private final PreparedQueryCache cache;
+    private boolean closed = false;
+
+    /**
+     * Create a PreparedQuery.
+     *
+     * @param sql
+     *            the normalized SQL text of the query
+     * @param statsVersion
+     *            the {@link TableStats#getStatsVersion version} of the
+     *            statistics the plan was optimized with
+     * @param plan
+     *            the physical plan of the query
+     * @param parameters
+     *            the predicates of the filters on each parameter of the plan
+     * @param cache
+     *            the cache to return the query to when it is closed, or null
+     */
+    PreparedQuery(String sql, long statsVersion, DbIterator plan,
+            List<Predicate> parameters, PreparedQueryCache cache) {
+        this.sql = sql;
+        this.statsVersion = statsVersion;
+        this.plan = plan;
+        this.parameters = parameters.toArray(new Predicate[parameters.size()]);
+        this.bound = new boolean[this.parameters.length];
+        this.cache = cache;
+        findScans(plan);
+    }
+
+    private void findScans(DbIterator it) {
+        if (it instanceof SeqScan) {
+            scans.add((SeqScan) it);
+        } else if (it instanceof Operator) {
+            for (DbIterator child : ((Operator) it).getChildren())
+                findScans(child);
+        }
+    }
+
+    /** @return the normalized SQL text of this query */
+    public String getSql() {
+        return sql;
+    }
+
+    /** @return the version of the statistics this query was optimized with */
+    long getStatsVersion() {
+        return statsVersion;
+    }
+
+    /** @return the number of parameters of this query */
+    public int getParameterCount() {
+        return parameters.length;
+    }
+
+    /** @return the type of the value of parameter i */
+    public Type getParameterType(int i) {
+        return parameters[i].getOperand().getType();
+    }
+
+    /**
+     * Bind a value to parameter i, for the following executions of the
+     * query.
+     *
+     * @throws IllegalArgumentException
+     *             if the value is not of the type of the parameter
+     */
+    public void setParameter(int i, Field value) {
+        if (value == null || value.getType() != getParameterType(i))
+            throw new IllegalArgumentException("parameter " + i + " must be of type "
+                    + getParameterType(i) + ": " + value);
+        parameters[i].setOperand(value);
+        bound[i] = true;
+    }
+
+    /** Bind an int value to parameter i */
+    public void setInt(int i, int value) {
+        setParameter(i, new IntField(value));
+    }
+
+    /** Bind a string value to parameter i */
+    public void setString(int i, String value) {
+        setParameter(i, new StringField(value, Type.STRING_LEN));
+    }
+
+    /** @return the TupleDesc of the results of this query */
+    public TupleDesc getOutputTupleDesc() {
+        return plan.getTupleDesc();
+    }
+
+    /**
+     * Get the query to execute with the values bound to the parameters, as
+     * a part of the specified transaction.
+     *
+     * @throws DbException
+     *             if a parameter has no value, or this query is closed
+     */
+    public Query bind(TransactionId tid) throws DbException {
+        if (closed)
+            throw new DbException("prepared query is closed");
+        for (int i = 0; i < bound.length; i++) {
+            if (!bound[i])
+                throw new DbException("no value bound to parameter " + i);
+        }
+        for (SeqScan scan : scans)
+            scan.setTransactionId(tid);
+        return new Query(plan, tid);
+    }
+
+    /**
+     * Close this query, which must not be used afterwards. Its plan is kept
+     * for the next time the same SQL is prepared.
+     */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        if (cache != null)
+            cache.release(new PreparedQuery(this));
+    }
+
+    /** A copy of q that shares its plan, to hand out again from the cache */
+    private PreparedQuery(PreparedQuery q) {
+        sql = q.sql;
+        statsVersion = q.statsVersion;
+        plan = q.plan;
+        parameters = q.parameters;
+        bound = new boolean[parameters.length];
+        cache = q.cache;
+        scans.addAll(q.scans);
+    }
+
+    public String toString() {
+        return "PreparedQuery(" + sql + ")";
+    }
+}
@@ -0,0 +1,154 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * PreparedQueryCache keeps the plans of recently prepared queries, so that
+ * preparing the same SQL again does not parse and optimize it again.
+ * <p>
+ * Plans are found by their normalized SQL text (see {@link #normalize}) and
+ * the {@link TableStats#getStatsVersion version} of the statistics they
+ * were optimized with: a plan made with older statistics is dropped, and
+ * the query optimized again. Up to {@link #getCapacity} statements are
+ * kept, and the least recently used statement is dropped to make room for
+ * another. A plan is only used by one {@link PreparedQuery} at a time, so
+ * several idle plans of a statement may be kept for concurrent executions.
+ *
+ * @Threadsafe
+ */
+public class PreparedQueryCache {
+
+    /** Default number of statements whose plans are kept */
+    public static final int DEFAULT_CAPACITY = 128;
+
+    /** Largest number of idle plans kept for a statement */
+    static final int MAX_IDLE_PLANS = 4;
+
+    /** The idle plans of a statement */
+    private static class Entry {
+        final long statsVersion;
+        final ArrayDeque<PreparedQuery> idle = new ArrayDeque<PreparedQuery>();
+
+        Entry(long statsVersion) {
+            this.statsVersion = statsVersion;
+        }
+    }
+
+    private int capacity = DEFAULT_CAPACITY;
+    private long hits = 0, misses = 0;
+
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > capacity;
+                }
+            };
+
+    /**
+     * Normalize the text of a SQL statement, so that statements that only
+     * differ in white space (outside of string literals) have the same
+     * text: runs of white space become a single space, and the statement
+     * ends with a single ';'.
+     */
+    public static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+                continue;
+            }
+            if (space && !(quote == 0 && c == ';'))
+                sb.append(' ');
+            space = false;
+            if (quote == 0 && (c == '\'' || c == '"'))
+                quote = c;
+            else if (c == quote)
+                quote = 0;
+            sb.append(c);
+        }
+        int end = sb.length();
+        while (end > 0 && sb.charAt(end - 1) == ';')
+            end--;
+        sb.setLength(end);
+        return sb.append(';').toString();
+    }
+
+    /**
+     * Take an idle plan of a statement out of the cache.
+     *
+     * @param sql
+     *            the normalized text of the statement
+     * @param statsVersion
+     *            the current version of the statistics
+     * @return a PreparedQuery for the statement, or null if there is no
+     *         idle plan for it that was made with the current statistics
+     */
+    public synchronized PreparedQuery take(String sql, long statsVersion) {
+        Entry e = entries.get(sql);
+        if (e != null && e.statsVersion != statsVersion) {
+            entries.remove(sql);
+            e = null;
+        }
+        if (e == null || e.idle.isEmpty()) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.idle.pop();
+    }
+
+    /** Return the plan of a closed PreparedQuery to the cache */
+    synchronized void release(PreparedQuery q) {
+        Entry e = entries.get(q.getSql());
+        if (e == null || e.statsVersion < q.getStatsVersion()) {
+            e = new Entry(q.getStatsVersion());
+            entries.put(q.getSql(), e);
+        } else if (e.statsVersion > q.getStatsVersion()) {
+            return; // made with older statistics
+        }
+        if (e.idle.size() < MAX_IDLE_PLANS)
+            e.idle.push(q);
+    }
+
+    /** @return the largest number of statements whose plans are kept */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /** Set the largest number of statements whose plans are kept */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        this.capacity = capacity;
+        Iterator<String> it = entries.keySet().iterator();
+        while (entries.size() > capacity) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /** @return the number of statements whose plans are kept */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return the number of times a plan was found in the cache */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of times a query had to be optimized */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Drop all plans */
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,317 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * QueryResultCache keeps the results of recently executed read-only queries,
+ * so that running the same SELECT again over tables that did not change
+ * returns the stored tuples instead of executing the query.
+ * <p>
+ * Results are found by the normalized text of their query (see
+ * {@link PreparedQueryCache#normalize}), and are only valid while none of
+ * the tables the query read is modified: with every result the cache keeps
+ * the {@link Catalog#getModCount modification counters} of those tables, as
+ * they were when the query started, and drops the result as soon as one of
+ * them changes. A result is only stored if the counters did not change
+ * while the query ran, and no running transaction modified those tables:
+ * it may hold their uncommitted changes, which the transactions that find
+ * it in the cache would read without a lock. A table is also modified
+ * when the transactions that modified it commit or abort.
+ * <p>
+ * The queries of read-only transactions bypass the cache: they read a
+ * {@link Snapshot}, while the counters change when a table is modified,
+ * not when the modification commits.
+ * <p>
+ * The cache holds at most {@link #getCapacity} tuples; the results of the
+ * least recently used queries are dropped to make room for new ones, and
+ * larger results are not stored. The cache is disabled by default.
+ *
+ * @Threadsafe
+ */
+public class QueryResultCache {
+
+    /** Default number of tuples kept by the cache */
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    /** The result of a query, and the versions of the tables it read */
+    private static class Entry {
+        final TupleDesc td;
+        final ArrayList<Tuple> tuples;
+        final int[] tableIds;
+        final long[] modCounts;
+
+        Entry(TupleDesc td, ArrayList<Tuple> tuples, int[] tableIds, long[] modCounts) {
+            this.td = td;
+            this.tuples = tuples;
+            this.tableIds = tableIds;
+            this.modCounts = modCounts;
+        }
+    }
+
+    private volatile boolean enabled = false;
+    private int capacity = DEFAULT_CAPACITY;
+    private int size = 0;
+    private long hits = 0, misses = 0, invalidations = 0, evictions = 0;
+
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /** @return true if query results are cached */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Enable or disable the cache; disabling it drops all results */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled)
+            clear();
+    }
+
+    /** @return the current modification counters of the specified tables */
+    private static long[] modCounts(int[] tableIds) {
+        long[] counts = new long[tableIds.length];
+        for (int i = 0; i < tableIds.length; i++)
+            counts[i] = Database.getCatalog().getModCount(tableIds[i]);
+        return counts;
+    }
+
+    /** @return true if none of the tables read by e changed since it was made */
+    private static boolean isCurrent(Entry e) {
+        try {
+            return Arrays.equals(e.modCounts, modCounts(e.tableIds));
+        } catch (NoSuchElementException ex) {
+            return false; // a table was dropped
+        }
+    }
+
+    /** @return true if a running transaction modified one of the tables
+        read by e */
+    private static boolean isUncommitted(Entry e) {
+        try {
+            for (int tableId : e.tableIds) {
+                if (Database.getCatalog().hasUncommittedChanges(tableId))
+                    return true;
+            }
+            return false;
+        } catch (NoSuchElementException ex) {
+            return true; // a table was dropped
+        }
+    }
+
+    /** @return true if the queries of tid may use the cache */
+    private boolean isCaching(TransactionId tid) {
+        return enabled && Database.getBufferPool().getSnapshot(tid) == null;
+    }
+
+    /**
+     * Look up the result of a query.
+     *
+     * @param tid
+     *            the transaction running the query
+     * @param sql
+     *            the normalized text of the query
+     * @return an iterator over the stored result of the query, or null if
+     *         the cache is disabled, tid is read-only, or the cache has no
+     *         current result for the query
+     */
+    public synchronized DbIterator get(TransactionId tid, String sql) {
+        if (!isCaching(tid))
+            return null;
+        Entry e = entries.get(sql);
+        if (e != null && !isCurrent(e)) {
+            remove(sql);
+            invalidations++;
+            e = null;
+        }
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new TupleIterator(e.td, Collections.unmodifiableList(e.tuples));
+    }
+
+    /**
+     * Wrap the plan of a query, so that its result is stored in this cache
+     * once it has been read to the end.
+     *
+     * @param tid
+     *            the transaction running the query
+     * @param sql
+     *            the normalized text of the query
+     * @param plan
+     *            the physical plan of the query, which must not modify any
+     *            table
+     * @return an iterator that returns the tuples of plan, or plan itself if
+     *         the cache is disabled or tid is read-only
+     */
+    public DbIterator wrap(TransactionId tid, String sql, DbIterator plan) {
+        if (!isCaching(tid))
+            return plan;
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        findTables(plan, ids);
+        int[] tableIds = new int[ids.size()];
+        for (int i = 0; i < tableIds.length; i++)
+            tableIds[i] = ids.get(i);
+        return new CachingIterator(sql, plan, tableIds);
+    }
+
+    private static void findTables(DbIterator it, List<Integer> ids) {
+        if (it instanceof SeqScan) {
+            ids.add(((SeqScan) it).tableId);
+        } else if (it instanceof Operator) {
+            for (DbIterator child : ((Operator) it).getChildren())
+                findTables(child, ids);
+        }
+    }
+
+    /** Store the result of a query read while the tables had modCounts */
+    private synchronized void put(String sql, TupleDesc td, ArrayList<Tuple> tuples,
+            int[] tableIds, long[] modCounts) {
+        if (!enabled || tuples.size() > capacity)
+            return;
+        Entry e = new Entry(td, tuples, tableIds, modCounts);
+        if (!isCurrent(e) || isUncommitted(e))
+            return; // a table changed while the query ran, or may change back
+        remove(sql);
+        entries.put(sql, e);
+        size += tuples.size();
+        evict();
+    }
+
+    private void remove(String sql) {
+        Entry e = entries.remove(sql);
+        if (e != null)
+            size -= e.tuples.size();
+    }
+
+    /** Drop the least recently used results until the cache fits */
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > capacity) {
+            size -= it.next().tuples.size();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /** @return the largest number of tuples kept by the cache */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /** Set the largest number of tuples kept by the cache */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        this.capacity = capacity;
+        evict();
+    }
+
+    /** @return the number of queries whose results are kept */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return the number of tuples kept by the cache */
+    public synchronized int numTuples() {
+        return size;
+    }
+
+    /** @return the number of times a query's result was found in the cache */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of times a query had to be executed */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** @return the number of results dropped because a table changed */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /** @return the number of results dropped to make room for others */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** Drop all results */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * CachingIterator returns the tuples of the plan of a query, and stores
+     * them in the cache when the plan is exhausted.
+     */
+    private class CachingIterator extends Operator {
+
+        private static final long serialVersionUID = 1L;
+        private final String sql;
+        private final int[] tableIds;
+        private DbIterator child;
+        private ArrayList<Tuple> tuples;
+        private long[] modCounts;
+
+        CachingIterator(String sql, DbIterator child, int[] tableIds) {
+            this.sql = sql;
+            this.child = child;
+            this.tableIds = tableIds;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        public void open() throws DbException, NoSuchElementException,
+                TransactionAbortedException {
+            modCounts = modCounts(tableIds);
+            tuples = new ArrayList<Tuple>();
+            child.open();
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+            tuples = null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            modCounts = modCounts(tableIds);
+            tuples = new ArrayList<Tuple>();
+            child.rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (!child.hasNext()) {
+                if (tuples != null)
+                    put(sql, child.getTupleDesc(), tuples, tableIds, modCounts);
+                tuples = null;
+                return null;
+            }
+            Tuple t = child.next();
+            if (tuples != null) {
+                tuples.add(t);
+                if (tuples.size() > getCapacity())
+                    tuples = null; // too large to cache, stop collecting
+            }
+            return t;
+        }
+
+        @Override
+        public DbIterator[] getChildren() {
+            return new DbIterator[] { child };
+        }
+
+        @Override
+        public void setChildren(DbIterator[] children) {
+            child = children[0];
+        }
+    }
+}
@@ -6,7 +6,8 @@ import java.util.*;
 /**
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
- * disk).
+ * disk). A scan of a read-only transaction returns the tuple versions of its
+ * {@link Snapshot}.
  */
 public class SeqScan implements DbIterator {
 
@@ -75,6 +76,18 @@ public class SeqScan implements DbIterator {
         it= Database.getCatalog().getDatabaseFile(tableId).iterator(tId);
     }
 
+    /**
+     * Change the transaction this scan is running as a part of, e.g. to run
+     * a prepared query in another transaction. The scan must be closed.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     */
+    public void setTransactionId(TransactionId tid) {
+        tId = tid;
+        it = Database.getCatalog().getDatabaseFile(tableId).iterator(tId);
+    }
+
     public SeqScan(TransactionId tid, int tableid) {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
@@ -7,6 +7,13 @@ public class SimpleDb {
         // convert a file
         if(args[0].equals("convert")) {
         try {
+            // a trailing "slotted" writes the pages of a slotted HeapFile
+            boolean slotted = args.length > 3 && args[args.length - 1].equals("slotted");
+            if (slotted) {
+                String[] newargs = new String[args.length - 1];
+                System.arraycopy(args, 0, newargs, 0, newargs.length);
+                args = newargs;
+            }
             if (args.length<3 || args.length>5){
                 System.err.println("Unexpected number of arguments to convert ");
                 return;
@@ -44,7 +51,7 @@ public class SimpleDb {
             }
 
             HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
-                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator);
+                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator,slotted);
 
         } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -0,0 +1,258 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * SlottedHeapPage is a HeapPage that stores variable-length records, so that
+ * strings only take as many bytes as they actually have instead of
+ * {@link Type#STRING_LEN}.
+ * <p>
+ * The format of a SlottedHeapPage is a 2-byte count of slot directory
+ * entries, followed by the slot directory, free space, and the records,
+ * which are packed against the end of the page. Each directory entry is the
+ * 2-byte offset and 2-byte length of the record in that slot; an offset of 0
+ * marks an empty slot. In a record, ints take 4 bytes and strings take a
+ * 2-byte length followed by the bytes of the string. All numbers are
+ * big-endian, and a page of all zeroes is a valid empty page.
+ * <p>
+ * Slot numbers never change while a tuple is on the page, so RecordIds stay
+ * valid; records are compacted whenever the page is written out.
+ *
+ * @see HeapFile#isSlotted
+ */
+public class SlottedHeapPage extends HeapPage {
+
+    /** Bytes of the page header (the directory entry count) */
+    static final int HEADER_BYTES = 2;
+    /** Bytes of a slot directory entry */
+    static final int SLOT_BYTES = 4;
+
+    /** Number of directory entries, i.e. one more than the last slot used */
+    private int dirCount;
+    /** Total size of the records of the tuples on this page */
+    private int usedBytes;
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk,
+     * in the format described above.
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        super(id, maxSlots(Database.getCatalog().getTupleDesc(id.getTableId())));
+        int pageSize = BufferPool.getPageSize();
+        if (pageSize > 65536)
+            throw new IOException("slotted pages must be at most 65536 bytes");
+        if (data.length < pageSize)
+            throw new EOFException("page data too short: " + data.length + " bytes");
+
+        // a page written in another format is rejected here rather than
+        // read as garbage: the directory must fit, end on a used slot, and
+        // point past itself at records of the lengths it gives
+        dirCount = readShort(data, 0);
+        if (dirCount > numSlots)
+            throw new IOException("corrupt slot directory on page " + id);
+        int dirEnd = HEADER_BYTES + dirCount * SLOT_BYTES;
+        for (int i = 0; i < dirCount; i++) {
+            int offset = readShort(data, HEADER_BYTES + i * SLOT_BYTES);
+            int length = readShort(data, HEADER_BYTES + i * SLOT_BYTES + 2);
+            if (offset == 0) {
+                if (i == dirCount - 1)
+                    throw new IOException("corrupt slot directory on page " + id);
+                continue;
+            }
+            if (offset < dirEnd || offset + length > pageSize)
+                throw new IOException("corrupt slot " + i + " on page " + id);
+            tuples[i] = readRecord(data, offset, length, i);
+            usedBytes += length;
+        }
+
+        setBeforeImage();
+    }
+
+    /**
+     * @return the largest number of tuples of schema td a page can hold,
+     *         which is the number of tuples of the smallest size
+     */
+    static int maxSlots(TupleDesc td) {
+        return (BufferPool.getPageSize() - HEADER_BYTES) / (SLOT_BYTES + minRecordSize(td));
+    }
+
+    private static int minRecordSize(TupleDesc td) {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++)
+            size += td.getFieldType(i) == Type.INT_TYPE ? 4 : 2;
+        return size;
+    }
+
+    private static int maxRecordSize(TupleDesc td) {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++)
+            size += td.getFieldType(i) == Type.INT_TYPE ? 4 : 2 + Type.STRING_LEN;
+        return size;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static void writeShort(byte[] data, int offset, int v) {
+        data[offset] = (byte) (v >>> 8);
+        data[offset + 1] = (byte) v;
+    }
+
+    private Tuple readRecord(byte[] data, int offset, int length, int slotId) throws IOException {
+        int end = offset + length;
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        t.setArena(data);
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                if (offset + 4 > end)
+                    throw corruptRecord(slotId);
+                t.setInt(j, (readShort(data, offset) << 16) | readShort(data, offset + 2));
+                offset += 4;
+            } else {
+                int len = offset + 2 > end ? -1 : readShort(data, offset);
+                if (len < 0 || len > Type.STRING_LEN)
+                    throw corruptRecord(slotId);
+                t.setArenaString(j, offset + 2, len);
+                offset += 2 + len;
+            }
+        }
+        if (offset != end)
+            throw corruptRecord(slotId);
+        return t;
+    }
+
+    private IOException corruptRecord(int slotId) {
+        return new IOException("corrupt record in slot " + slotId + " on page " + pid);
+    }
+
+    private static int recordSize(Tuple t) {
+        int size = 0;
+        for (int j = 0; j < t.getTupleDesc().numFields(); j++)
+            size += t.varFieldSize(j);
+        return size;
+    }
+
+    @Override
+    protected HeapPage copyOf(byte[] data) throws IOException {
+        return new SlottedHeapPage(pid, data);
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, with
+     * the records of the page compacted at its end.
+     *
+     * @see #SlottedHeapPage
+     */
+    @Override
+    public byte[] getPageData() {
+        byte[] data = createEmptyPageData();
+        writeShort(data, 0, dirCount);
+        int end = data.length;
+        for (int i = 0; i < dirCount; i++) {
+            if (tuples[i] == null)
+                continue;
+            int size = recordSize(tuples[i]);
+            end -= size;
+            int offset = end;
+            for (int j = 0; j < td.numFields(); j++)
+                offset = tuples[i].writeVarField(j, data, offset);
+            writeShort(data, HEADER_BYTES + i * SLOT_BYTES, end);
+            writeShort(data, HEADER_BYTES + i * SLOT_BYTES + 2, size);
+        }
+        return data;
+    }
+
+    /** @return the number of free bytes on this page */
+    private int freeBytes() {
+        return BufferPool.getPageSize() - HEADER_BYTES - dirCount * SLOT_BYTES - usedBytes;
+    }
+
+    /** @return the slot a new tuple goes into, or numSlots if there is none */
+    private int freeSlot() {
+        for (int i = 0; i < dirCount; i++) {
+            if (tuples[i] == null)
+                return i;
+        }
+        return dirCount;
+    }
+
+    @Override
+    public boolean hasRoomFor(Tuple t) {
+        int slot = freeSlot();
+        if (slot >= numSlots)
+            return false;
+        int newEntry = slot == dirCount ? SLOT_BYTES : 0;
+        return recordSize(t) + newEntry <= freeBytes();
+    }
+
+    @Override
+    public void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc())) {
+            throw new DbException("Tuple Desc Mismatch");
+        }
+        if (!hasRoomFor(t)) {
+            throw new DbException("page is full");
+        }
+        int slot = freeSlot();
+        if (slot == dirCount)
+            dirCount++;
+        usedBytes += recordSize(t);
+        tuples[slot] = t;
+        t.setRecordId(new RecordId(this.pid, slot));
+    }
+
+    @Override
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !this.pid.equals(rid.getPageId())) {
+            throw new DbException("WRong Page, tuple not on this page");
+        }
+        int slot = rid.tupleNo;
+        if (!isSlotUsed(slot)) {
+            throw new DbException("Slot Already Empty");
+        }
+        usedBytes -= recordSize(tuples[slot]);
+        tuples[slot] = null;
+        // trailing empty directory entries are dropped
+        while (dirCount > 0 && tuples[dirCount - 1] == null)
+            dirCount--;
+    }
+
+    @Override
+    public void setSlot(int i, Tuple t) {
+        if (tuples[i] != null)
+            usedBytes -= recordSize(tuples[i]);
+        tuples[i] = t;
+        if (t != null) {
+            t.setRecordId(new RecordId(this.pid, i));
+            usedBytes += recordSize(t);
+            dirCount = Math.max(dirCount, i + 1);
+        }
+        while (dirCount > 0 && tuples[dirCount - 1] == null)
+            dirCount--;
+    }
+
+    /**
+     * Returns the number of tuples that can still be inserted into this page
+     * whatever their contents, i.e. the number of tuples of the largest
+     * possible size that fit into its free space. Whether a particular tuple
+     * fits is given by {@link #hasRoomFor}.
+     */
+    @Override
+    public int getNumEmptySlots() {
+        int free = freeBytes() / (SLOT_BYTES + maxRecordSize(td));
+        int live = 0;
+        for (int i = 0; i < dirCount; i++) {
+            if (tuples[i] != null)
+                live++;
+        }
+        return Math.min(free, numSlots - live);
+    }
+
+    @Override
+    public boolean isSlotUsed(int i) {
+        return i < numSlots && tuples[i] != null;
+    }
+}
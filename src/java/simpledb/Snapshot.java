@@ -0,0 +1,54 @@
+package simpledb;
+
+/**
+ * Snapshot is the state of the database a read-only transaction reads:
+ * the changes of the transactions that committed before the snapshot was
+ * taken, and none of the others. Versions of tuples are stamped with the
+ * transactions that created and deleted them (see {@link HeapPage}), and
+ * a snapshot sees a version if it sees the creator and not the deleter.
+ *
+ * @see Transaction#setReadOnly
+ * @Threadsafe
+ */
+public class Snapshot {
+
+    private final TransactionId tid;
+    private final long commitSeq;
+    private final VersionManager versions;
+
+    /**
+     * @param tid the transaction reading the snapshot, or null
+     * @param commitSeq the commit sequence number of the last transaction
+     *            the snapshot sees
+     */
+    Snapshot(TransactionId tid, long commitSeq, VersionManager versions) {
+        this.tid = tid;
+        this.commitSeq = commitSeq;
+        this.versions = versions;
+    }
+
+    /** @return the transaction reading this snapshot, or null */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
+    /** @return the commit sequence number of the last transaction this
+        snapshot sees */
+    public long getCommitSeq() {
+        return commitSeq;
+    }
+
+    /**
+     * @param stamp the transaction that created or deleted a version, or
+     *            null if the version is older than every snapshot
+     * @return true if this snapshot sees the changes of stamp
+     */
+    public boolean sees(TransactionId stamp) {
+        if (stamp == null)
+            return true;
+        if (tid != null && stamp.equals(tid))
+            return true;
+        Long seq = versions.getCommitSeq(stamp);
+        return seq != null && seq <= commitSeq;
+    }
+}
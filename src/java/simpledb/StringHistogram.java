@@ -0,0 +1,121 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A class to represent a histogram over a single String-based field. Strings
+ * are mapped to ints by their first four characters, in a way that preserves
+ * their order, and the ints are kept in a growing {@link IntHistogram}.
+ * Strings with the same prefix are therefore indistinguishable.
+ */
+public class StringHistogram {
+
+    /** Selectivity of a LIKE (substring) predicate, which a histogram of
+        prefixes cannot estimate */
+    static final double LIKE_SELECTIVITY = 0.1;
+
+    final IntHistogram hist;
+
+    private StringHistogram(IntHistogram hist) {
+        this.hist = hist;
+    }
+
+    /**
+     * Create a new StringHistogram with a specified number of buckets.
+     * <p>
+     * Our implementation is written in terms of an IntHistogram by converting
+     * each String to an integer.
+     *
+     * @param buckets
+     *            the number of buckets
+     */
+    public StringHistogram(int buckets) {
+        hist = new IntHistogram(buckets);
+    }
+
+    /**
+     * Convert a string to an integer, with the property that if the return
+     * value(s1) < return value(s2), then s1 < s2
+     */
+    static int stringToInt(String s) {
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            v <<= 8;
+            if (i < s.length())
+                v |= s.charAt(i) & 0xFF;
+        }
+        // compare the prefix bytes as unsigned
+        return v ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * Write this histogram to out, in the format read by {@link #read}.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        hist.write(out);
+    }
+
+    /**
+     * Read a histogram written by {@link #write}.
+     */
+    public static StringHistogram read(DataInputStream in) throws IOException {
+        return new StringHistogram(IntHistogram.read(in));
+    }
+
+    /** Add a new value to the histogram */
+    public void addValue(String s) {
+        hist.addValue(stringToInt(s));
+    }
+
+    /** Remove a value previously added to the histogram */
+    public void removeValue(String s) {
+        hist.removeValue(stringToInt(s));
+    }
+
+    /**
+     * Add all values of another StringHistogram with the same number of
+     * buckets to this one.
+     */
+    public void merge(StringHistogram other) {
+        hist.merge(other.hist);
+    }
+
+    /**
+     * Estimate the selectivity (as a double between 0 and 1) of the specified
+     * predicate over the specified string
+     *
+     * @param op
+     *            The operation being estimated
+     * @param s
+     *            The string to apply op to
+     */
+    public double estimateSelectivity(Predicate.Op op, String s) {
+        if (op == Predicate.Op.LIKE)
+            return hist.getNumValues() == 0 ? 0 : LIKE_SELECTIVITY;
+        return hist.estimateSelectivity(op, stringToInt(s));
+    }
+
+    /**
+     * @return the average selectivity of this histogram.
+     *
+     *         This is not an indispensable method to implement the basic join
+     *         optimization. It may be needed if you want to implement a more
+     *         efficient optimization
+     * */
+    public double avgSelectivity() {
+        return hist.avgSelectivity();
+    }
+
+    /**
+     * @return an estimate of the number of distinct values in this histogram
+     */
+    public int estimateDistinctValues() {
+        return hist.estimateDistinctValues();
+    }
+
+    public String toString() {
+        return "StringHistogram(" + hist + ")";
+    }
+}
@@ -1,13 +1,39 @@
 package simpledb;
 
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
  * query. 
+ * <p>
+ * The statistics of the tables in the {@link #getStatsMap stats map} are
+ * maintained as tuples are inserted and deleted through the BufferPool: the
+ * tuple count, the page count and the histograms are updated for every
+ * tuple. Since histograms cannot narrow their range or rebalance themselves
+ * when values are removed, once a table has changed by more than
+ * {@link #REBUILD_FRACTION} of its tuples its histograms are rebuilt by a
+ * background scan, without blocking the writers.
+ * <p>
+ * The statistics of very large tables can be collected from a random sample
+ * of their pages (see {@link Catalog#setSampleRate}). Counts are then scaled
+ * up by the fraction of the pages read, and the histograms, which only give
+ * fractions of the tuples, are built from the sampled tuples.
  * 
  * This class is not needed in implementing lab1 and lab2.
  */
@@ -15,6 +41,10 @@ public class TableStats {
 
     private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
 
+    /** Incremented whenever statistics are replaced or their histograms
+        rebuilt, so that plans made with older statistics can be recognized */
+    private static final AtomicLong version = new AtomicLong();
+
     static final int IOCOSTPERPAGE = 1000;
 
     public static TableStats getTableStats(String tablename) {
@@ -23,6 +53,15 @@ public class TableStats {
 
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return the version of the statistics of all tables, which changes
+     *         whenever the statistics of a table are replaced or rebuilt
+     */
+    public static long getStatsVersion() {
+        return version.get();
     }
     
     public static void setStatsMap(HashMap<String,TableStats> s)
@@ -31,6 +70,7 @@ public class TableStats {
             java.lang.reflect.Field statsMapF = TableStats.class.getDeclaredField("statsMap");
             statsMapF.setAccessible(true);
             statsMapF.set(null, s);
+            version.incrementAndGet();
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -59,6 +99,282 @@ public class TableStats {
         System.out.println("Done.");
     }
 
+    /**
+     * Update the statistics of a table, if there are any, for a tuple
+     * inserted into it. Called by the BufferPool.
+     */
+    static void tupleInserted(int tableid, Tuple t) {
+        TableStats s = statsOf(tableid);
+        if (s != null)
+            s.addTuple(t);
+    }
+
+    /**
+     * Update the statistics of a table, if there are any, for a tuple
+     * deleted from it. Called by the BufferPool.
+     */
+    static void tupleDeleted(int tableid, Tuple t) {
+        TableStats s = statsOf(tableid);
+        if (s != null)
+            s.removeTuple(t);
+    }
+
+    private static TableStats statsOf(int tableid) {
+        String name;
+        try {
+            name = Database.getCatalog().getTableName(tableid);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        TableStats s = name == null ? null : getTableStats(name);
+        // the stats map may hold statistics of a dropped table of that name
+        return s != null && s.tableid == tableid ? s : null;
+    }
+
+    /** Runs the background rebuilds of histograms, one at a time */
+    private static final ExecutorService rebuilder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "TableStats rebuilder");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /** Wait for the background rebuilds started so far to finish. */
+    static void awaitRebuilds() throws InterruptedException {
+        try {
+            rebuilder.submit(new Runnable() {
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Magic number and version of the statistics file format */
+    private static final int STATS_MAGIC = 0x53444253;
+    private static final int STATS_VERSION = 4;
+
+    /**
+     * Load the statistics of the tables of the catalog from a file written
+     * by {@link #saveStatistics}, and compute the statistics of the tables
+     * that are not in the file or whose data file changed since it was
+     * written. If any table had to be scanned, the file is rewritten.
+     * <p>
+     * Whether a data file changed is decided by its length, its modification
+     * time, and a CRC32 checksum of at most {@link #MIN_SAMPLE_PAGES} of its
+     * pages, which are saved with the statistics of its table; the checksum
+     * catches the changes made within the resolution of the modification
+     * time, without reading more of a large file than a sample of its
+     * statistics would. The modification counters of the catalog, which tell
+     * {@link #isStale} whether the statistics of a running database are
+     * current, cannot be used here: they only count the changes made since
+     * the database started.
+     *
+     * @param statsFile
+     *            the statistics file; it need not exist
+     * @return the number of tables whose statistics were computed
+     */
+    public static int loadStatistics(File statsFile) {
+        Map<String, TableStats> saved = new HashMap<String, TableStats>();
+        if (statsFile.exists()) {
+            try {
+                saved = readStatistics(statsFile);
+            } catch (IOException e) {
+                System.out.println("Ignoring unreadable statistics file " + statsFile + ": " + e.getMessage());
+            }
+        }
+
+        int computed = 0, tables = 0;
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext()) {
+            int tableid = tableIt.next();
+            String name = Database.getCatalog().getTableName(tableid);
+            TableStats s = saved.get(name);
+            tables++;
+            if (s == null || !s.matchesFile()
+                    || s.sampleRate != Database.getCatalog().getSampleRate(tableid)) {
+                s = new TableStats(tableid, IOCOSTPERPAGE);
+                computed++;
+            }
+            setTableStats(name, s);
+        }
+        System.out.println("Loaded table stats (" + computed + " of " + tables
+                + " tables rescanned).");
+        if (computed > 0) {
+            try {
+                saveStatistics(statsFile);
+            } catch (IOException e) {
+                System.out.println("Could not save statistics to " + statsFile + ": " + e.getMessage());
+            }
+        }
+        return computed;
+    }
+
+    /**
+     * Recompute the statistics of the tables of the catalog that are
+     * {@link #isStale stale}, or have none.
+     *
+     * @return the number of tables whose statistics were computed
+     */
+    public static int refreshStaleStatistics() {
+        int computed = 0;
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext()) {
+            int tableid = tableIt.next();
+            String name = Database.getCatalog().getTableName(tableid);
+            TableStats s = getTableStats(name);
+            if (s == null || s.tableid != tableid || s.isStale()) {
+                setTableStats(name, new TableStats(tableid, IOCOSTPERPAGE));
+                computed++;
+            }
+        }
+        return computed;
+    }
+
+    /**
+     * Write the statistics of the tables of the catalog to a file, after
+     * refreshing those that are stale. The file is replaced atomically, so a
+     * crash while saving leaves the previous statistics in place.
+     *
+     * @param statsFile
+     *            the statistics file
+     */
+    public static void saveStatistics(File statsFile) throws IOException {
+        try {
+            // the histograms that drifted are rebuilt in the background
+            // already; wait for them instead of scanning the tables again
+            awaitRebuilds();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        refreshStaleStatistics();
+        File tmp = new File(statsFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            ArrayList<TableStats> all = new ArrayList<TableStats>();
+            Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+            while (tableIt.hasNext()) {
+                TableStats s = getTableStats(Database.getCatalog().getTableName(tableIt.next()));
+                if (s != null)
+                    all.add(s);
+            }
+            out.writeInt(STATS_MAGIC);
+            out.writeInt(STATS_VERSION);
+            out.writeInt(all.size());
+            for (TableStats s : all)
+                s.write(out);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(statsFile)) {
+            statsFile.delete();
+            if (!tmp.renameTo(statsFile))
+                throw new IOException("cannot rename " + tmp + " to " + statsFile);
+        }
+    }
+
+    /**
+     * @return the statistics in statsFile of the tables that are in the
+     *         catalog with the same schema, by table name
+     */
+    private static Map<String, TableStats> readStatistics(File statsFile) throws IOException {
+        Map<String, TableStats> saved = new HashMap<String, TableStats>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(statsFile)));
+        try {
+            if (in.readInt() != STATS_MAGIC || in.readInt() != STATS_VERSION)
+                throw new IOException("not a statistics file");
+            int n = in.readInt();
+            for (int t = 0; t < n; t++) {
+                String name = in.readUTF();
+                long fileLength = in.readLong();
+                long fileModified = in.readLong();
+                long fileChecksum = in.readLong();
+                int ioCostPerPage = in.readInt();
+                Type[] types = new Type[in.readInt()];
+                for (int i = 0; i < types.length; i++) {
+                    int type = in.readInt();
+                    if (type < 0 || type >= Type.values().length)
+                        throw new IOException("invalid field type " + type);
+                    types[i] = Type.values()[type];
+                }
+                int numPages = in.readInt();
+                int numTuples = in.readInt();
+                double sampleRate = in.readDouble();
+                double sampleFraction = in.readDouble();
+                int sampledTuples = in.readInt();
+                Object[] histograms = new Object[types.length];
+                HyperLogLog[] distinct = new HyperLogLog[types.length];
+                for (int i = 0; i < types.length; i++) {
+                    if (types[i] == Type.INT_TYPE)
+                        histograms[i] = IntHistogram.read(in);
+                    else
+                        histograms[i] = StringHistogram.read(in);
+                    distinct[i] = HyperLogLog.read(in);
+                }
+
+                int tableid;
+                try {
+                    tableid = Database.getCatalog().getTableId(name);
+                } catch (NoSuchElementException e) {
+                    continue;
+                }
+                TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+                if (!sameTypes(td, types))
+                    continue;
+                TableStats stats = new TableStats(tableid, ioCostPerPage, td, sampleRate,
+                        fileLength, fileModified, fileChecksum);
+                stats.numPages = numPages;
+                stats.numTuples = numTuples;
+                stats.sampleFraction = sampleFraction;
+                stats.sampledTuples = sampledTuples;
+                stats.histograms = histograms;
+                stats.distinct = distinct;
+                stats.histogramTuples = numTuples;
+                stats.tuplesPerPage = tuplesPerPage(td, numPages, numTuples);
+                saved.put(name, stats);
+            }
+        } finally {
+            in.close();
+        }
+        return saved;
+    }
+
+    private static boolean sameTypes(TupleDesc td, Type[] types) {
+        if (td.numFields() != types.length)
+            return false;
+        for (int i = 0; i < types.length; i++) {
+            if (td.getFieldType(i) != types[i])
+                return false;
+        }
+        return true;
+    }
+
+    private synchronized void write(DataOutputStream out) throws IOException {
+        out.writeUTF(Database.getCatalog().getTableName(tableid));
+        File f = dataFile();
+        out.writeLong(f == null ? -1 : f.length());
+        out.writeLong(f == null ? -1 : f.lastModified());
+        out.writeLong(f == null ? -1 : checksum(f));
+        out.writeInt(ioCostPerPage);
+        out.writeInt(td.numFields());
+        for (int i = 0; i < td.numFields(); i++)
+            out.writeInt(td.getFieldType(i).ordinal());
+        out.writeInt(numPages);
+        out.writeInt(numTuples);
+        out.writeDouble(sampleRate);
+        out.writeDouble(sampleFraction);
+        out.writeInt(sampledTuples);
+        for (int i = 0; i < histograms.length; i++) {
+            if (histograms[i] instanceof IntHistogram)
+                ((IntHistogram) histograms[i]).write(out);
+            else
+                ((StringHistogram) histograms[i]).write(out);
+            distinct[i].write(out);
+        }
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -66,9 +382,65 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /** Number of pages of a HeapFile scanned by one task when collecting
+        statistics */
+    static final int PAGES_PER_TASK = 16;
+
+    /** The histograms of a table are rebuilt once the number of tuples
+        inserted and deleted since they were built exceeds this fraction of
+        the tuples the table had then, or REBUILD_MIN_CHANGES if more */
+    static final double REBUILD_FRACTION = 0.2;
+    static final int REBUILD_MIN_CHANGES = 1000;
+
+    /** Smallest number of pages read when sampling a table */
+    static final int MIN_SAMPLE_PAGES = 32;
+
+    private final int tableid;
+    private final int ioCostPerPage;
+    private final TupleDesc td;
+    private int numPages;
+    private int numTuples;
+    /** The fraction of the pages requested and actually read when the
+        histograms were built, and the number of tuples they were built
+        from */
+    private final double sampleRate;
+    private double sampleFraction;
+    private int sampledTuples;
+    /** Decides which inserted and deleted tuples update the histograms of
+        sampled statistics, so that they keep the same weight as the
+        sampled tuples */
+    private final Random sampler = new Random();
+    /** The average number of tuples per page when the statistics were
+        collected, used to estimate the page count as tuples are inserted */
+    private double tuplesPerPage;
+    /** For each field, its histogram: an IntHistogram for INT_TYPE fields and
+        a StringHistogram for STRING_TYPE fields */
+    private Object[] histograms;
+    /** For each field, a sketch of its distinct values in the sample */
+    private HyperLogLog[] distinct;
+    /** Number of tuples when the histograms were built, and number of
+        tuples inserted and deleted since */
+    private int histogramTuples;
+    private long changes;
+    private boolean rebuilding;
+    private int rebuilds;
+    /** The length, modification time and checksum of the data file when
+        statistics read from a file were saved, or -1 */
+    private final long fileLength, fileModified, fileChecksum;
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
+     * <p>
+     * The statistics are collected in a single scan of the table. The pages
+     * of a HeapFile are scanned by tasks on the
+     * {@link Database#getForkJoinPool shared fork/join pool} that each build
+     * histograms over a range of pages; the histograms of the ranges are then
+     * merged. Pages in the BufferPool are scanned as cached, so changes not
+     * yet written out are seen; the other pages are read directly from disk
+     * without going through the BufferPool.
+     * <p>
+     * The table is sampled at the rate set in the catalog.
      * 
      * @param tableid
      *            The table over which to compute statistics
@@ -77,14 +449,400 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
-        // some code goes here
+        this(tableid, ioCostPerPage, Database.getCatalog().getSampleRate(tableid));
+    }
+
+    /**
+     * Create a new TableStats object from a random sample of the pages of a
+     * table. At least {@link #MIN_SAMPLE_PAGES} pages are read, and tables
+     * that are not HeapFiles are always scanned in full.
+     *
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO.
+     * @param sampleRate
+     *            The fraction of the pages to read, in (0, 1]
+     */
+    public TableStats(int tableid, int ioCostPerPage, double sampleRate) {
+        if (!(sampleRate > 0 && sampleRate <= 1))
+            throw new IllegalArgumentException("sample rate must be in (0, 1]: " + sampleRate);
+        this.tableid = tableid;
+        this.ioCostPerPage = ioCostPerPage;
+        this.sampleRate = sampleRate;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        td = file.getTupleDesc();
+
+        fileLength = fileModified = fileChecksum = -1;
+        Collector c = scan(file, sampleRate);
+        numPages = c.numPages;
+        sampleFraction = c.sampleFraction;
+        sampledTuples = c.numTuples;
+        numTuples = (int) Math.round(c.numTuples / sampleFraction);
+        histograms = c.histograms;
+        distinct = c.distinct;
+        histogramTuples = numTuples;
+        tuplesPerPage = tuplesPerPage(td, numPages, numTuples);
+    }
+
+    /**
+     * @return the histograms of the tuples of a random sample of the pages
+     *         of file, or of all of its tuples if it is not a HeapFile
+     */
+    private static Collector scan(DbFile file, double sampleRate) {
+        TupleDesc td = file.getTupleDesc();
+        if (file instanceof HeapFile) {
+            HeapFile hf = (HeapFile) file;
+            int numPages = hf.numPages();
+            int samplePages = Math.max(MIN_SAMPLE_PAGES, (int) Math.ceil(sampleRate * numPages));
+            int[] pages = null;
+            if (samplePages < numPages) {
+                // the same sample every time, so that plans are reproducible
+                pages = samplePages(numPages, samplePages,
+                        new Random(((long) hf.getId() << 32) ^ numPages));
+            }
+            Collector c = Database.getForkJoinPool().invoke(
+                    new ScanTask(hf, pages, 0, pages == null ? numPages : pages.length));
+            c.numPages = numPages;
+            c.sampleFraction = pages == null ? 1 : (double) pages.length / numPages;
+            return c;
+        }
+        Collector c = new Collector(td);
+        DbFileIterator it = file.iterator(new TransactionId());
+        try {
+            it.open();
+            while (it.hasNext())
+                c.add(it.next());
+        } catch (DbException e) {
+            e.printStackTrace();
+        } catch (TransactionAbortedException e) {
+            e.printStackTrace();
+        } finally {
+            it.close();
+        }
+        int tuplesPerPage = (int) tuplesPerPage(td, 0, 0);
+        c.numPages = (c.numTuples + tuplesPerPage - 1) / tuplesPerPage;
+        return c;
+    }
+
+    /**
+     * @return k distinct page numbers chosen uniformly at random from
+     *         [0, numPages), in increasing order
+     */
+    private static int[] samplePages(int numPages, int k, Random r) {
+        // Floyd's algorithm: k random draws, whatever the size of the table
+        HashSet<Integer> chosen = new HashSet<Integer>();
+        for (int j = numPages - k; j < numPages; j++) {
+            int p = r.nextInt(j + 1);
+            if (!chosen.add(p))
+                chosen.add(j);
+        }
+        int[] pages = new int[k];
+        int i = 0;
+        for (int p : chosen)
+            pages[i++] = p;
+        // read the pages in file order
+        Arrays.sort(pages);
+        return pages;
+    }
+
+    /**
+     * @return the average number of tuples per page of a table, or the
+     *         number of tuples of schema td a full page holds if the table
+     *         is empty
+     */
+    private static double tuplesPerPage(TupleDesc td, int numPages, int numTuples) {
+        if (numPages > 0 && numTuples > 0)
+            return (double) numTuples / numPages;
+        return Math.max(1, (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1));
+    }
+
+    /**
+     * Create a TableStats object for statistics read from a file, which are
+     * then set by the caller.
+     */
+    private TableStats(int tableid, int ioCostPerPage, TupleDesc td, double sampleRate,
+            long fileLength, long fileModified, long fileChecksum) {
+        this.tableid = tableid;
+        this.ioCostPerPage = ioCostPerPage;
+        this.td = td;
+        this.sampleRate = sampleRate;
+        this.fileLength = fileLength;
+        this.fileModified = fileModified;
+        this.fileChecksum = fileChecksum;
+        tuplesPerPage = tuplesPerPage(td, 0, 0);
+    }
+
+    /**
+     * Update these statistics for a tuple inserted into the table.
+     */
+    public synchronized void addTuple(Tuple t) {
+        if (sampled()) {
+            for (int i = 0; i < histograms.length; i++) {
+                if (histograms[i] instanceof IntHistogram) {
+                    if (t.isInt(i)) {
+                        ((IntHistogram) histograms[i]).addValue(t.getInt(i));
+                        distinct[i].addInt(t.getInt(i));
+                    }
+                } else {
+                    Field f = t.getField(i);
+                    if (f instanceof StringField) {
+                        ((StringHistogram) histograms[i]).addValue(((StringField) f).getValue());
+                        distinct[i].addString(((StringField) f).getValue());
+                    }
+                }
+            }
+            sampledTuples++;
+        }
+        numTuples++;
+        // pages are never removed from a table, so the count only grows
+        numPages = Math.max(numPages, (int) Math.ceil(numTuples / tuplesPerPage));
+        changed();
+    }
+
+    /**
+     * Update these statistics for a tuple deleted from the table.
+     */
+    public synchronized void removeTuple(Tuple t) {
+        // a sketch cannot forget values, so distinct counts are not updated
+        if (sampled()) {
+            for (int i = 0; i < histograms.length; i++) {
+                if (histograms[i] instanceof IntHistogram) {
+                    if (t.isInt(i))
+                        ((IntHistogram) histograms[i]).removeValue(t.getInt(i));
+                } else {
+                    Field f = t.getField(i);
+                    if (f instanceof StringField)
+                        ((StringHistogram) histograms[i]).removeValue(((StringField) f).getValue());
+                }
+            }
+            sampledTuples = Math.max(0, sampledTuples - 1);
+        }
+        numTuples = Math.max(0, numTuples - 1);
+        changed();
+    }
+
+    /**
+     * @return true if a tuple inserted or deleted should update the
+     *         histograms, which is the case for a fraction of the tuples
+     *         equal to that of the table that was sampled
+     */
+    private boolean sampled() {
+        return sampleFraction >= 1 || sampler.nextDouble() < sampleFraction;
+    }
+
+    /** Start a rebuild of the histograms if they drifted too far */
+    private void changed() {
+        changes++;
+        if (rebuilding || !drifted())
+            return;
+        rebuilding = true;
+        rebuilder.execute(new Runnable() {
+            public void run() {
+                rebuildHistograms();
+            }
+        });
+    }
+
+    /**
+     * Rebuild the histograms from a scan of the table. The tuple and page
+     * counts are kept, as they are exact; only the histograms, which give
+     * the distribution of the values, are replaced.
+     * <p>
+     * Tuples inserted or deleted during the scan may or may not be seen by
+     * it, so the changes made during the scan count towards the next
+     * rebuild.
+     */
+    void rebuildHistograms() {
+        try {
+            long changesBefore;
+            synchronized (this) {
+                changesBefore = changes;
+            }
+            Collector c = scan(Database.getCatalog().getDatabaseFile(tableid), sampleRate);
+            synchronized (this) {
+                histograms = c.histograms;
+                distinct = c.distinct;
+                sampleFraction = c.sampleFraction;
+                sampledTuples = c.numTuples;
+                histogramTuples = numTuples;
+                numPages = Math.max(numPages, c.numPages);
+                changes -= changesBefore;
+                rebuilds++;
+            }
+            version.incrementAndGet();
+        } catch (RuntimeException e) {
+            // the table was dropped; its statistics are no longer used
+        } finally {
+            synchronized (this) {
+                rebuilding = false;
+            }
+        }
+    }
+
+    /** @return the number of times the histograms were rebuilt */
+    synchronized int getRebuildCount() {
+        return rebuilds;
+    }
+
+    /** @return true if the tuples inserted and deleted since the histograms
+        were built exceed the rebuild threshold */
+    private boolean drifted() {
+        return changes > Math.max(REBUILD_MIN_CHANGES, REBUILD_FRACTION * histogramTuples);
+    }
+
+    /**
+     * @return true if the histograms drifted past the rebuild threshold
+     *         through tuples inserted and deleted since they were built, and
+     *         were not rebuilt yet. The counts are kept exact by every
+     *         insert and delete, so fewer changes do not make the statistics
+     *         stale.
+     */
+    public synchronized boolean isStale() {
+        return drifted();
+    }
+
+    /**
+     * @return true if the data file of the table is a HeapFile whose length,
+     *         modification time and checksum are those saved with these
+     *         statistics
+     */
+    private boolean matchesFile() {
+        if (fileLength < 0)
+            return false;
+        File f = dataFile();
+        return f != null && f.length() == fileLength && f.lastModified() == fileModified
+                && checksum(f) == fileChecksum;
+    }
+
+    /** @return the data file of the table, or null if it is not a HeapFile */
+    private File dataFile() {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        return file instanceof HeapFile ? ((HeapFile) file).getFile() : null;
+    }
+
+    /** @return the CRC32 checksum of at most MIN_SAMPLE_PAGES pages of f,
+        chosen by its length, or -1 if it cannot be read */
+    private static long checksum(File f) {
+        int pageSize = BufferPool.getPageSize();
+        int numPages = (int) ((f.length() + pageSize - 1) / pageSize);
+        int[] pages = null;
+        if (MIN_SAMPLE_PAGES < numPages)
+            pages = samplePages(numPages, MIN_SAMPLE_PAGES, new Random(f.length()));
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[pageSize];
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try {
+                for (int i = 0; i < (pages == null ? numPages : pages.length); i++) {
+                    raf.seek((long) (pages == null ? i : pages[i]) * pageSize);
+                    int n = raf.read(buf);
+                    if (n > 0)
+                        crc.update(buf, 0, n);
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        return crc.getValue();
+    }
+
+    /** The histograms of the tuples of part of a table */
+    private static class Collector {
+        final TupleDesc td;
+        final Object[] histograms;
+        final HyperLogLog[] distinct;
+        int numTuples;
+        int numPages;
+        double sampleFraction = 1;
+
+        Collector(TupleDesc td) {
+            this.td = td;
+            histograms = new Object[td.numFields()];
+            distinct = new HyperLogLog[td.numFields()];
+            for (int i = 0; i < histograms.length; i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE)
+                    histograms[i] = new IntHistogram(NUM_HIST_BINS);
+                else
+                    histograms[i] = new StringHistogram(NUM_HIST_BINS);
+                distinct[i] = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+            }
+        }
+
+        void add(Tuple t) {
+            for (int i = 0; i < histograms.length; i++) {
+                if (histograms[i] instanceof IntHistogram) {
+                    int v = t.getInt(i);
+                    ((IntHistogram) histograms[i]).addValue(v);
+                    distinct[i].addInt(v);
+                } else {
+                    String v = ((StringField) t.getField(i)).getValue();
+                    ((StringHistogram) histograms[i]).addValue(v);
+                    distinct[i].addString(v);
+                }
+            }
+            numTuples++;
+        }
+
+        void merge(Collector other) {
+            for (int i = 0; i < histograms.length; i++) {
+                if (histograms[i] instanceof IntHistogram)
+                    ((IntHistogram) histograms[i]).merge((IntHistogram) other.histograms[i]);
+                else
+                    ((StringHistogram) histograms[i]).merge((StringHistogram) other.histograms[i]);
+                distinct[i].merge(other.distinct[i]);
+            }
+            numTuples += other.numTuples;
+        }
+    }
+
+    /**
+     * Collects the histograms of pages [lo, hi) of a HeapFile, or of the
+     * pages at [lo, hi) of a list of page numbers
+     */
+    private static class ScanTask extends RecursiveTask<Collector> {
+        private static final long serialVersionUID = 1L;
+        private final HeapFile hf;
+        private final int[] pages;
+        private final int lo, hi;
+
+        ScanTask(HeapFile hf, int[] pages, int lo, int hi) {
+            this.hf = hf;
+            this.pages = pages;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected Collector compute() {
+            if (hi - lo > PAGES_PER_TASK) {
+                int mid = (lo + hi) >>> 1;
+                ScanTask left = new ScanTask(hf, pages, lo, mid);
+                left.fork();
+                Collector c = new ScanTask(hf, pages, mid, hi).compute();
+                c.merge(left.join());
+                return c;
+            }
+            Collector c = new Collector(hf.getTupleDesc());
+            for (int i = lo; i < hi; i++) {
+                int p = pages == null ? i : pages[i];
+                HeapPageId pid = new HeapPageId(hf.getId(), p);
+                HeapPage page = (HeapPage) Database.getBufferPool().getCachedPage(pid);
+                if (page == null)
+                    page = (HeapPage) hf.readPage(pid);
+                if (page == null)
+                    continue;
+                Iterator<Tuple> it = page.iterator();
+                while (it.hasNext()) {
+                    // null if a cached page is modified during the scan
+                    Tuple t = it.next();
+                    if (t != null)
+                        c.add(t);
+                }
+            }
+            return c;
+        }
     }
 
     /**
@@ -99,9 +857,8 @@ public class TableStats {
      * 
      * @return The estimated cost of scanning the table.
      */
-    public double estimateScanCost() {
-        // some code goes here
-        return 0;
+    public synchronized double estimateScanCost() {
+        return (double) numPages * ioCostPerPage;
     }
 
     /**
@@ -113,9 +870,8 @@ public class TableStats {
      * @return The estimated cardinality of the scan with the specified
      *         selectivityFactor
      */
-    public int estimateTableCardinality(double selectivityFactor) {
-        // some code goes here
-        return 0;
+    public synchronized int estimateTableCardinality(double selectivityFactor) {
+        return (int) (numTuples * selectivityFactor);
     }
 
     /**
@@ -128,9 +884,24 @@ public class TableStats {
      * tuple, of which we do not know the value of the field, return the
      * expected selectivity. You may estimate this value from the histograms.
      * */
-    public double avgSelectivity(int field, Predicate.Op op) {
-        // some code goes here
-        return 1.0;
+    public synchronized double avgSelectivity(int field, Predicate.Op op) {
+        double eq = histograms[field] instanceof IntHistogram
+                ? ((IntHistogram) histograms[field]).avgSelectivity()
+                : ((StringHistogram) histograms[field]).avgSelectivity();
+        switch (op) {
+        case EQUALS:
+            return eq;
+        case NOT_EQUALS:
+            return 1 - eq;
+        case LESS_THAN:
+        case GREATER_THAN:
+            return (1 - eq) / 2;
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN_OR_EQ:
+            return (1 + eq) / 2;
+        default:
+            return StringHistogram.LIKE_SELECTIVITY;
+        }
     }
 
     /**
@@ -146,17 +917,113 @@ public class TableStats {
      * @return The estimated selectivity (fraction of tuples that satisfy) the
      *         predicate
      */
-    public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
-        // some code goes here
-        return 1.0;
+    public synchronized double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+        if (histograms[field] instanceof IntHistogram)
+            return ((IntHistogram) histograms[field]).estimateSelectivity(op,
+                    ((IntField) constant).getValue());
+        return ((StringHistogram) histograms[field]).estimateSelectivity(op,
+                ((StringField) constant).getValue());
+    }
+
+    /** @return the histogram of a field; strings are histogrammed by prefix */
+    private IntHistogram intHistogram(int field) {
+        if (histograms[field] instanceof IntHistogram)
+            return (IntHistogram) histograms[field];
+        return ((StringHistogram) histograms[field]).hist;
+    }
+
+    /**
+     * Estimate the selectivity of the join predicate
+     * <tt>field op other.otherField</tt>, i.e. the fraction of the pairs of
+     * tuples of the two tables that satisfy it. Values are assumed to be
+     * uniformly distributed within the buckets of the histograms.
+     *
+     * @param field
+     *            The field of this table
+     * @param op
+     *            The join operator
+     * @param other
+     *            The statistics of the other table
+     * @param otherField
+     *            The field of the other table
+     * @return The estimated selectivity of the join predicate
+     */
+    public double estimateJoinSelectivity(int field, Predicate.Op op,
+            TableStats other, int otherField) {
+        if (td.getFieldType(field) != other.td.getFieldType(otherField))
+            return 0;
+        if (op == Predicate.Op.LIKE)
+            return StringHistogram.LIKE_SELECTIVITY;
+        // copies, so that only one of the two tables is locked at a time
+        IntHistogram h1, h2;
+        synchronized (this) {
+            h1 = intHistogram(field).copy();
+        }
+        synchronized (other) {
+            h2 = other.intHistogram(otherField).copy();
+        }
+        // take the values from the histogram with the narrower buckets
+        if (h1.getBucketWidth() > h2.getBucketWidth())
+            return joinSelectivity(h2, reverse(op), h1);
+        return joinSelectivity(h1, op, h2);
+    }
+
+    private static double joinSelectivity(IntHistogram h1, Predicate.Op op, IntHistogram h2) {
+        if (h1.getNumValues() == 0 || h2.getNumValues() == 0)
+            return 0;
+        double sel = 0;
+        for (int b = 0; b < h1.getNumBuckets(); b++) {
+            int count = h1.getBucketCount(b);
+            if (count == 0)
+                continue;
+            int v = (int) Math.round(h1.getBucketMiddle(b));
+            sel += (double) count / h1.getNumValues() * h2.estimateSelectivity(op, v);
+        }
+        return Math.min(1, sel);
+    }
+
+    /** @return op' such that <tt>a op b</tt> iff <tt>b op' a</tt> */
+    private static Predicate.Op reverse(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    /**
+     * @return an estimate of the number of distinct values of a field
+     */
+    public synchronized int estimateDistinctValues(int field) {
+        if (numTuples == 0)
+            return 0;
+        double d = Math.max(1, distinct[field].estimate());
+        if (sampleFraction < 1 && sampledTuples > 0) {
+            // the sample has d distinct values in n tuples. If they were all
+            // different the table would have as many distinct values as
+            // tuples; if they repeat a lot, the sample has probably seen
+            // them all. Interpolate geometrically between the two.
+            double unique = Math.min(1, d / sampledTuples);
+            d *= Math.pow((double) numTuples / sampledTuples, unique);
+        } else if (histograms[field] instanceof IntHistogram) {
+            // a bucket of width w holds at most w distinct ints
+            d = Math.min(d, ((IntHistogram) histograms[field]).estimateDistinctValues());
+        }
+        return (int) Math.min(numTuples, Math.round(d));
     }
 
     /**
      * return the total number of tuples in this table
      * */
-    public int totalTuples() {
-        // some code goes here
-        return 0;
+    public synchronized int totalTuples() {
+        return numTuples;
     }
 
 }
@@ -0,0 +1,176 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * TempHeapFile is a scratch HeapFile used by operators that need to spill
+ * intermediate tuples to disk (for example, the sorted runs of an external
+ * sort). Tuples are appended one page at a time and read back sequentially,
+ * page by page, without going through the BufferPool, so spilling never
+ * evicts pages of real tables.
+ * <p>
+ * The file is registered in the Catalog (HeapPage needs the TupleDesc of its
+ * table) under a generated name, and removed from the Catalog and from disk
+ * by {@link #delete}.
+ */
+public class TempHeapFile extends HeapFile {
+
+    private DataOutputStream out;
+    private HeapPage curPage;
+    private int numPages;
+    private long numTuples;
+
+    private TempHeapFile(File f, TupleDesc td) throws IOException {
+        super(f, td);
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(f), BufferPool.getPageSize()));
+        numPages = 0;
+        numTuples = 0;
+    }
+
+    /**
+     * Creates a new, empty temporary heap file for tuples of the specified
+     * schema and registers it in the Catalog.
+     *
+     * @param td the schema of the tuples that will be stored in the file
+     */
+    public static TempHeapFile create(TupleDesc td) throws IOException {
+        File f = File.createTempFile("simpledb-tmp", ".dat");
+        f.deleteOnExit();
+        TempHeapFile hf = new TempHeapFile(f, td);
+        Database.getCatalog().addTable(hf, "tmp-" + UUID.randomUUID().toString());
+        return hf;
+    }
+
+    /**
+     * Appends a copy of t to the end of this file. The tuple itself is not
+     * modified (in particular, its RecordId is left untouched).
+     */
+    public void append(Tuple t) throws IOException, DbException {
+        if (out == null)
+            throw new DbException("temporary file " + getFile() + " is already finished");
+        if (curPage == null || curPage.getNumEmptySlots() == 0) {
+            writeCurrentPage();
+            curPage = new HeapPage(new HeapPageId(getId(), numPages),
+                    HeapPage.createEmptyPageData());
+        }
+        Tuple copy = new Tuple(tupleDesc);
+        for (int i = 0; i < tupleDesc.numFields(); i++)
+            copy.copyField(i, t, i);
+        curPage.insertTuple(copy);
+        numTuples++;
+    }
+
+    /**
+     * Writes out the last partially filled page and closes the file for
+     * appending. Must be called before the file is read.
+     */
+    public void finish() throws IOException {
+        if (out == null)
+            return;
+        writeCurrentPage();
+        out.close();
+        out = null;
+    }
+
+    private void writeCurrentPage() throws IOException {
+        if (curPage == null)
+            return;
+        out.write(curPage.getPageData(), 0, BufferPool.getPageSize());
+        numPages++;
+        curPage = null;
+    }
+
+    /** @return the number of tuples appended to this file */
+    public long numTuples() {
+        return numTuples;
+    }
+
+    @Override
+    public int numPages() {
+        return numPages;
+    }
+
+    /** @return the number of bytes this file occupies on disk */
+    public long sizeInBytes() {
+        return (long) numPages * BufferPool.getPageSize();
+    }
+
+    /**
+     * Returns an iterator that reads this file sequentially from disk, one
+     * page at a time, bypassing the BufferPool.
+     */
+    public DbFileIterator sequentialIterator() {
+        return new DbFileIterator() {
+
+            private DataInputStream in = null;
+            private int nextPage = 0;
+            private Iterator<Tuple> tupleIt = null;
+
+            public void open() throws DbException {
+                if (out != null)
+                    throw new DbException("temporary file " + getFile() + " is not finished");
+                try {
+                    in = new DataInputStream(new BufferedInputStream(
+                            new FileInputStream(getFile()), BufferPool.getPageSize()));
+                } catch (FileNotFoundException e) {
+                    throw new DbException("temporary file " + getFile() + " disappeared");
+                }
+                nextPage = 0;
+                tupleIt = null;
+            }
+
+            public boolean hasNext() throws DbException {
+                if (in == null)
+                    return false;
+                while (tupleIt == null || !tupleIt.hasNext()) {
+                    if (nextPage >= numPages)
+                        return false;
+                    byte[] data = new byte[BufferPool.getPageSize()];
+                    try {
+                        in.readFully(data);
+                        tupleIt = new HeapPage(new HeapPageId(getId(), nextPage++), data).iterator();
+                    } catch (IOException e) {
+                        throw new DbException("error reading temporary file " + getFile());
+                    }
+                }
+                return true;
+            }
+
+            public Tuple next() throws DbException {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return tupleIt.next();
+            }
+
+            public void rewind() throws DbException {
+                close();
+                open();
+            }
+
+            public void close() {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                in = null;
+                tupleIt = null;
+            }
+        };
+    }
+
+    /** Removes this file from the Catalog and deletes it from disk. */
+    public void delete() {
+        try {
+            finish();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Database.getCatalog().removeTable(getId());
+        getFile().delete();
+    }
+}
@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY ... LIMIT n. Instead of
+ * sorting its whole input it keeps the best n tuples seen so far in a bounded
+ * heap, so it needs O(n) memory and O(input log n) time.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private DbIterator child;
+    private TupleDesc td;
+    private int[] orderByFields;
+    private boolean[] asc;
+    private int limit;
+    private ArrayList<Tuple> topTups = new ArrayList<Tuple>();
+    private Iterator<Tuple> it;
+
+    /**
+     * Creates a new TopN node returning the first limit tuples of the child
+     * in the specified order.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            the maximum number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, limit, child);
+    }
+
+    /**
+     * Creates a new TopN node returning the first limit tuples of the child
+     * in the order of several sort fields.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each sort field, true if its sort order is ascending.
+     * @param limit
+     *            the maximum number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, DbIterator child) {
+        this.child = child;
+        td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.limit = limit;
+    }
+
+    public boolean isASC() {
+        return this.asc[0];
+    }
+
+    public int getOrderByField() {
+        return this.orderByFields[0];
+    }
+
+    public String getOrderFieldName() {
+        return td.getFieldName(this.orderByFields[0]);
+    }
+
+    /**
+     * @return the indexes of all sort fields, most significant first
+     */
+    public int[] getOrderByFields() {
+        return this.orderByFields.clone();
+    }
+
+    /**
+     * @return for each sort field, true if its sort order is ascending
+     */
+    public boolean[] getAscending() {
+        return this.asc.clone();
+    }
+
+    /**
+     * @return the maximum number of tuples this operator returns
+     */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        final TupleComparator cmp = new TupleComparator(orderByFields, asc);
+        // the head of the heap is the worst of the tuples kept so far
+        PriorityQueue<Tuple> heap = new PriorityQueue<Tuple>(Math.max(1, limit),
+                new Comparator<Tuple>() {
+                    public int compare(Tuple t1, Tuple t2) {
+                        return cmp.compare(t2, t1);
+                    }
+                });
+
+        child.open();
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            // the tuples kept are detached, so that they do not keep the
+            // pages they were read from in memory
+            if (heap.size() < limit) {
+                heap.add(t.detach());
+            } else if (limit > 0 && cmp.compare(t, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(t.detach());
+            }
+        }
+
+        topTups.clear();
+        while (!heap.isEmpty())
+            topTups.add(heap.poll());
+        Collections.reverse(topTups);
+        it = topTups.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        topTups.clear();
+        it = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = topTups.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the best tuples of the child
+     * operator in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext()) {
+            return it.next();
+        } else
+            return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -10,6 +10,8 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private volatile boolean asyncCommit = false;
+    private volatile boolean readOnly = false;
 
     public Transaction() {
         tid = new TransactionId();
@@ -18,6 +20,10 @@ public class Transaction {
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            Database.getBufferPool().takeSnapshot(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,6 +35,41 @@ public class Transaction {
         return tid;
     }
 
+    /**
+     * Make commit() return as soon as the COMMIT record is in the log
+     * buffer, without waiting for it to be forced to disk. The log is
+     * forced in the background within the {@link
+     * LogFile#setAsyncCommitInterval async commit interval}, so a crash
+     * may roll back a transaction that committed asynchronously within
+     * that interval.
+     */
+    public void setAsyncCommit(boolean async) {
+        asyncCommit = async;
+    }
+
+    /** @return true if commit() does not wait for the log to be forced */
+    public boolean isAsyncCommit() {
+        return asyncCommit;
+    }
+
+    /**
+     * Make this transaction read-only. A read-only transaction reads a
+     * {@link Snapshot} of the database taken by start(): it sees the
+     * changes of the transactions that committed before it started, takes
+     * no locks, so that it never waits for writers nor makes them wait,
+     * and writes nothing to the log. Must be called before start().
+     */
+    public void setReadOnly(boolean readOnly) {
+        if (started)
+            throw new IllegalStateException("transaction already started");
+        this.readOnly = readOnly;
+    }
+
+    /** @return true if this transaction reads a snapshot without locks */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     /** Finish the transaction */
     public void commit() throws IOException {
         transactionComplete(false);
@@ -44,12 +85,14 @@ public class Transaction {
 
         if (started) {
             //write commit / abort records
-            if (abort) {
+            if (readOnly) {
+                // nothing to log or roll back
+            } else if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
+                // the dirty pages of the transaction are not written out
+                // (NO FORCE): its log records are enough to redo them
+                Database.getLogFile().logCommit(tid, !asyncCommit);
             }
 
             try {
@@ -1,32 +1,56 @@
 package simpledb;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Iterator;
 
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * Internally a tuple does not keep one Field object per field. Each field is
+ * a long in a single array, whose top two bits tell what it holds:
+ * <ul>
+ * <li>an int value, stored inline;</li>
+ * <li>a string stored in a shared byte arena -- the data of the page the
+ * tuple was read from -- as the offset and length of its bytes;</li>
+ * <li>a reference to a boxed Field, for strings set through
+ * {@link #setField}.</li>
+ * </ul>
+ * Field objects are only created when {@link #getField} is called; operators
+ * that only need int values use {@link #getInt}, and operators that build
+ * tuples from other tuples use {@link #copyField}, neither of which allocates.
  */
 public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    private static final int KIND_SHIFT = 62;
+    private static final long UNSET = 0;
+    private static final long INT = 1L << KIND_SHIFT;
+    private static final long ARENA = 2L << KIND_SHIFT;
+    private static final long BOXED = 3L << KIND_SHIFT;
+    private static final long KIND_MASK = 3L << KIND_SHIFT;
+
     private TupleDesc td;
     private RecordId rid;
-    private Field[] fields;
+    private long[] values;
+    private byte[] arena;
+    private Field[] boxed;
 
     /**
      * Create a new tuple with the specified schema (type).
-     * 
+     *
      * @param tDesc
      *            the schema of this tuple. It must be a valid TupleDesc
      *            instance with at least one field.
      */
     public Tuple(TupleDesc tDesc) {
         td = tDesc;
-        fields = new Field[td.numFields()];
+        values = new long[td.numFields()];
     }
 
     /**
@@ -46,7 +70,7 @@ public class Tuple implements Serializable {
 
     /**
      * Set the RecordId information for this tuple.
-     * 
+     *
      * @param recordid
      *            the new RecordId for this tuple.
      */
@@ -56,58 +80,275 @@ public class Tuple implements Serializable {
 
     /**
      * Change the value of the ith field of this tuple.
-     * 
+     *
      * @param i
      *            index of the field to change. It must be a valid index.
      * @param f
      *            new value for the field.
      */
     public void setField(int i, Field f) {
-        fields[i] = f;
+        if (f == null) {
+            values[i] = UNSET;
+        } else if (f instanceof IntField) {
+            setInt(i, ((IntField) f).getValue());
+        } else {
+            if (boxed == null)
+                boxed = new Field[values.length];
+            boxed[i] = f;
+            values[i] = BOXED;
+        }
+    }
+
+    /**
+     * Change the value of the ith field of this tuple to an int.
+     *
+     * @param i
+     *            index of the field to change. It must be a valid index.
+     * @param v
+     *            new value for the field.
+     */
+    public void setInt(int i, int v) {
+        values[i] = INT | (v & 0xFFFFFFFFL);
     }
 
     /**
      * @return the value of the ith field, or null if it has not been set.
-     * 
+     *
      * @param i
      *            field index to return. Must be a valid index.
      */
     public Field getField(int i){
-        return fields[i];
+        long v = values[i];
+        switch ((int) (v >>> KIND_SHIFT)) {
+        case 1:
+            return new IntField((int) v);
+        case 2:
+            // not cached: tuples of cached pages are shared between threads
+            return new StringField(new String(arena, arenaOffset(v), arenaLength(v)),
+                    Type.STRING_LEN);
+        case 3:
+            return boxed[i];
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the ith field is set to an int value
+     *
+     * @param i
+     *            field index. Must be a valid index.
+     */
+    public boolean isInt(int i) {
+        return (values[i] & KIND_MASK) == INT;
+    }
+
+    /**
+     * Returns the value of an int field without creating a Field object.
+     *
+     * @param i
+     *            field index to return. Must be the index of an int field.
+     */
+    public int getInt(int i) {
+        long v = values[i];
+        if ((v & KIND_MASK) == INT)
+            return (int) v;
+        return ((IntField) getField(i)).getValue();
+    }
+
+    /**
+     * Set the ith field of this tuple to the value of a field of another
+     * tuple. Unlike setField(i, src.getField(srcIndex)), this does not create
+     * a Field object for int fields, nor for string fields of a tuple read
+     * from the same page.
+     *
+     * @param i
+     *            index of the field to change. It must be a valid index.
+     * @param src
+     *            the tuple to copy from
+     * @param srcIndex
+     *            index of the field of src to copy
+     */
+    public void copyField(int i, Tuple src, int srcIndex) {
+        long v = src.values[srcIndex];
+        long kind = v & KIND_MASK;
+        if (kind == INT || kind == UNSET) {
+            values[i] = v;
+        } else if (kind == ARENA && (arena == null || arena == src.arena)) {
+            arena = src.arena;
+            values[i] = v;
+        } else if (kind == BOXED) {
+            setField(i, src.boxed[srcIndex]);
+        } else {
+            setField(i, src.getField(srcIndex));
+        }
+    }
+
+    /**
+     * @return this tuple if none of its fields refers to the data of the page
+     *         it was read from, or else a copy of it whose strings are copied
+     *         out of that data, so that keeping the copy does not keep the
+     *         whole page in memory
+     */
+    public Tuple detach() {
+        if (arena == null)
+            return this;
+        Tuple copy = new Tuple(td);
+        copy.rid = rid;
+        for (int i = 0; i < values.length; i++) {
+            if ((values[i] & KIND_MASK) == ARENA)
+                copy.setField(i, getField(i));
+            else
+                copy.copyField(i, this, i);
+        }
+        return copy;
+    }
+
+    /**
+     * Make the string fields of this tuple refer to bytes of data, which
+     * must not be modified afterwards. Used when reading tuples from a page.
+     */
+    void setArena(byte[] data) {
+        arena = data;
+    }
+
+    /**
+     * Set the ith field to the string stored in length bytes at offset of
+     * the arena of this tuple.
+     */
+    void setArenaString(int i, int offset, int length) {
+        values[i] = ARENA | ((long) offset << 32) | length;
+    }
+
+    private static int arenaOffset(long v) {
+        return (int) ((v & ~KIND_MASK) >>> 32);
+    }
+
+    private static int arenaLength(long v) {
+        return (int) v;
+    }
+
+    /**
+     * Write the ith field in the format of {@link Field#serialize}, without
+     * creating a Field object for it.
+     *
+     * @param i
+     *            field index to write. Must be a valid index of a set field.
+     * @param dos
+     *            where the field is written
+     */
+    public void serializeField(int i, DataOutputStream dos) throws IOException {
+        long v = values[i];
+        long kind = v & KIND_MASK;
+        if (kind == INT) {
+            dos.writeInt((int) v);
+        } else if (kind == ARENA) {
+            int len = arenaLength(v);
+            dos.writeInt(len);
+            dos.write(arena, arenaOffset(v), len);
+            for (int pad = len; pad < Type.STRING_LEN; pad++)
+                dos.write((byte) 0);
+        } else {
+            getField(i).serialize(dos);
+        }
+    }
+
+    /**
+     * @return the number of bytes {@link #writeVarField} writes for the ith
+     *         field
+     */
+    int varFieldSize(int i) {
+        long v = values[i];
+        long kind = v & KIND_MASK;
+        if (kind == INT)
+            return 4;
+        if (kind == ARENA)
+            return 2 + arenaLength(v);
+        Field f = getField(i);
+        if (f instanceof IntField)
+            return 4;
+        return 2 + Math.min(((StringField) f).getValue().length(), Type.STRING_LEN);
+    }
+
+    /**
+     * Write the ith field in variable-length format: ints as 4 bytes, strings
+     * as a 2-byte length followed by only the bytes of the string.
+     *
+     * @param dest
+     *            where the field is written
+     * @param offset
+     *            the offset in dest to write at
+     * @return the offset just past the field written
+     */
+    int writeVarField(int i, byte[] dest, int offset) {
+        long v = values[i];
+        long kind = v & KIND_MASK;
+        if (kind == INT || (kind == BOXED && boxed[i] instanceof IntField)) {
+            int iv = getInt(i);
+            dest[offset++] = (byte) (iv >>> 24);
+            dest[offset++] = (byte) (iv >>> 16);
+            dest[offset++] = (byte) (iv >>> 8);
+            dest[offset++] = (byte) iv;
+            return offset;
+        }
+        if (kind == ARENA) {
+            int len = arenaLength(v);
+            dest[offset++] = (byte) (len >>> 8);
+            dest[offset++] = (byte) len;
+            System.arraycopy(arena, arenaOffset(v), dest, offset, len);
+            return offset + len;
+        }
+        // same bytes as StringField.serialize
+        String s = ((StringField) getField(i)).getValue();
+        int len = Math.min(s.length(), Type.STRING_LEN);
+        dest[offset++] = (byte) (len >>> 8);
+        dest[offset++] = (byte) len;
+        for (int c = 0; c < len; c++)
+            dest[offset++] = (byte) s.charAt(c);
+        return offset;
     }
 
     /**
      * Returns the contents of this Tuple as a string. Note that to pass the
      * system tests, the format needs to be as follows:
-     * 
+     *
      * column1\tcolumn2\tcolumn3\t...\tcolumnN\n
-     * 
+     *
      * where \t is any whitespace, except newline, and \n is a newline
      */
     public String toString() {
         StringBuffer sBuf = new StringBuffer();
-        for (int i = 0; i < fields.length; i++) {
-            sBuf.append(fields[i].toString() + " ");
+        for (int i = 0; i < values.length; i++) {
+            if (isInt(i))
+                sBuf.append((int) values[i]);
+            else
+                sBuf.append(getField(i).toString());
+            sBuf.append(' ');
         }
         sBuf.append('\n');
         return sBuf.toString();
     }
-    
+
     /**
      * @return
      *        An iterator which iterates over all the fields of this tuple
      * */
     public Iterator<Field> fields()
     {
-        return Arrays.asList(fields).iterator();
+        ArrayList<Field> fields = new ArrayList<Field>(values.length);
+        for (int i = 0; i < values.length; i++)
+            fields.add(getField(i));
+        return fields.iterator();
     }
-    
+
     /**
      * reset the TupleDesc of thi tuple
      * */
     public void resetTupleDesc(TupleDesc tupleDesc)
     {
         td = tupleDesc;
-        fields = new Field[td.getSize()];
+        values = new long[td.numFields()];
+        arena = null;
+        boxed = null;
     }
 }
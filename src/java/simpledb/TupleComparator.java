@@ -0,0 +1,49 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * Compares tuples on one or more sort fields. Field values are compared
+ * directly rather than through {@link Field#compare}, which would need two
+ * virtual calls (EQUALS, then GREATER_THAN) per field.
+ */
+class TupleComparator implements Comparator<Tuple> {
+    int[] fields;
+    boolean[] asc;
+
+    public TupleComparator(int field, boolean asc) {
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    public TupleComparator(int[] fields, boolean[] asc) {
+        this.fields = fields;
+        this.asc = asc;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        for (int i = 0; i < fields.length; i++) {
+            int f = fields[i];
+            int c;
+            if (o1.isInt(f) && o2.isInt(f)) {
+                int v1 = o1.getInt(f), v2 = o2.getInt(f);
+                c = v1 < v2 ? -1 : (v1 == v2 ? 0 : 1);
+            } else {
+                c = compareFields(o1.getField(f), o2.getField(f));
+            }
+            if (c != 0)
+                return asc[i] ? c : -c;
+        }
+        return 0;
+    }
+
+    /** Compare two fields of the same type in ascending order. */
+    static int compareFields(Field f1, Field f2) {
+        if (f1 instanceof IntField) {
+            int v1 = ((IntField) f1).getValue();
+            int v2 = ((IntField) f2).getValue();
+            return v1 < v2 ? -1 : (v1 == v2 ? 0 : 1);
+        }
+        return ((StringField) f1).getValue().compareTo(((StringField) f2).getValue());
+    }
+
+}
@@ -0,0 +1,214 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * TupleSorter sorts lists of tuples on one or more key fields.
+ * <p>
+ * Instead of comparing Field objects, every tuple is first given a normalized
+ * binary sort key: the key fields are encoded into bytes whose unsigned
+ * lexicographic order is the sort order, and the bytes are packed into longs
+ * so most comparisons are a couple of primitive long compares.
+ * <ul>
+ * <li>ints are stored big-endian with the sign bit flipped;</li>
+ * <li>strings are stored as their first {@link #STRING_PREFIX_CHARS} chars,
+ * zero padded, followed by a length byte. A string longer than the prefix
+ * ends the key, since the fields after it cannot be compared until the
+ * strings are known to be equal;</li>
+ * <li>the bytes of descending keys are inverted.</li>
+ * </ul>
+ * Tuples whose keys are equal are compared with a {@link TupleComparator}, so
+ * the result is always exact.
+ * <p>
+ * Large inputs are sorted with a parallel merge sort on the
+ * {@link Database#getForkJoinPool shared fork/join pool}; the keys are built
+ * by the leaf tasks, so their construction is parallel as well.
+ */
+public class TupleSorter {
+
+    /** Number of chars of a string stored in its sort key */
+    public static final int STRING_PREFIX_CHARS = 8;
+
+    /** Inputs of at most this many tuples are sorted sequentially */
+    static final int PARALLEL_THRESHOLD = 8192;
+
+    private final int[] fields;
+    private final boolean[] asc;
+    private final TupleComparator fallback;
+    private final Comparator<Entry> entryComparator;
+
+    /**
+     * Creates a sorter on the specified key fields.
+     *
+     * @param fields
+     *            the indexes of the sort fields, most significant first
+     * @param asc
+     *            for each sort field, true if it is sorted ascending
+     */
+    public TupleSorter(int[] fields, boolean[] asc) {
+        if (fields.length == 0 || fields.length != asc.length)
+            throw new IllegalArgumentException("need one direction per sort field");
+        this.fields = fields.clone();
+        this.asc = asc.clone();
+        this.fallback = new TupleComparator(this.fields, this.asc);
+        this.entryComparator = new Comparator<Entry>() {
+            public int compare(Entry e1, Entry e2) {
+                int c = compareKeys(e1.key, e2.key);
+                if (c != 0)
+                    return c;
+                return fallback.compare(e1.tuple, e2.tuple);
+            }
+        };
+    }
+
+    /** A tuple and its normalized sort key */
+    private static class Entry {
+        Tuple tuple;
+        long[] key;
+
+        Entry(Tuple t) {
+            tuple = t;
+        }
+    }
+
+    /**
+     * Sorts tuples in place.
+     */
+    public void sort(List<Tuple> tuples) {
+        int n = tuples.size();
+        if (n < 2)
+            return;
+        Entry[] entries = new Entry[n];
+        int i = 0;
+        for (Tuple t : tuples)
+            entries[i++] = new Entry(t);
+
+        if (n <= PARALLEL_THRESHOLD) {
+            buildKeys(entries, 0, n);
+            Arrays.sort(entries, entryComparator);
+        } else {
+            Database.getForkJoinPool().invoke(
+                    new SortTask(entries, new Entry[n], 0, n));
+        }
+
+        ListIterator<Tuple> it = tuples.listIterator();
+        for (i = 0; i < n; i++) {
+            it.next();
+            it.set(entries[i].tuple);
+        }
+    }
+
+    /** Merge sort of entries[lo, hi), using tmp[lo, hi) as scratch space. */
+    private class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Entry[] entries, tmp;
+        private final int lo, hi;
+
+        SortTask(Entry[] entries, Entry[] tmp, int lo, int hi) {
+            this.entries = entries;
+            this.tmp = tmp;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute() {
+            if (hi - lo <= PARALLEL_THRESHOLD) {
+                buildKeys(entries, lo, hi);
+                Arrays.sort(entries, lo, hi, entryComparator);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new SortTask(entries, tmp, lo, mid),
+                    new SortTask(entries, tmp, mid, hi));
+            // the halves are often already in order (e.g. presorted input)
+            if (entryComparator.compare(entries[mid - 1], entries[mid]) <= 0)
+                return;
+            System.arraycopy(entries, lo, tmp, lo, hi - lo);
+            int i = lo, j = mid, k = lo;
+            while (i < mid && j < hi) {
+                if (entryComparator.compare(tmp[j], tmp[i]) < 0)
+                    entries[k++] = tmp[j++];
+                else
+                    entries[k++] = tmp[i++];
+            }
+            while (i < mid)
+                entries[k++] = tmp[i++];
+            while (j < hi)
+                entries[k++] = tmp[j++];
+        }
+    }
+
+    private void buildKeys(Entry[] entries, int lo, int hi) {
+        byte[] scratch = new byte[maxKeyBytes()];
+        for (int i = lo; i < hi; i++)
+            entries[i].key = sortKey(entries[i].tuple, scratch);
+    }
+
+    private int maxKeyBytes() {
+        // a string key is longer than an int key
+        return fields.length * (2 * STRING_PREFIX_CHARS + 1);
+    }
+
+    /**
+     * Computes the normalized sort key of a tuple.
+     *
+     * @param t
+     *            the tuple
+     * @param scratch
+     *            a buffer large enough for the encoded key bytes
+     * @return the key bytes packed big-endian into longs
+     */
+    long[] sortKey(Tuple t, byte[] scratch) {
+        int len = 0;
+        for (int k = 0; k < fields.length; k++) {
+            int start = len;
+            boolean last = false;
+            if (t.isInt(fields[k])) {
+                int v = t.getInt(fields[k]) ^ Integer.MIN_VALUE;
+                scratch[len++] = (byte) (v >>> 24);
+                scratch[len++] = (byte) (v >>> 16);
+                scratch[len++] = (byte) (v >>> 8);
+                scratch[len++] = (byte) v;
+            } else {
+                String s = ((StringField) t.getField(fields[k])).getValue();
+                int n = Math.min(s.length(), STRING_PREFIX_CHARS);
+                for (int c = 0; c < n; c++) {
+                    char ch = s.charAt(c);
+                    scratch[len++] = (byte) (ch >>> 8);
+                    scratch[len++] = (byte) ch;
+                }
+                for (int c = n; c < STRING_PREFIX_CHARS; c++) {
+                    scratch[len++] = 0;
+                    scratch[len++] = 0;
+                }
+                last = s.length() > STRING_PREFIX_CHARS;
+                scratch[len++] = (byte) Math.min(s.length(), STRING_PREFIX_CHARS + 1);
+            }
+            if (!asc[k]) {
+                for (int b = start; b < len; b++)
+                    scratch[b] = (byte) ~scratch[b];
+            }
+            if (last)
+                break;
+        }
+
+        long[] key = new long[(len + 7) >>> 3];
+        for (int b = 0; b < len; b++)
+            key[b >>> 3] |= (scratch[b] & 0xFFL) << (56 - 8 * (b & 7));
+        return key;
+    }
+
+    /**
+     * Compares two packed sort keys as unsigned byte strings. Keys that agree
+     * on their common length are considered equal.
+     */
+    static int compareKeys(long[] k1, long[] k2) {
+        int n = Math.min(k1.length, k2.length);
+        for (int i = 0; i < n; i++) {
+            if (k1[i] != k2[i])
+                return (k1[i] ^ Long.MIN_VALUE) < (k2[i] ^ Long.MIN_VALUE) ? -1 : 1;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,204 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionManager keeps the state of multi-version concurrency control for
+ * the BufferPool: the commit sequence numbers of transactions, and the
+ * snapshots of the running read-only transactions.
+ * <p>
+ * Committing a transaction gives it the next commit sequence number, and
+ * a snapshot sees the transactions whose number is at most the last one
+ * given when it was taken. The versions stamped on HeapPages that every
+ * snapshot sees the same way are reclaimed by a vacuum thread, which is
+ * started when a transaction commits or a snapshot is released, and exits
+ * when nothing happened during a pass; the number of a transaction is
+ * then forgotten.
+ * <p>
+ * Pages that hold versions are evicted like any other: the VersionManager
+ * keeps a copy of their versions, and stamps a page with them again when
+ * it is read back into the buffer pool.
+ *
+ * @see Snapshot
+ * @Threadsafe
+ */
+class VersionManager {
+
+    /** How long, in milliseconds, the vacuum thread waits between passes */
+    static final long VACUUM_INTERVAL = 100;
+
+    private final BufferPool bp;
+    private long lastCommitSeq = 0; // protected by this
+    private final ConcurrentHashMap<TransactionId, Long> commitSeqs =
+            new ConcurrentHashMap<TransactionId, Long>();
+    private final ConcurrentHashMap<TransactionId, Snapshot> snapshots =
+            new ConcurrentHashMap<TransactionId, Snapshot>();
+
+    /** The versions of the evicted pages that held some */
+    private final HashMap<PageId, HeapPage.Versions> evicted =
+            new HashMap<PageId, HeapPage.Versions>(); // protected by itself
+
+    private boolean vacuumRequested = false; // protected by this
+    private Thread vacuumer = null; // protected by this
+
+    VersionManager(BufferPool bp) {
+        this.bp = bp;
+    }
+
+    /** Give the next commit sequence number to a committing transaction */
+    synchronized void committed(TransactionId tid) {
+        commitSeqs.put(tid, ++lastCommitSeq);
+        requestVacuum();
+    }
+
+    /** @return the commit sequence number of tid, or null if it did not
+        commit, or its versions were vacuumed */
+    Long getCommitSeq(TransactionId tid) {
+        return commitSeqs.get(tid);
+    }
+
+    /** Take the snapshot read by the read-only transaction tid */
+    synchronized Snapshot takeSnapshot(TransactionId tid) {
+        Snapshot s = new Snapshot(tid, lastCommitSeq, this);
+        snapshots.put(tid, s);
+        return s;
+    }
+
+    /** @return the snapshot of tid, or null if it is not read-only */
+    Snapshot getSnapshot(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /** Forget the snapshot of tid, if it has one */
+    void releaseSnapshot(TransactionId tid) {
+        if (snapshots.remove(tid) != null) {
+            synchronized (this) {
+                requestVacuum();
+            }
+        }
+    }
+
+    /** @return a snapshot that sees no more than any running snapshot:
+        versions it sees the same way as a newer one can be reclaimed */
+    synchronized Snapshot oldestSnapshot() {
+        long seq = lastCommitSeq;
+        for (Snapshot s : snapshots.values())
+            seq = Math.min(seq, s.getCommitSeq());
+        return new Snapshot(null, seq, this);
+    }
+
+    /**
+     * Remove a page from the buffer pool, keeping its versions until it is
+     * {@link #load loaded} again.
+     *
+     * @return false if the buffer pool no longer held page
+     */
+    boolean evict(PageId pid, Page page) {
+        synchronized (evicted) {
+            if (!bp.pool.remove(pid, page))
+                return false;
+            HeapPage.Versions v = null;
+            if (page instanceof HeapPage)
+                v = ((HeapPage) page).copyVersions();
+            if (v != null) {
+                // the versions that no snapshot needs are not kept
+                v.vacuum(oldestSnapshot());
+                if (!v.isEmpty())
+                    evicted.put(pid, v);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Add a page just read from disk to the buffer pool, with the versions
+     * it had when it was evicted. A read-only transaction may read the page
+     * without a lock while a writer reads it too, and only one of them adds
+     * it.
+     *
+     * @return the page of the buffer pool
+     */
+    Page load(Page page) {
+        PageId pid = page.getId();
+        synchronized (evicted) {
+            HeapPage.Versions v = evicted.get(pid);
+            if (v != null)
+                ((HeapPage) page).restoreVersions(v);
+            Page other = bp.pool.putIfAbsent(pid, page);
+            if (other != null)
+                return other;
+            evicted.remove(pid);
+            return page;
+        }
+    }
+
+    /**
+     * Reclaim the versions of the pages of the buffer pool, and of the
+     * evicted pages, that no snapshot needs any more. No page is evicted
+     * or loaded meanwhile, so that none keeps a version whose transaction
+     * is forgotten.
+     *
+     * @return the number of versions reclaimed
+     */
+    int vacuum() {
+        int reclaimed = 0;
+        synchronized (evicted) {
+            Snapshot oldest = oldestSnapshot();
+            for (Page p : bp.pool.values()) {
+                if (p instanceof HeapPage)
+                    reclaimed += ((HeapPage) p).vacuum(oldest);
+            }
+            for (Iterator<HeapPage.Versions> it = evicted.values().iterator(); it.hasNext(); ) {
+                HeapPage.Versions v = it.next();
+                reclaimed += v.vacuum(oldest);
+                if (v.isEmpty())
+                    it.remove();
+            }
+            // the versions of these transactions were all stamped before
+            // they committed, so none is left
+            Iterator<Long> it = commitSeqs.values().iterator();
+            while (it.hasNext()) {
+                if (it.next() <= oldest.getCommitSeq())
+                    it.remove();
+            }
+        }
+        return reclaimed;
+    }
+
+    /** Make the vacuum thread run a pass, starting it if it is not
+        running; the caller holds this */
+    private void requestVacuum() {
+        vacuumRequested = true;
+        if (vacuumer == null) {
+            vacuumer = new Thread(new Runnable() {
+                    public void run() {
+                        vacuumLoop();
+                    }
+                }, "SimpleDb vacuum");
+            vacuumer.setDaemon(true);
+            vacuumer.start();
+        }
+    }
+
+    /** The body of the vacuum thread */
+    private void vacuumLoop() {
+        while (true) {
+            synchronized (this) {
+                vacuumRequested = false;
+            }
+            vacuum();
+            synchronized (this) {
+                try {
+                    wait(VACUUM_INTERVAL);
+                } catch (InterruptedException e) {
+                    // look for more versions
+                }
+                if (!vacuumRequested) {
+                    vacuumer = null;
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -43,6 +43,50 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for transactions extending the file at once, while their
+     * pages are written behind, which must not write over each other
+     */
+    @Test(timeout = 60000) public void concurrentExtension() throws Exception {
+        final BufferPool bp = Database.getBufferPool();
+        final int perPage = 504, transactions = 4;
+        Thread[] inserters = new Thread[2];
+        final Exception[] errors = new Exception[inserters.length];
+        for (int n = 0; n < inserters.length; n++) {
+            final int id = n;
+            inserters[n] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < transactions; i++) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            for (int j = 0; j < perPage; j++)
+                                bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(id, 2));
+                            t.commit();
+                            bp.writeBehind(bp.dirtyPages().keySet());
+                        }
+                    } catch (Exception e) {
+                        errors[id] = e;
+                    }
+                }
+            };
+            inserters[n].start();
+        }
+        for (int n = 0; n < inserters.length; n++) {
+            inserters[n].join();
+            if (errors[n] != null)
+                throw errors[n];
+        }
+        bp.flushAllPages();
+
+        int tuples = 0;
+        for (int i = 0; i < empty.numPages(); i++) {
+            HeapPage p = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), i));
+            tuples += perPage - p.getNumEmptySlots();
+        }
+        assertEquals(inserters.length * transactions * perPage, tuples);
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,78 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HyperLogLogTest extends SimpleDbTestBase {
+
+    /**
+     * Unit test for the estimates of small and large numbers of values
+     */
+    @Test public void estimate() {
+        HyperLogLog h = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        assertEquals(0, h.estimate());
+        for (int v = 0; v < 10; v++)
+            h.addInt(v);
+        assertEquals(10, h.estimate());
+
+        for (int v = 0; v < 100000; v++)
+            h.addInt(v * 7919);
+        assertEquals(100000, h.estimate(), 100000 * 0.06);
+
+        // duplicates do not change the estimate
+        long before = h.estimate();
+        for (int v = 0; v < 100000; v++)
+            h.addInt(v * 7919);
+        assertEquals(before, h.estimate());
+    }
+
+    /**
+     * Unit test for string values
+     */
+    @Test public void strings() {
+        HyperLogLog h = new HyperLogLog(12);
+        for (int i = 0; i < 50000; i++)
+            h.addString("value" + i);
+        for (int i = 0; i < 50000; i++)
+            h.addString("value" + i);
+        assertEquals(50000, h.estimate(), 50000 * 0.03);
+    }
+
+    /**
+     * Unit test for HyperLogLog.merge() and serialization
+     */
+    @Test public void mergeAndSerialize() throws Exception {
+        HyperLogLog all = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        HyperLogLog a = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        HyperLogLog b = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        for (int v = 0; v < 30000; v++) {
+            all.addInt(v);
+            (v % 3 == 0 ? a : b).addInt(v);
+        }
+        a.merge(b);
+        assertEquals(all.estimate(), a.estimate());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        a.write(new DataOutputStream(bytes));
+        HyperLogLog read = HyperLogLog.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(a.estimate(), read.estimate());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HyperLogLogTest.class);
+    }
+}
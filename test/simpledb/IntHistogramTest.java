@@ -0,0 +1,104 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IntHistogramTest extends SimpleDbTestBase {
+
+    /**
+     * Unit test for a histogram over a known range
+     */
+    @Test public void fixedRange() {
+        IntHistogram h = new IntHistogram(10, 1, 10);
+        for (int v = 1; v <= 10; v++)
+            h.addValue(v);
+        assertEquals(0.1, h.estimateSelectivity(Predicate.Op.EQUALS, 3), 1e-9);
+        assertEquals(0.2, h.estimateSelectivity(Predicate.Op.LESS_THAN, 3), 1e-9);
+        assertEquals(0.8, h.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, 3), 1e-9);
+        assertEquals(0.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN, 10), 1e-9);
+        assertEquals(1.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, 11), 1e-9);
+        assertEquals(0.0, h.estimateSelectivity(Predicate.Op.EQUALS, -5), 1e-9);
+        assertEquals(0.9, h.estimateSelectivity(Predicate.Op.NOT_EQUALS, 3), 1e-9);
+    }
+
+    /**
+     * Unit test for a histogram that grows with its values, including
+     * negative values and the extremes of the int range
+     */
+    @Test public void growing() {
+        IntHistogram h = new IntHistogram(100);
+        Random r = new Random(7);
+        int below = 0, n = 100000;
+        for (int i = 0; i < n; i++) {
+            int v = r.nextInt(20000) - 10000;
+            if (v < 5000)
+                below++;
+            h.addValue(v);
+        }
+        assertEquals(n, h.getNumValues());
+        assertEquals((double) below / n, h.estimateSelectivity(Predicate.Op.LESS_THAN, 5000), 0.01);
+        assertEquals(1.0 / 20000, h.estimateSelectivity(Predicate.Op.EQUALS, 17), 1.0 / 20000);
+
+        h.addValue(Integer.MAX_VALUE);
+        h.addValue(Integer.MIN_VALUE);
+        assertEquals(Integer.MIN_VALUE, h.getMin());
+        assertEquals(Integer.MAX_VALUE, h.getMax());
+        assertEquals(0.5, h.estimateSelectivity(Predicate.Op.LESS_THAN, 0), 0.05);
+    }
+
+    /**
+     * Unit test for merging histograms built over parts of the values
+     */
+    @Test public void merge() {
+        IntHistogram all = new IntHistogram(100);
+        IntHistogram[] parts = new IntHistogram[4];
+        Random r = new Random(11);
+        for (int p = 0; p < parts.length; p++) {
+            parts[p] = new IntHistogram(100);
+            // parts of very different ranges and bucket widths
+            int range = 10 << (4 * p);
+            for (int i = 0; i < 1000; i++) {
+                int v = r.nextInt(range) + p * 1000;
+                parts[p].addValue(v);
+                all.addValue(v);
+            }
+        }
+        IntHistogram merged = new IntHistogram(100);
+        for (IntHistogram part : parts)
+            merged.merge(part);
+        assertEquals(all.toString(), merged.toString());
+    }
+
+    /**
+     * Unit test for IntHistogram.removeValue()
+     */
+    @Test public void removeValue() {
+        IntHistogram h = new IntHistogram(100);
+        for (int v = 0; v < 1000; v++)
+            h.addValue(v);
+        for (int v = 0; v < 500; v++)
+            h.removeValue(v);
+        assertEquals(500, h.getNumValues());
+        assertEquals(0.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, 496), 1e-9);
+        assertEquals(0.5, h.estimateSelectivity(Predicate.Op.LESS_THAN, 750), 0.02);
+
+        // removing values from empty buckets does nothing
+        for (int v = 0; v < 496; v++)
+            h.removeValue(v);
+        assertEquals(500, h.getNumValues());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntHistogramTest.class);
+    }
+}
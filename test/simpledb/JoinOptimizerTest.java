@@ -0,0 +1,270 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Vector;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class JoinOptimizerTest extends SimpleDbTestBase {
+
+    private final LogicalPlan plan = new LogicalPlan();
+    private final HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    private final HashMap<String, Double> selectivities = new HashMap<String, Double>();
+    private final Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+
+    /** Create a table t<i> with rows tuples and add a scan of it to the plan */
+    private void addTable(int i, int rows) throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, 100, null, null, "c");
+        String name = "t" + i;
+        Database.getCatalog().addTable(hf, name);
+        stats.put(name, new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+        selectivities.put(name, 1.0);
+        plan.addScan(hf.getId(), name);
+    }
+
+    /** Add the join t<i1>.c<f1> = t<i2>.c<f2> */
+    private void addJoin(int i1, int f1, int i2, int f2) {
+        joins.add(new LogicalJoinNode("t" + i1, "t" + i2, "c" + f1, "c" + f2,
+                Predicate.Op.EQUALS));
+    }
+
+    private Vector<LogicalJoinNode> orderJoins() throws ParsingException {
+        return new JoinOptimizer(plan, joins).orderJoins(stats, selectivities, false);
+    }
+
+    /**
+     * Check that every join of a group of tables but the first adds a
+     * table to the tables joined so far.
+     * @return the number of separate groups of tables
+     */
+    private static int assertLeftDeep(Vector<LogicalJoinNode> order) {
+        HashSet<String> joined = new HashSet<String>();
+        int groups = 0;
+        for (LogicalJoinNode j : order) {
+            boolean has1 = joined.contains(j.t1Alias), has2 = joined.contains(j.t2Alias);
+            assertFalse("join " + j + " of tables already joined", has1 && has2);
+            if (!has1 && !has2) {
+                joined.clear();
+                groups++;
+            }
+            joined.add(j.t1Alias);
+            joined.add(j.t2Alias);
+        }
+        return groups;
+    }
+
+    /**
+     * Check that the joins can be executed in order: every join joins two
+     * separate plans, each of which is a table or the result of earlier
+     * joins.
+     * @return the number of separate plans after the last join
+     */
+    private static int assertValidPlan(Vector<LogicalJoinNode> order) {
+        return joinPlans(order, null);
+    }
+
+    /** @return the number of joins of order that join two earlier joins */
+    private static int countBushyJoins(Vector<LogicalJoinNode> order) {
+        int[] bushy = new int[1];
+        joinPlans(order, bushy);
+        return bushy[0];
+    }
+
+    private static int joinPlans(Vector<LogicalJoinNode> order, int[] bushy) {
+        HashMap<String, HashSet<String>> plans = new HashMap<String, HashSet<String>>();
+        int numPlans = 0;
+        for (LogicalJoinNode j : order) {
+            HashSet<String> p1 = plans.get(j.t1Alias), p2 = plans.get(j.t2Alias);
+            assertTrue("join " + j + " of tables already joined", p1 == null || p1 != p2);
+            if (p1 != null && p2 != null && bushy != null)
+                bushy[0]++;
+            HashSet<String> joined = new HashSet<String>();
+            joined.add(j.t1Alias);
+            joined.add(j.t2Alias);
+            for (HashSet<String> p : Arrays.asList(p1, p2)) {
+                if (p != null) {
+                    joined.addAll(p);
+                    numPlans--;
+                }
+            }
+            for (String t : joined)
+                plans.put(t, joined);
+            numPlans++;
+        }
+        return numPlans;
+    }
+
+    /**
+     * Unit test for the join order of a 15 table star join
+     */
+    @Test public void starJoin() throws Exception {
+        for (int i = 0; i < 15; i++)
+            addTable(i, 20 + 10 * i);
+        for (int i = 1; i < 15; i++)
+            addJoin(0, 0, i, 0);
+
+        long start = System.currentTimeMillis();
+        Vector<LogicalJoinNode> order = orderJoins();
+        assertTrue(System.currentTimeMillis() - start < 2000);
+
+        assertEquals(14, order.size());
+        assertEquals(1, assertValidPlan(order));
+    }
+
+    /**
+     * Unit test for the parallel search of a join that is large enough to
+     * plan each level of sets of tables in parallel: it finds the same
+     * plan every time
+     */
+    @Test public void parallelSearch() throws Exception {
+        int n = JoinOptimizer.PARALLEL_MIN_RELATIONS + 4;
+        for (int i = 0; i < n; i++)
+            addTable(i, 20 + 30 * (i % 5));
+        // two stars, whose centers are joined
+        for (int i = 1; i < n; i++)
+            addJoin(i < n / 2 ? 0 : i == n / 2 ? 0 : n / 2, 0, i, 1);
+
+        Vector<LogicalJoinNode> order = orderJoins();
+        assertEquals(n - 1, order.size());
+        assertEquals(1, assertValidPlan(order));
+        for (int i = 0; i < 5; i++) {
+            Vector<LogicalJoinNode> again = orderJoins();
+            for (int j = 0; j < order.size(); j++)
+                assertEquals(order.get(j).toString(), again.get(j).toString());
+        }
+    }
+
+    /**
+     * Unit test for the join order of a chain of tables of very different
+     * sizes: the small tables are joined first
+     */
+    @Test public void chainJoin() throws Exception {
+        addTable(0, 2000);
+        addTable(1, 10);
+        addTable(2, 10);
+        addTable(3, 2000);
+        addJoin(0, 0, 1, 0);
+        addJoin(1, 1, 2, 1);
+        addJoin(2, 0, 3, 0);
+
+        Vector<LogicalJoinNode> order = orderJoins();
+        assertEquals(3, order.size());
+        assertEquals(1, assertValidPlan(order));
+        LogicalJoinNode first = order.get(0);
+        HashSet<String> firstTables = new HashSet<String>();
+        firstTables.add(first.t1Alias);
+        firstTables.add(first.t2Alias);
+        assertTrue(firstTables.contains("t1") && firstTables.contains("t2"));
+    }
+
+    /**
+     * Unit test for the join order of a snowflake: a large table joined to
+     * two large tables, each of which is joined to a small one. Joining the
+     * small tables to their large tables first, and then joining the
+     * results, is cheaper than any left-deep plan.
+     */
+    @Test public void snowflakeJoin() throws Exception {
+        addTable(0, 5000);
+        addTable(1, 2000);
+        addTable(2, 100);
+        addTable(3, 2000);
+        addTable(4, 100);
+        selectivities.put("t2", 0.01);
+        selectivities.put("t4", 0.01);
+        addJoin(0, 0, 1, 0);
+        addJoin(1, 1, 2, 1);
+        addJoin(0, 1, 3, 0);
+        addJoin(3, 1, 4, 1);
+
+        Vector<LogicalJoinNode> order = orderJoins();
+        assertEquals(4, order.size());
+        assertEquals(1, assertValidPlan(order));
+        assertEquals(1, countBushyJoins(order));
+    }
+
+    /**
+     * Unit test for the greedy ordering of the joins of more tables than
+     * are ordered by dynamic programming
+     */
+    @Test public void greedyLargeJoin() throws Exception {
+        int n = 30;
+        assertTrue(n > JoinOptimizer.getMaxDpRelations());
+        for (int i = 0; i < n; i++)
+            addTable(i, 10 + 5 * (i % 7));
+        // a chain with a star of tables on every fifth table
+        for (int i = 1; i < n; i++)
+            addJoin(i % 5 == 0 || i < 5 ? i - 1 : i - i % 5, 0, i, 1);
+
+        long start = System.currentTimeMillis();
+        Vector<LogicalJoinNode> order = orderJoins();
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(n - 1, order.size());
+        assertEquals(1, assertLeftDeep(order));
+    }
+
+    /**
+     * Unit test for the greedy search on a join that is small enough for
+     * dynamic programming: it finds the same plan on a simple chain
+     */
+    @Test public void greedySmallJoin() throws Exception {
+        // greedy search from every relation tries every left-deep order of
+        // a chain of three relations, so it must find the same plan
+        addTable(0, 2000);
+        addTable(1, 10);
+        addTable(2, 300);
+        addJoin(0, 0, 1, 0);
+        addJoin(1, 1, 2, 1);
+        Vector<LogicalJoinNode> dp = orderJoins();
+
+        int limit = JoinOptimizer.getMaxDpRelations();
+        JoinOptimizer.setMaxDpRelations(0);
+        try {
+            Vector<LogicalJoinNode> greedy = orderJoins();
+            assertEquals(1, assertLeftDeep(greedy));
+            assertEquals(dp.size(), greedy.size());
+            for (int i = 0; i < dp.size(); i++)
+                assertEquals(dp.get(i), greedy.get(i)); // same tables, either way round
+        } finally {
+            JoinOptimizer.setMaxDpRelations(limit);
+        }
+    }
+
+    /**
+     * Unit test for joins of separate groups of tables, and of joins that
+     * form a cycle
+     */
+    @Test public void disconnectedAndCyclic() throws Exception {
+        for (int i = 0; i < 5; i++)
+            addTable(i, 100);
+        addJoin(0, 0, 1, 0);
+        addJoin(2, 0, 3, 0);
+        addJoin(3, 1, 4, 1);
+        Vector<LogicalJoinNode> order = orderJoins();
+        assertEquals(3, order.size());
+        assertEquals(2, assertValidPlan(order));
+
+        addJoin(4, 0, 2, 1);
+        try {
+            orderJoins();
+            fail("expected a ParsingException for a cycle of joins");
+        } catch (ParsingException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(JoinOptimizerTest.class);
+    }
+}
@@ -0,0 +1,214 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LockingTest extends SimpleDbTestBase {
+
+    private PageId p0, p1;
+    private TransactionId tid1, tid2;
+    private BufferPool bp;
+
+    @Before public void createTable() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        p0 = new HeapPageId(hf.getId(), 0);
+        p1 = new HeapPageId(hf.getId(), 1);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        bp = Database.getBufferPool();
+    }
+
+    /** A thread that requests a page */
+    private class Grabber extends Thread {
+        private final TransactionId tid;
+        private final PageId pid;
+        private final Permissions perm;
+        volatile boolean acquired = false;
+        volatile Exception error = null;
+
+        Grabber(TransactionId tid, PageId pid, Permissions perm) {
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                bp.getPage(tid, pid, perm);
+                acquired = true;
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    /** @return a started Grabber, after waiting for it for a while */
+    private Grabber grab(TransactionId tid, PageId pid, Permissions perm)
+            throws InterruptedException {
+        Grabber g = new Grabber(tid, pid, perm);
+        g.start();
+        g.join(200);
+        return g;
+    }
+
+    /**
+     * Unit test for shared locks, which do not exclude each other
+     */
+    @Test public void sharedLocks() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        assertTrue(grab(tid2, p0, Permissions.READ_ONLY).acquired);
+        assertTrue(bp.holdsLock(tid1, p0));
+        assertTrue(bp.holdsLock(tid2, p0));
+        assertFalse(bp.holdsLock(tid1, p1));
+    }
+
+    /**
+     * Unit test for exclusive locks, which wait for other locks to be
+     * released
+     */
+    @Test public void exclusiveLocks() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        Grabber reader = grab(tid2, p0, Permissions.READ_ONLY);
+        assertFalse(reader.acquired);
+        // other pages are not locked
+        assertTrue(grab(tid2, p1, Permissions.READ_WRITE).acquired);
+
+        bp.transactionComplete(tid1);
+        reader.join(5000);
+        assertTrue(reader.acquired);
+        assertFalse(bp.holdsLock(tid1, p0));
+
+        Grabber writer = grab(tid1, p0, Permissions.READ_WRITE);
+        assertFalse(writer.acquired);
+        bp.releasePage(tid2, p0);
+        writer.join(5000);
+        assertTrue(writer.acquired);
+    }
+
+    /**
+     * Unit test for upgrading a shared lock to an exclusive lock
+     */
+    @Test public void upgrade() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        assertTrue(grab(tid1, p0, Permissions.READ_WRITE).acquired);
+        assertFalse(grab(tid2, p0, Permissions.READ_ONLY).acquired);
+        bp.transactionComplete(tid1);
+
+        // not while another transaction shares the lock
+        TransactionId tid3 = new TransactionId();
+        bp.getPage(tid3, p1, Permissions.READ_ONLY);
+        bp.getPage(tid1, p1, Permissions.READ_ONLY);
+        Grabber upgrade = grab(tid1, p1, Permissions.READ_WRITE);
+        assertFalse(upgrade.acquired);
+        bp.transactionComplete(tid3);
+        upgrade.join(5000);
+        assertTrue(upgrade.acquired);
+    }
+
+    /**
+     * Unit test for a deadlock between two transactions, which aborts the
+     * younger one as soon as it would wait
+     */
+    @Test public void deadlock() throws Exception {
+        long deadlocks = bp.getDeadlockCount();
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        bp.getPage(tid2, p1, Permissions.READ_WRITE);
+        Grabber older = grab(tid1, p1, Permissions.READ_WRITE);
+        assertFalse(older.acquired);
+
+        long start = System.currentTimeMillis();
+        try {
+            bp.getPage(tid2, p0, Permissions.READ_ONLY);
+            fail("expected a TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(deadlocks + 1, bp.getDeadlockCount());
+        assertFalse(bp.holdsLock(tid2, p0));
+
+        bp.transactionComplete(tid2, false);
+        older.join(5000);
+        assertTrue(older.acquired);
+    }
+
+    /**
+     * Unit test for a deadlock closed by an older transaction: the younger
+     * transaction, which was already waiting, is aborted
+     */
+    @Test public void deadlockVictimWaiting() throws Exception {
+        long deadlocks = bp.getDeadlockCount();
+        // both share p0, and both want to upgrade
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid2, p0, Permissions.READ_ONLY);
+        Grabber younger = grab(tid2, p0, Permissions.READ_WRITE);
+        assertFalse(younger.acquired);
+        assertNull(younger.error);
+
+        Grabber older = grab(tid1, p0, Permissions.READ_WRITE);
+        younger.join(5000);
+        assertTrue(younger.error instanceof TransactionAbortedException);
+        assertFalse(older.acquired);
+        assertEquals(deadlocks + 1, bp.getDeadlockCount());
+
+        bp.transactionComplete(tid2, false);
+        older.join(5000);
+        assertTrue(older.acquired);
+        assertTrue(bp.holdsLock(tid1, p0));
+    }
+
+    /**
+     * Unit test for transactions inserting into the same page at once,
+     * which must not deadlock
+     */
+    @Test(timeout = 60000) public void concurrentInserts() throws Exception {
+        final HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        long deadlocks = bp.getDeadlockCount();
+        Thread[] inserters = new Thread[2];
+        final Exception[] errors = new Exception[inserters.length];
+        for (int n = 0; n < inserters.length; n++) {
+            final int id = n;
+            inserters[n] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20; i++) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            for (int j = 0; j < 5; j++) {
+                                Tuple tup = new Tuple(hf.getTupleDesc());
+                                tup.setField(0, new IntField(id));
+                                tup.setField(1, new IntField(i * 5 + j));
+                                bp.insertTuple(t.getId(), hf.getId(), tup);
+                            }
+                            t.commit();
+                        }
+                    } catch (Exception e) {
+                        errors[id] = e;
+                    }
+                }
+            };
+            inserters[n].start();
+        }
+        for (int n = 0; n < inserters.length; n++) {
+            inserters[n].join();
+            if (errors[n] != null)
+                throw errors[n];
+        }
+        assertEquals(deadlocks, bp.getDeadlockCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockingTest.class);
+    }
+}
@@ -0,0 +1,653 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    /** Start and commit a transaction */
+    private static void commit() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        t.commit();
+    }
+
+    /**
+     * Unit test for commits of a single thread, which each force the log
+     */
+    @Test public void sequentialCommits() throws Exception {
+        LogFile log = Database.getLogFile();
+        long forces = log.getForceCount();
+        for (int i = 0; i < 5; i++)
+            commit();
+        assertEquals(forces + 5, log.getForceCount());
+        assertEquals(10, log.getTotalRecords());
+    }
+
+    /**
+     * Unit test for concurrent commits, which share forces of the log
+     */
+    @Test public void groupCommit() throws Exception {
+        final LogFile log = Database.getLogFile();
+        log.setGroupCommitDelay(5000);
+        final int threads = 8, commits = 10;
+        final AtomicInteger committed = new AtomicInteger();
+        final ArrayList<Exception> errors = new ArrayList<Exception>();
+        long forces = log.getForceCount();
+
+        ArrayList<Thread> ts = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < commits; j++) {
+                            commit();
+                            committed.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            ts.add(t);
+            t.start();
+        }
+        for (Thread t : ts)
+            t.join();
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(threads * commits, committed.get());
+        assertEquals(2 * threads * commits, log.getTotalRecords());
+        long used = log.getForceCount() - forces;
+        assertTrue("forces: " + used, used > 0 && used < threads * commits / 2);
+    }
+
+    /**
+     * Unit test for commits that do not wait for the log to be forced
+     */
+    @Test public void asyncCommit() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setAsyncCommitInterval(1000);
+        commit(); // the last force
+        assertEquals(log.getWrittenLSN(), log.getDurableLSN());
+        long forces = log.getForceCount();
+
+        for (int i = 0; i < 10; i++) {
+            Transaction t = new Transaction();
+            t.setAsyncCommit(true);
+            t.start();
+            t.commit();
+        }
+        assertEquals(forces, log.getForceCount());
+        assertTrue(log.getDurableLSN() < log.getWrittenLSN());
+
+        // all of them are forced at once within the interval
+        for (int i = 0; i < 50 && log.getDurableLSN() < log.getWrittenLSN(); i++)
+            Thread.sleep(100);
+        assertEquals(log.getWrittenLSN(), log.getDurableLSN());
+        assertEquals(forces + 1, log.getForceCount());
+    }
+
+    /**
+     * Unit test for the serialization of pages in UPDATE records
+     */
+    @Test public void pageData() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        LogFile log = Database.getLogFile();
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        log.writePageData(new DataOutputStream(bytes), page);
+        // a tag, the page id, the length and the data of the page
+        assertEquals(1 + 3 * 4 + BufferPool.getPageSize(), bytes.size());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Page copy = log.readPageData(in);
+        assertEquals(page.getClass(), copy.getClass());
+        assertEquals(pid, copy.getId());
+        assertArrayEquals(page.getPageData(), copy.getPageData());
+        assertEquals(-1, in.read());
+    }
+
+    /**
+     * Unit test for reading the log after records were appended to the
+     * log buffer
+     */
+    @Test public void truncate() throws Exception {
+        LogFile log = Database.getLogFile();
+        for (int i = 0; i < 3; i++)
+            commit();
+        Transaction t = new Transaction();
+        t.start();
+        long end = log.logEnd();
+        log.logCheckpoint();
+        // only the record of the active transaction and the checkpoint
+        // are needed, at the same offsets
+        long checkpoint = 3 * LogFile.INT_SIZE + 4 * LogFile.LONG_SIZE;
+        assertEquals(end + checkpoint, log.logEnd());
+        assertEquals((long) log.tidToFirstLogRecord.get(t.getId().getId()), log.base);
+        t.commit();
+        assertEquals(log.logEnd(), log.fileLength);
+    }
+
+    /** @return the number of segments from the first needed record of
+        log to its end */
+    private static long neededSegments(LogFile log) {
+        long size = log.getSegmentSize();
+        return (log.logEnd() - 1) / size - log.base / size + 1;
+    }
+
+    /**
+     * Unit test for the removal of the segments of the log that are not
+     * needed after a checkpoint, and recovery from records that span
+     * segments
+     */
+    @Test public void segments() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setSegmentSize(1024);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 100; i++)
+            insert(t.getId(), hf, i, tuples);
+        t.commit();
+        int segments = log.getSegmentCount();
+        assertTrue("segments: " + segments, segments > 3);
+
+        // the records of t are needed until its pages are written
+        log.logCheckpoint();
+        assertEquals(segments, log.getSegmentCount());
+        Database.getBufferPool().flushAllPages();
+        log.logCheckpoint();
+        assertEquals(neededSegments(log), log.getSegmentCount());
+        assertTrue(log.base > segments * 1024 / 2);
+
+        // removed segments can be kept in an archive
+        File archive = File.createTempFile("archive", "");
+        archive.delete();
+        archive.mkdir();
+        archive.deleteOnExit();
+        log.setArchiveDirectory(archive);
+        for (int i = 0; i < 50; i++)
+            commit();
+        log.logCheckpoint();
+        File[] archived = archive.listFiles();
+        assertTrue(archived.length > 0);
+        for (File f : archived) {
+            assertTrue(f.getName().startsWith(log.logFile.getName() + "."));
+            f.deleteOnExit();
+        }
+        assertEquals(neededSegments(log), log.getSegmentCount());
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        for (int i = 0; i < 100; i++)
+            insert(t2.getId(), hf, 1000 + i, tuples);
+        t2.commit();
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /** Insert the tuple (v, v) into hf on behalf of tid */
+    private static void insert(TransactionId tid, HeapFile hf, int v,
+            ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(v));
+        t.setField(1, new IntField(v));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        if (tuples != null)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(v, v)));
+    }
+
+    /** Delete the first tuple of hf on behalf of tid */
+    private static void deleteFirst(TransactionId tid, HeapFile hf,
+            ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        scan.open();
+        Tuple t = scan.next();
+        scan.close();
+        Database.getBufferPool().deleteTuple(tid, t);
+        if (tuples != null)
+            tuples.remove(SystemTestUtil.tupleToList(t));
+    }
+
+    /** Lose the buffer pool, and recover from the log file */
+    private static void crashAndRecover() throws Exception {
+        crashAndRecover(1);
+    }
+
+    /** Lose the buffer pool, and recover from the log file with the
+        specified number of threads */
+    private static void crashAndRecover(int threads) throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        LogFile log = new LogFile(Database.getLogFile().logFile);
+        log.setRecoveryThreads(threads);
+        log.recover();
+    }
+
+    /** Delete every step-th tuple of hf on behalf of tid, starting with
+        the first */
+    private static void deleteEvery(TransactionId tid, HeapFile hf, int step,
+            ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        scan.open();
+        ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+        for (int i = 0; scan.hasNext(); i++) {
+            Tuple t = scan.next();
+            if (i % step == 0)
+                deleted.add(t);
+        }
+        scan.close();
+        for (Tuple t : deleted) {
+            Database.getBufferPool().deleteTuple(tid, t);
+            if (tuples != null)
+                tuples.remove(SystemTestUtil.tupleToList(t));
+        }
+    }
+
+    /**
+     * Unit test for the size of the log records of inserts
+     */
+    @Test public void slotUpdateSize() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        LogFile log = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        long start = log.logEnd();
+        for (int i = 0; i < 100; i++)
+            insert(t.getId(), hf, i, null);
+        // far less than the two page images of an UPDATE record
+        assertTrue((log.logEnd() - start) / 100 < 64);
+        t.commit();
+    }
+
+    /**
+     * Unit test for rolling back the inserts and deletes of a transaction
+     */
+    @Test public void abort() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 5; i++)
+            insert(t.getId(), hf, 100 + i, null);
+        deleteFirst(t.getId(), hf, null);
+        deleteFirst(t.getId(), hf, null);
+        t.abort();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Unit test for redoing committed transactions whose pages were not
+     * written, and undoing uncommitted transactions whose pages were
+     */
+    @Test public void recover() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> tuples2 = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        HeapFile hf2 = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples2);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        deleteFirst(t1.getId(), hf, tuples);
+        insert(t1.getId(), hf, 100, tuples);
+        deleteFirst(t1.getId(), hf2, tuples2);
+        t1.commit();
+
+        // still holds its locks when the system crashes
+        Transaction t2 = new Transaction();
+        t2.start();
+        deleteFirst(t2.getId(), hf2, null);
+        insert(t2.getId(), hf2, 200, null);
+        Database.getBufferPool().flushAllPages();
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        insert(t3.getId(), hf, 300, null);
+        t3.abort();
+
+        Transaction t4 = new Transaction();
+        t4.start();
+        insert(t4.getId(), hf, 400, tuples);
+        t4.commit();
+
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, tuples);
+        SystemTestUtil.matchTuples(hf2, tuples2);
+
+        // recovering again changes nothing
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, tuples);
+        SystemTestUtil.matchTuples(hf2, tuples2);
+    }
+
+    /** Log an UPDATE record of tid that inserts a tuple into the first
+        page of hf, and write the updated page; return its before image */
+    private static HeapPage updatePageImage(TransactionId tid, HeapFile hf) throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage before = (HeapPage) hf.readPage(pid);
+        HeapPage after = (HeapPage) hf.readPage(pid);
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(100));
+        t.setField(1, new IntField(100));
+        after.insertTuple(t);
+        Database.getLogFile().logWrite(tid, before, after);
+        Database.getLogFile().force();
+        hf.writePage(after);
+        return after;
+    }
+
+    /**
+     * Unit test for the undo of UPDATE records by recovery, which is logged
+     * so that it is redone if recovery crashes before writing the page
+     */
+    @Test public void recoverPageImages() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        Transaction t = new Transaction();
+        t.start();
+        HeapPage after = updatePageImage(t.getId(), hf);
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, tuples);
+
+        hf.writePage(after);
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Unit test for the rollback of UPDATE records, which is logged so that
+     * recovery does not redo them
+     */
+    @Test public void abortPageImages() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        Transaction t = new Transaction();
+        t.start();
+        updatePageImage(t.getId(), hf);
+        t.abort();
+        SystemTestUtil.matchTuples(hf, tuples);
+
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Unit test for a checkpoint taken while the buffer pool is locked, and
+     * recovery from its dirty page table before the pages are written
+     */
+    @Test(timeout = 20000) public void fuzzyCheckpoint() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> tuples2 = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        HeapFile hf2 = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples2);
+        LogFile log = Database.getLogFile();
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1.getId(), hf, 100, tuples);
+        t1.commit();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2.getId(), hf2, 200, null);
+        Database.getBufferPool().flushAllPages();
+        Transaction t3 = new Transaction();
+        t3.start();
+        deleteFirst(t3.getId(), hf, tuples);
+        t3.commit();
+        Map<PageId, Long> dirty = Database.getBufferPool().dirtyPages();
+        assertEquals(1, dirty.size());
+
+        // the page writer cannot write pages while the buffer pool is
+        // locked, so they are still dirty when the system crashes
+        synchronized (Database.getBufferPool()) {
+            log.logCheckpoint();
+            // the log of the dirty page and of t2 is kept
+            long first = Math.min(dirty.values().iterator().next(),
+                                  log.tidToFirstLogRecord.get(t2.getId().getId()));
+            assertEquals(first, log.base);
+            crashAndRecover();
+            SystemTestUtil.matchTuples(hf, tuples);
+            SystemTestUtil.matchTuples(hf2, tuples2);
+        }
+    }
+
+    /** @return the number of dirty pages in bp */
+    private static int dirtyPages(BufferPool bp) {
+        int n = 0;
+        for (Page p : bp.pool.values()) {
+            if (p.isDirty() != null)
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Unit test for the pages written by the page writer after a checkpoint
+     */
+    @Test public void pageWriter() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, tuples);
+        LogFile log = Database.getLogFile();
+        BufferPool bp = Database.getBufferPool();
+
+        Transaction t = new Transaction();
+        t.start();
+        // delete every other tuple of both pages
+        deleteEvery(t.getId(), hf, 2, tuples);
+        t.commit();
+        assertTrue(bp.dirtyPages().size() > 1);
+
+        log.logCheckpoint();
+        for (int i = 0; i < 100 && dirtyPages(bp) > 0; i++)
+            Thread.sleep(100);
+        assertEquals(0, dirtyPages(bp));
+        assertTrue(bp.dirtyPages().isEmpty());
+
+        // no log before the last checkpoint is needed
+        log.logCheckpoint();
+        long checkpoint = 3 * LogFile.INT_SIZE + 2 * LogFile.LONG_SIZE;
+        assertEquals(log.logEnd() - checkpoint, log.base);
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /** Wait for the page writer thread to exit, once it wrote its pages */
+    private static void waitForPageWriter() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            boolean running = false;
+            for (Thread t : Thread.getAllStackTraces().keySet()) {
+                if (t.getName().equals("SimpleDb page writer"))
+                    running = true;
+            }
+            if (!running)
+                return;
+            Thread.sleep(100);
+        }
+        fail("the page writer did not exit");
+    }
+
+    /**
+     * Unit test for inserts made while the page writer writes their pages,
+     * which must not be marked clean by the writer before they are written
+     */
+    @Test public void insertsWhileWriting() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 1000,
+                1 << 16, null, tuples);
+        // writes pages slowly, so that updates can be made between reading
+        // the data of a page and marking the page clean
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2)) {
+            public void writePage(Page page) throws IOException {
+                super.writePage(page);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    // written anyway
+                }
+            }
+        };
+        Database.getCatalog().addTable(hf);
+        final BufferPool bp = Database.getBufferPool();
+        Transaction t = new Transaction();
+        t.start();
+        deleteEvery(t.getId(), hf, 2, tuples);
+        t.commit();
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        Thread flusher = new Thread() {
+            public void run() {
+                while (!done.get()) {
+                    bp.writeBehind(bp.dirtyPages().keySet());
+                    Thread.yield();
+                }
+            }
+        };
+        flusher.start();
+        try {
+            for (int i = 0; i < 200; i++) {
+                Transaction w = new Transaction();
+                w.start();
+                insert(w.getId(), hf, 5000 + i, tuples);
+                w.commit();
+            }
+        } finally {
+            done.set(true);
+            flusher.join();
+        }
+        waitForPageWriter();
+        // a page marked clean after a later update loses it here
+        bp.flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Unit test for a rollback that reads a page back into a buffer pool
+     * whose pages are all latched by updates, which must not wait for them
+     */
+    @Test(timeout = 60000) public void rollbackWhileLatched() throws Exception {
+        final BufferPool bp = Database.resetBufferPool(1);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1500, null, tuples);
+        Transaction t = new Transaction();
+        t.start();
+        deleteEvery(t.getId(), hf, 2, tuples);
+        t.commit();
+
+        final Transaction a = new Transaction();
+        a.start();
+        insert(a.getId(), hf, 9000, null);
+        HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+        bp.flushPages(a.getId());
+        bp.discardPage(p0);
+
+        // the other pages of the pool are latched, as by running updates
+        Transaction r = new Transaction();
+        r.start();
+        ArrayList<HeapPage> latched = new ArrayList<HeapPage>();
+        for (int i = 1; i <= 2; i++) {
+            HeapPage p = (HeapPage) bp.getPage(r.getId(),
+                    new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            p.latch.lock();
+            latched.add(p);
+        }
+        final Exception[] failure = new Exception[1];
+        Thread aborter = new Thread() {
+            public void run() {
+                try {
+                    a.abort();
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        aborter.start();
+        try {
+            aborter.join(10000);
+            assertFalse("the rollback waits for a latch", aborter.isAlive());
+        } finally {
+            for (HeapPage p : latched)
+                p.latch.unlock();
+        }
+        aborter.join();
+        if (failure[0] != null)
+            throw failure[0];
+        r.commit();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Unit test for recovery of the pages of several tables by several
+     * threads
+     */
+    @Test public void parallelRecovery() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples1 = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> tuples2 = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> tuples3 = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf1 = SystemTestUtil.createRandomHeapFile(2, 2000, null, tuples1);
+        HeapFile hf2 = SystemTestUtil.createRandomHeapFile(2, 2000, null, tuples2);
+        HeapFile hf3 = SystemTestUtil.createRandomHeapFile(2, 1000, null, tuples3);
+        LogFile log = Database.getLogFile();
+
+        // committed and partly written before the checkpoint
+        Transaction t1 = new Transaction();
+        t1.start();
+        deleteEvery(t1.getId(), hf1, 3, tuples1);
+        Database.getBufferPool().flushAllPages();
+        deleteEvery(t1.getId(), hf2, 5, tuples2);
+        t1.commit();
+
+        // a loser whose pages are written
+        Transaction t2 = new Transaction();
+        t2.start();
+        deleteEvery(t2.getId(), hf1, 4, null);
+        for (int i = 0; i < 50; i++)
+            insert(t2.getId(), hf3, 2000 + i, null);
+        synchronized (Database.getBufferPool()) {
+            // keep the page writer from writing the pages of t3
+            log.logCheckpoint();
+            Database.getBufferPool().flushAllPages();
+
+            // committed after the checkpoint
+            Transaction t3 = new Transaction();
+            t3.start();
+            deleteEvery(t3.getId(), hf2, 7, tuples2);
+            t3.commit();
+
+            crashAndRecover(4);
+            SystemTestUtil.matchTuples(hf1, tuples1);
+            SystemTestUtil.matchTuples(hf2, tuples2);
+            SystemTestUtil.matchTuples(hf3, tuples3);
+            crashAndRecover(3);
+            SystemTestUtil.matchTuples(hf1, tuples1);
+            SystemTestUtil.matchTuples(hf2, tuples2);
+            SystemTestUtil.matchTuples(hf3, tuples3);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,171 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  int numTuples = 5000;
+  int[] values;
+  DbIterator scan;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleList() throws Exception {
+    Random r = new Random(133);
+    values = new int[numTuples * 2];
+    for (int i = 0; i < values.length; i++)
+      values[i] = r.nextInt(1000);
+    scan = TestUtil.createTupleList(2, values);
+  }
+
+  private int[] sortedColumn(int col, boolean asc) {
+    int[] expected = new int[numTuples];
+    for (int i = 0; i < numTuples; i++)
+      expected[i] = values[i * 2 + col];
+    Arrays.sort(expected);
+    if (!asc) {
+      for (int i = 0; i < numTuples / 2; i++) {
+        int tmp = expected[i];
+        expected[i] = expected[numTuples - 1 - i];
+        expected[numTuples - 1 - i] = tmp;
+      }
+    }
+    return expected;
+  }
+
+  private void checkSorted(OrderBy op, int col, boolean asc) throws Exception {
+    int[] expected = sortedColumn(col, asc);
+    for (int i = 0; i < numTuples; i++) {
+      assertTrue(op.hasNext());
+      assertEquals(expected[i], ((IntField) op.next().getField(col)).getValue());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * Unit test for OrderBy when the input fits in memory
+   */
+  @Test public void inMemorySort() throws Exception {
+    OrderBy op = new OrderBy(0, true, scan);
+    op.open();
+    checkSorted(op, 0, true);
+    assertEquals(0, op.getNumRuns());
+    assertEquals(0, op.getSpillBytes());
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy when the input has to be spilled to sorted runs
+   */
+  @Test public void externalSort() throws Exception {
+    // four pages of two-int tuples per run, and few enough runs to merge
+    // them at once
+    int perPage = (BufferPool.getPageSize() * 8) / (8 * 8 + 1);
+    int perRun = 4 * perPage;
+    OrderBy op = new OrderBy(1, false, scan, 4);
+    op.open();
+    assertEquals((numTuples + perRun - 1) / perRun, op.getNumRuns());
+    assertEquals(0, op.getMergePasses());
+    assertEquals((numTuples + perPage - 1) / perPage * (long) BufferPool.getPageSize(),
+        op.getSpillBytes());
+    checkSorted(op, 1, false);
+
+    op.rewind();
+    checkSorted(op, 1, false);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy when there are more runs than can be merged at
+   * once, which are merged into longer runs first
+   */
+  @Test public void multiPassMerge() throws Exception {
+    // one page of two-int tuples per run, merged two at a time
+    int perRun = (BufferPool.getPageSize() * 8) / (8 * 8 + 1);
+    OrderBy op = new OrderBy(0, true, scan, 1);
+    op.open();
+    int runs = (numTuples + perRun - 1) / perRun;
+    assertEquals(runs, op.getNumRuns());
+    int passes = 0;
+    for (; runs > 2; runs = (runs + 1) / 2)
+      passes++;
+    assertEquals(passes, op.getMergePasses());
+    assertTrue(op.getSpillBytes() > op.getNumRuns() * (long) BufferPool.getPageSize());
+    checkSorted(op, 0, true);
+
+    op.rewind();
+    checkSorted(op, 0, true);
+    op.close();
+  }
+
+  /**
+   * Unit test for reopening an OrderBy
+   */
+  @Test public void reopen() throws Exception {
+    OrderBy op = new OrderBy(0, true, scan, 2);
+    op.open();
+    op.close();
+    op.open();
+    checkSorted(op, 0, true);
+    op.close();
+  }
+
+  /**
+   * Unit test for sorting on a string and an int key, large enough to be
+   * sorted in parallel, with strings that share long prefixes
+   */
+  @Test public void multiKeySort() throws Exception {
+    String[] strs = { "", "a", "a\0", "ab", "b", "commonprefix", "commonprefix-1",
+        "commonprefix-2", "commonprefiy", "zz" };
+    Random r = new Random(42);
+    int n = 3 * TupleSorter.PARALLEL_THRESHOLD;
+    Object[] data = new Object[n * 2];
+    for (int i = 0; i < n; i++) {
+      data[i * 2] = strs[r.nextInt(strs.length)];
+      data[i * 2 + 1] = r.nextInt(2001) - 1000;
+    }
+    final ArrayList<Object[]> expected = new ArrayList<Object[]>();
+    for (int i = 0; i < n; i++)
+      expected.add(new Object[] { data[i * 2], data[i * 2 + 1] });
+    Collections.sort(expected, new Comparator<Object[]>() {
+      public int compare(Object[] a, Object[] b) {
+        int c = ((String) b[0]).compareTo((String) a[0]);
+        return c != 0 ? c : ((Integer) a[1]).compareTo((Integer) b[1]);
+      }
+    });
+
+    OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { false, true },
+        TestUtil.createTupleList(2, data), 1000);
+    op.open();
+    assertEquals(0, op.getNumRuns());
+    for (Object[] e : expected) {
+      assertTrue(op.hasNext());
+      Tuple t = op.next();
+      assertEquals(e[0], ((StringField) t.getField(0)).getValue());
+      assertEquals(e[1], ((IntField) t.getField(1)).getValue());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
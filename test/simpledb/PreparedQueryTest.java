@@ -0,0 +1,174 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PreparedQueryTest extends SimpleDbTestBase {
+
+    private final ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    private final Parser parser = new Parser();
+    private int tableid;
+
+    @Before public void createTable() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500, 20, null, tuples, "c");
+        tableid = hf.getId();
+        Database.getCatalog().addTable(hf, "t");
+        TableStats.setTableStats("t", new TableStats(tableid, TableStats.IOCOSTPERPAGE));
+    }
+
+    /** @return the number of rows of q bound as a part of a new transaction */
+    private static int countRows(PreparedQuery q) throws Exception {
+        TransactionId tid = new TransactionId();
+        Query query = q.bind(tid);
+        query.start();
+        int rows = 0;
+        while (query.hasNext()) {
+            query.next();
+            rows++;
+        }
+        query.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return rows;
+    }
+
+    /** @return the value of the single row and field of q */
+    private static int fetchInt(PreparedQuery q) throws Exception {
+        TransactionId tid = new TransactionId();
+        Query query = q.bind(tid);
+        query.start();
+        int v = query.next().getInt(0);
+        assertFalse(query.hasNext());
+        query.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return v;
+    }
+
+    /** @return the number of tuples whose field f is in [lo, hi] */
+    private int countTuples(int f, int lo, int hi) {
+        int n = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(f) >= lo && t.get(f) <= hi)
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Unit test for executing a prepared query with different parameters
+     */
+    @Test public void rebind() throws Exception {
+        PreparedQuery q = parser.prepare("select t.c0, t.c1 from t where t.c0 = ? and t.c1 >= ?;");
+        assertEquals(2, q.getParameterCount());
+        assertEquals(Type.INT_TYPE, q.getParameterType(0));
+        for (int v = 0; v < 20; v++) {
+            q.setInt(0, v);
+            q.setInt(1, 10);
+            int expected = 0;
+            for (ArrayList<Integer> t : tuples) {
+                if (t.get(0) == v && t.get(1) >= 10)
+                    expected++;
+            }
+            assertEquals(expected, countRows(q));
+        }
+        q.close();
+    }
+
+    /**
+     * Unit test for an aggregate over a prepared query, which is opened
+     * again for every execution
+     */
+    @Test public void aggregate() throws Exception {
+        PreparedQuery q = parser.prepare("select count(t.c0) from t where t.c1 <= ?;");
+        for (int v = 0; v < 20; v += 5) {
+            q.setInt(0, v);
+            assertEquals(countTuples(1, 0, v), fetchInt(q));
+        }
+        q.close();
+    }
+
+    /**
+     * Unit test for the reuse of plans of prepared queries
+     */
+    @Test public void planCache() throws Exception {
+        PreparedQueryCache cache = Database.getPreparedQueryCache();
+        PreparedQuery q = parser.prepare("select t.c0 from t where t.c0 < ?;");
+        long misses = cache.getMisses(), hits = cache.getHits();
+        q.setInt(0, 5);
+        int rows = countRows(q);
+        q.close();
+
+        // the same statement up to white space
+        PreparedQuery q2 = parser.prepare("select  t.c0\n from t where t.c0 < ? ; ");
+        assertEquals(hits + 1, cache.getHits());
+        assertEquals(misses, cache.getMisses());
+        q2.setInt(0, 5);
+        assertEquals(rows, countRows(q2));
+
+        // a plan is only used by one query at a time
+        PreparedQuery q3 = parser.prepare("select t.c0 from t where t.c0 < ?;");
+        assertEquals(misses + 1, cache.getMisses());
+        q3.close();
+        q2.close();
+
+        // new statistics make the plans stale
+        TableStats.setTableStats("t", new TableStats(tableid, TableStats.IOCOSTPERPAGE));
+        parser.prepare("select t.c0 from t where t.c0 < ?;").close();
+        assertEquals(misses + 2, cache.getMisses());
+    }
+
+    /**
+     * Unit test for the errors of binding parameters
+     */
+    @Test public void badParameters() throws Exception {
+        PreparedQuery q = parser.prepare("select t.c0 from t where t.c0 = ?;");
+        try {
+            q.bind(new TransactionId());
+            fail("expected a DbException for an unbound parameter");
+        } catch (DbException e) {
+            // expected
+        }
+        try {
+            q.setString(0, "a");
+            fail("expected an IllegalArgumentException for a string parameter");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        q.close();
+        try {
+            q.bind(new TransactionId());
+            fail("expected a DbException for a closed query");
+        } catch (DbException e) {
+            // expected
+        }
+        try {
+            parser.prepare("select t.c0 from t where t.c0 = (select t.c1 from t where t.c1 = ?);");
+            fail("expected a ParsingException for a parameter in a subquery");
+        } catch (ParsingException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("subqueries"));
+        }
+    }
+
+    /**
+     * Unit test for the normalization of SQL text
+     */
+    @Test public void normalize() {
+        assertEquals("select a from t where s = ' x  y ';",
+                PreparedQueryCache.normalize("  select a\n\tfrom t   where s = ' x  y '  ;;"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PreparedQueryTest.class);
+    }
+}
@@ -0,0 +1,203 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import Zql.ZQuery;
+import Zql.ZqlParser;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class QueryResultCacheTest extends SimpleDbTestBase {
+
+    private final ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    private final Parser parser = new Parser();
+    private QueryResultCache cache;
+    private int tableid;
+
+    @Before public void createTable() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 300, 20, null, tuples, "c");
+        tableid = hf.getId();
+        Database.getCatalog().addTable(hf, "t");
+        TableStats.setTableStats("t", new TableStats(tableid, TableStats.IOCOSTPERPAGE));
+        cache = Database.getQueryResultCache();
+        cache.setEnabled(true);
+    }
+
+    @After public void disableCache() {
+        cache.setEnabled(false);
+    }
+
+    /** @return the number of rows returned by the query sql */
+    private int countRows(String sql) throws Exception {
+        TransactionId tid = new TransactionId();
+        int rows = countRows(sql, tid);
+        Database.getBufferPool().transactionComplete(tid);
+        return rows;
+    }
+
+    /** @return the number of rows returned by the query sql run by tid */
+    private int countRows(String sql, TransactionId tid) throws Exception {
+        ZqlParser p = new ZqlParser(new ByteArrayInputStream(sql.getBytes("UTF-8")));
+        Query query = parser.handleQueryStatement((ZQuery) p.readStatement(), tid);
+        query.start();
+        int rows = 0;
+        while (query.hasNext()) {
+            query.next();
+            rows++;
+        }
+        query.close();
+        return rows;
+    }
+
+    /** @return the number of tuples whose field f is less than v */
+    private int countTuples(int f, int v) {
+        int n = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(f) < v)
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Unit test for running the same query twice
+     */
+    @Test public void hit() throws Exception {
+        String sql = "select t.c0 from t where t.c1 < 10;";
+        int expected = countTuples(1, 10);
+        assertEquals(expected, countRows(sql));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(expected, cache.numTuples());
+
+        assertEquals(expected, countRows("select  t.c0 from t\n where t.c1 < 10;"));
+        assertEquals(1, cache.getHits());
+
+        // a different constant is a different query
+        assertEquals(countTuples(1, 5), countRows("select t.c0 from t where t.c1 < 5;"));
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.size());
+    }
+
+    /**
+     * Unit test for dropping results when a table they read is modified
+     */
+    @Test public void invalidation() throws Exception {
+        String sql = "select t.c0 from t where t.c1 < 10;";
+        int expected = countTuples(1, 10);
+        assertEquals(expected, countRows(sql));
+
+        TransactionId tid = new TransactionId();
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(1));
+        t.setField(1, new IntField(1));
+        Database.getBufferPool().insertTuple(tid, tableid, t);
+        Database.getBufferPool().transactionComplete(tid);
+
+        assertEquals(expected + 1, countRows(sql));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getInvalidations());
+        assertEquals(expected + 1, countRows(sql));
+        assertEquals(1, cache.getHits());
+    }
+
+    /**
+     * Unit test for a query of a transaction that modified the table it
+     * reads, whose result must not be read by other transactions
+     */
+    @Test(timeout = 10000) public void uncommitted() throws Exception {
+        String sql = "select t.c0 from t where t.c1 < 10;";
+        int expected = countTuples(1, 10);
+        Transaction w = new Transaction();
+        w.start();
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(1));
+        t.setField(1, new IntField(1));
+        Database.getBufferPool().insertTuple(w.getId(), tableid, t);
+        assertEquals(expected + 1, countRows(sql, w.getId()));
+        assertEquals(0, cache.size());
+        w.abort();
+
+        assertEquals(expected, countRows(sql));
+        assertEquals(0, cache.getHits());
+        assertEquals(expected, countRows(sql));
+        assertEquals(1, cache.getHits());
+    }
+
+    /**
+     * Unit test for the queries of read-only transactions, whose snapshots
+     * may not see the last changes, and which bypass the cache
+     */
+    @Test(timeout = 10000) public void snapshot() throws Exception {
+        String sql = "select t.c0 from t where t.c1 < 10;";
+        int expected = countTuples(1, 10);
+        Transaction w = new Transaction();
+        w.start();
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(1));
+        t.setField(1, new IntField(1));
+        Database.getBufferPool().insertTuple(w.getId(), tableid, t);
+
+        Transaction r = new Transaction();
+        r.setReadOnly(true);
+        r.start();
+        assertEquals(expected, countRows(sql, r.getId()));
+        w.commit();
+        assertEquals(expected, countRows(sql, r.getId()));
+        assertEquals(0, cache.getHits() + cache.getMisses());
+        assertEquals(0, cache.size());
+        r.commit();
+
+        assertEquals(expected + 1, countRows(sql));
+    }
+
+    /**
+     * Unit test for the eviction of the least recently used results
+     */
+    @Test public void eviction() throws Exception {
+        String a = "select t.c0 from t where t.c1 < 10;";
+        String b = "select t.c0 from t where t.c1 >= 10;";
+        int na = countTuples(1, 10), nb = tuples.size() - na;
+        cache.setCapacity(Math.max(na, nb) + 1);
+        countRows(a);
+        countRows(b);
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(nb, cache.numTuples());
+
+        // results larger than the cache are not kept
+        countRows("select t.c0 from t;");
+        assertEquals(nb, cache.numTuples());
+        assertEquals(tuples.size(), countRows("select t.c0 from t;"));
+        assertEquals(0, cache.getHits());
+    }
+
+    /**
+     * Unit test for the disabled cache
+     */
+    @Test public void disabled() throws Exception {
+        cache.setEnabled(false);
+        String sql = "select t.c0 from t where t.c1 < 10;";
+        countRows(sql);
+        countRows(sql);
+        assertEquals(0, cache.getHits() + cache.getMisses());
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(QueryResultCacheTest.class);
+    }
+}
@@ -0,0 +1,213 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+    private TupleDesc td;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        this.td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE },
+                new String[] { "id", "code" });
+        Database.getCatalog().addTable(new SkeletonFile(-1, td), SystemTestUtil.getUUID());
+    }
+
+    private Tuple tuple(int id, String code) {
+        Tuple t = new Tuple(td);
+        t.setInt(0, id);
+        t.setField(1, new StringField(code, Type.STRING_LEN));
+        return t;
+    }
+
+    /**
+     * Unit test for short strings taking less room than in a HeapPage
+     */
+    @Test public void shortStrings() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        int n = 0;
+        while (page.hasRoomFor(tuple(n, "US")))
+            page.insertTuple(tuple(n++, "US"));
+        // 4 + 2 + 2 bytes of record plus a 4 byte slot entry per tuple
+        assertEquals((BufferPool.getPageSize() - 2) / 12, n);
+        int fixed = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        assertTrue(n > 10 * fixed);
+        assertEquals(0, page.getNumEmptySlots());
+
+        try {
+            page.insertTuple(tuple(n, "US"));
+            fail("page should be full");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Unit test for writing a page and reading it back
+     */
+    @Test public void roundTrip() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        String[] codes = { "", "FR", "a longer string of text", "DE" };
+        for (int i = 0; i < codes.length; i++)
+            page.insertTuple(tuple(i, codes[i]));
+        byte[] data = page.getPageData();
+
+        SlottedHeapPage read = new SlottedHeapPage(pid, data);
+        Iterator<Tuple> it = read.iterator();
+        for (int i = 0; i < codes.length; i++) {
+            Tuple t = it.next();
+            assertEquals(i, t.getInt(0));
+            assertEquals(new StringField(codes[i], Type.STRING_LEN), t.getField(1));
+            assertEquals(new RecordId(pid, i), t.getRecordId());
+        }
+        assertFalse(it.hasNext());
+        assertArrayEquals(data, read.getPageData());
+        assertArrayEquals(data, read.getBeforeImage().getPageData());
+    }
+
+    /**
+     * Unit test for deleting tuples and reusing their slots
+     */
+    @Test public void deleteAndReuse() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        Tuple[] tups = new Tuple[3];
+        for (int i = 0; i < tups.length; i++) {
+            tups[i] = tuple(i, "x" + i);
+            page.insertTuple(tups[i]);
+        }
+        int empty = page.getNumEmptySlots();
+        page.deleteTuple(tups[1]);
+        assertFalse(page.isSlotUsed(1));
+        assertTrue(page.getNumEmptySlots() >= empty);
+
+        Tuple t = tuple(7, "seven");
+        page.insertTuple(t);
+        assertEquals(new RecordId(pid, 1), t.getRecordId());
+
+        SlottedHeapPage read = new SlottedHeapPage(pid, page.getPageData());
+        assertTrue(read.isSlotUsed(0) && read.isSlotUsed(1) && read.isSlotUsed(2));
+        assertFalse(read.isSlotUsed(3));
+    }
+
+    /**
+     * Unit test for a slotted HeapFile filled through the BufferPool
+     */
+    @Test public void slottedHeapFile() throws Exception {
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = new HeapFile(f, td, true);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        int n = 2000;
+        for (int i = 0; i < n; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(i, "c" + (i % 10)));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        // 8 byte records and 4 byte slot entries, against 30 tuples of 136
+        // bytes on a HeapPage
+        int perPage = (BufferPool.getPageSize() - 2) / 12;
+        assertEquals((n + perPage - 1) / perPage, hf.numPages());
+
+        HeapFile reopened = new HeapFile(f, td, true);
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        DbFileIterator it = reopened.iterator(new TransactionId());
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(new StringField("c" + (t.getInt(0) % 10), Type.STRING_LEN), t.getField(1));
+            count++;
+        }
+        it.close();
+        assertEquals(n, count);
+    }
+
+    private File textFile(int n) throws Exception {
+        File text = File.createTempFile("slotted", ".txt");
+        text.deleteOnExit();
+        PrintWriter w = new PrintWriter(new FileWriter(text));
+        for (int i = 0; i < n; i++)
+            w.println(i + ",c" + (i % 10));
+        w.close();
+        return text;
+    }
+
+    /**
+     * Unit test for HeapFileEncoder writing a slotted HeapFile
+     */
+    @Test public void encodeSlotted() throws Exception {
+        int n = 2000;
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(textFile(n), f, BufferPool.getPageSize(), 2,
+                new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, ',', true);
+        int perPage = (BufferPool.getPageSize() - 2) / 12;
+        assertEquals((n + perPage - 1) / perPage * BufferPool.getPageSize(), f.length());
+
+        HeapFile hf = new HeapFile(f, td, true);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        hf.checkFormat();
+        DbFileIterator it = hf.iterator(new TransactionId());
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(count, t.getInt(0));
+            assertEquals(new StringField("c" + (count % 10), Type.STRING_LEN), t.getField(1));
+            count++;
+        }
+        it.close();
+        assertEquals(n, count);
+    }
+
+    /**
+     * Unit test for a file in the fixed format being rejected as slotted
+     */
+    @Test public void fixedFormatRejected() throws Exception {
+        for (int n : new int[] { 1, 3, 100 }) {
+            File f = File.createTempFile("fixed", ".dat");
+            f.deleteOnExit();
+            HeapFileEncoder.convert(textFile(n), f, BufferPool.getPageSize(), 2,
+                    new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, ',');
+
+            HeapFile fixed = new HeapFile(f, td, false);
+            Database.getCatalog().addTable(fixed, SystemTestUtil.getUUID());
+            fixed.checkFormat();
+
+            HeapFile slotted = new HeapFile(f, td, true);
+            Database.getCatalog().addTable(slotted, SystemTestUtil.getUUID());
+            try {
+                slotted.checkFormat();
+                fail("a fixed-format file with " + n + " tuples read as slotted");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+    }
+}
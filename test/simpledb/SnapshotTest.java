@@ -0,0 +1,236 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SnapshotTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+    private HeapPageId p0;
+    private BufferPool bp;
+
+    @Before public void createTable() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        p0 = new HeapPageId(hf.getId(), 0);
+        bp = Database.getBufferPool();
+    }
+
+    /** @return a started read-only transaction */
+    private static Transaction reader() {
+        Transaction t = new Transaction();
+        t.setReadOnly(true);
+        t.start();
+        return t;
+    }
+
+    /** @return the number of tuples of hf that t sees */
+    private int count(Transaction t) throws Exception {
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        return n;
+    }
+
+    private void insert(Transaction t, int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            Tuple tup = new Tuple(hf.getTupleDesc());
+            tup.setField(0, new IntField(i));
+            tup.setField(1, new IntField(i));
+            bp.insertTuple(t.getId(), hf.getId(), tup);
+        }
+    }
+
+    private void delete(Transaction t, int n) throws Exception {
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+        while (scan.hasNext() && deleted.size() < n)
+            deleted.add(scan.next());
+        scan.close();
+        for (Tuple tup : deleted)
+            bp.deleteTuple(t.getId(), tup);
+    }
+
+    private int versions() {
+        return ((HeapPage) bp.getCachedPage(p0)).getVersionCount();
+    }
+
+    /**
+     * Unit test for inserts, which snapshots only see if they committed
+     * before the snapshot was taken
+     */
+    @Test(timeout = 10000) public void inserts() throws Exception {
+        Transaction w = new Transaction();
+        w.start();
+        insert(w, 5);
+
+        // does not wait for the exclusive lock of w
+        Transaction r1 = reader();
+        assertEquals(10, count(r1));
+        assertFalse(bp.holdsLock(r1.getId(), p0));
+        w.commit();
+        assertEquals(10, count(r1));
+
+        Transaction r2 = reader();
+        assertEquals(15, count(r2));
+        r1.commit();
+        r2.commit();
+    }
+
+    /**
+     * Unit test for deletes, whose dead versions are kept for snapshots
+     * and vacuumed after them
+     */
+    @Test(timeout = 10000) public void deletes() throws Exception {
+        Transaction r1 = reader();
+        Transaction w = new Transaction();
+        w.start();
+        delete(w, 3);
+        w.commit();
+        assertEquals(10, count(r1));
+        assertTrue(versions() > 0);
+
+        Transaction r2 = reader();
+        assertEquals(7, count(r2));
+        bp.vacuum();
+        assertTrue(versions() > 0);
+        r1.commit();
+        r2.commit();
+        bp.vacuum();
+        assertEquals(0, versions());
+        assertEquals(7, count(reader()));
+    }
+
+    /**
+     * Unit test for rolled back deletes and inserts, which leave no
+     * versions behind
+     */
+    @Test(timeout = 10000) public void rollback() throws Exception {
+        Transaction r1 = reader();
+        Transaction w = new Transaction();
+        w.start();
+        delete(w, 3);
+        insert(w, 2);
+        w.abort();
+
+        assertEquals(10, count(r1));
+        assertEquals(10, count(reader()));
+        r1.commit();
+        bp.vacuum();
+        assertEquals(0, versions());
+    }
+
+    /** @return the number of tuples of f that t sees */
+    private static int count(Transaction t, HeapFile f) throws Exception {
+        SeqScan scan = new SeqScan(t.getId(), f.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        return n;
+    }
+
+    /**
+     * Unit test for transactions that change more pages than the buffer
+     * pool holds, whose versions are kept while their pages are evicted
+     */
+    @Test(timeout = 60000) public void writesLargerThanPool() throws Exception {
+        bp = Database.resetBufferPool(2);
+        int perPage = BufferPool.getPageSize() * 8 / (Utility.getTupleDesc(2).getSize() * 8 + 1);
+        int rows = 6 * perPage;
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, rows, null, null);
+
+        // without a snapshot
+        Transaction w = new Transaction();
+        w.start();
+        SeqScan scan = new SeqScan(w.getId(), big.getId(), "");
+        scan.open();
+        ArrayList<Tuple> all = new ArrayList<Tuple>();
+        while (scan.hasNext())
+            all.add(scan.next());
+        scan.close();
+        for (Tuple tup : all)
+            bp.deleteTuple(w.getId(), tup);
+        w.commit();
+
+        // with a snapshot that does not see the inserts
+        Transaction r = reader();
+        assertEquals(0, count(r, big));
+        w = new Transaction();
+        w.start();
+        for (int i = 0; i < rows; i++) {
+            Tuple tup = new Tuple(big.getTupleDesc());
+            tup.setField(0, new IntField(i));
+            tup.setField(1, new IntField(i));
+            bp.insertTuple(w.getId(), big.getId(), tup);
+        }
+        assertEquals(0, count(r, big));
+        w.commit();
+        assertEquals(0, count(r, big));
+        assertEquals(rows, count(reader(), big));
+        r.commit();
+
+        // and one that rolls back
+        r = reader();
+        w = new Transaction();
+        w.start();
+        scan = new SeqScan(w.getId(), big.getId(), "");
+        scan.open();
+        all.clear();
+        while (scan.hasNext())
+            all.add(scan.next());
+        scan.close();
+        for (Tuple tup : all)
+            bp.deleteTuple(w.getId(), tup);
+        assertEquals(rows, count(r, big));
+        w.abort();
+        assertEquals(rows, count(r, big));
+        assertEquals(rows, count(reader(), big));
+        r.commit();
+        assertTrue(bp.pool.size() <= 3);
+    }
+
+    /**
+     * Unit test for the writes of read-only transactions, which fail
+     */
+    @Test public void readOnly() throws Exception {
+        Transaction r = reader();
+        try {
+            bp.getPage(r.getId(), p0, Permissions.READ_WRITE);
+            fail("expected a DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        try {
+            r.setReadOnly(false);
+            fail("expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        r.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
@@ -0,0 +1,273 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TableStatsTest extends SimpleDbTestBase {
+
+    private static final int IO_COST = 71;
+    private static final int ROWS = 10200;
+
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    /**
+     * Create a table with a uniform column 0 in [0, 32) and a constant
+     * column 1
+     */
+    @Before public void createTable() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        HashMap<Integer, Integer> spec = new HashMap<Integer, Integer>();
+        spec.put(1, 7);
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, 32, spec, tuples, "c");
+        Database.getCatalog().addTable(hf, "stats");
+    }
+
+    /**
+     * Unit test for TableStats.totalTuples() and estimateScanCost()
+     */
+    @Test public void scanCost() {
+        TableStats s = new TableStats(hf.getId(), IO_COST);
+        assertEquals(ROWS, s.totalTuples());
+        assertEquals((double) hf.numPages() * IO_COST, s.estimateScanCost(), 1e-9);
+        assertEquals(ROWS / 2, s.estimateTableCardinality(0.5));
+    }
+
+    /**
+     * Unit test for TableStats.estimateSelectivity()
+     */
+    @Test public void selectivity() {
+        TableStats s = new TableStats(hf.getId(), IO_COST);
+        int lessThan8 = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) < 8)
+                lessThan8++;
+        }
+        assertEquals((double) lessThan8 / ROWS,
+                s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(8)), 1e-9);
+        assertEquals(1.0, s.estimateSelectivity(1, Predicate.Op.EQUALS, new IntField(7)), 1e-9);
+        assertEquals(0.0, s.estimateSelectivity(1, Predicate.Op.GREATER_THAN, new IntField(7)), 1e-9);
+        assertEquals(1.0 / 32, s.avgSelectivity(0, Predicate.Op.EQUALS), 0.005);
+        assertEquals(32, s.estimateDistinctValues(0));
+    }
+
+    /**
+     * Unit test for TableStats.estimateJoinSelectivity() and the join
+     * cardinality estimates of JoinOptimizer
+     */
+    @Test public void joinSelectivity() {
+        TableStats s = new TableStats(hf.getId(), IO_COST);
+        // column 0 = 7 for one value in 32
+        assertEquals(1.0 / 32, s.estimateJoinSelectivity(0, Predicate.Op.EQUALS, s, 1), 0.005);
+        assertEquals(1.0 / 32, s.estimateJoinSelectivity(0, Predicate.Op.EQUALS, s, 0), 0.005);
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("stats", s);
+        HashMap<String, Integer> aliases = new HashMap<String, Integer>();
+        aliases.put("a", hf.getId());
+        aliases.put("b", hf.getId());
+        int card = JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS,
+                "a", "b", "c0", "c0", ROWS, ROWS, false, false, stats, aliases);
+        assertEquals((double) ROWS * ROWS / 32, card, ROWS * ROWS / 32 * 0.2);
+        card = JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS,
+                "a", "b", "c0", "c0", ROWS, ROWS, true, false, stats, aliases);
+        assertEquals(ROWS, card);
+    }
+
+    /**
+     * Unit test for TableStats.saveStatistics() and loadStatistics()
+     */
+    @Test public void persistStatistics() throws Exception {
+        File f = File.createTempFile("stats", ".stats");
+        f.delete();
+        f.deleteOnExit();
+
+        // no statistics file yet: the table is scanned and the file written
+        assertEquals(1, TableStats.loadStatistics(f));
+        assertTrue(f.exists());
+        TableStats before = TableStats.getTableStats("stats");
+
+        TableStats.getStatsMap().clear();
+        assertEquals(0, TableStats.loadStatistics(f));
+        TableStats after = TableStats.getTableStats("stats");
+        assertNotSame(before, after);
+        assertFalse(after.isStale());
+        assertEquals(before.totalTuples(), after.totalTuples());
+        assertEquals(before.estimateScanCost(), after.estimateScanCost(), 1e-9);
+        assertEquals(before.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(8)),
+                after.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(8)), 1e-9);
+        assertEquals(before.avgSelectivity(0, Predicate.Op.EQUALS),
+                after.avgSelectivity(0, Predicate.Op.EQUALS), 1e-9);
+        assertEquals(before.estimateDistinctValues(0), after.estimateDistinctValues(0));
+
+        // a data file changed since the statistics were saved is rescanned,
+        // even if it keeps its length and modification time
+        File data = hf.getFile();
+        long modified = data.lastModified();
+        RandomAccessFile raf = new RandomAccessFile(data, "rw");
+        int b = raf.read();
+        raf.seek(0);
+        raf.write(b ^ 1);
+        raf.close();
+        assertTrue(data.setLastModified(modified));
+        assertEquals(1, TableStats.loadStatistics(f));
+        assertEquals(0, TableStats.loadStatistics(f));
+
+        // as is one whose modification time changed
+        assertTrue(data.setLastModified(modified - 10000));
+        assertEquals(1, TableStats.loadStatistics(f));
+        assertEquals(0, TableStats.loadStatistics(f));
+    }
+
+    /**
+     * Unit test for TableStats.isStale() and refreshStaleStatistics()
+     */
+    @Test public void staleAfterInsert() throws Exception {
+        TableStats s = new TableStats(hf.getId(), IO_COST);
+        TableStats.setTableStats("stats", s);
+        assertFalse(s.isStale());
+        assertEquals(0, TableStats.refreshStaleStatistics());
+
+        // a few changes are tracked by the statistics, which stay current
+        TransactionId tid = new TransactionId();
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(1));
+        t.setField(1, new IntField(7));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertFalse(s.isStale());
+        assertEquals(0, TableStats.refreshStaleStatistics());
+        assertSame(s, TableStats.getTableStats("stats"));
+
+        // past the rebuild threshold the histograms are rebuilt in the
+        // background, after which they are no longer stale
+        int threshold = (int) Math.max(TableStats.REBUILD_MIN_CHANGES, TableStats.REBUILD_FRACTION * ROWS);
+        for (int i = 0; i < threshold; i++) {
+            t = new Tuple(hf.getTupleDesc());
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(7));
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        }
+        TableStats.awaitRebuilds();
+        assertEquals(1, s.getRebuildCount());
+        assertFalse(s.isStale());
+        assertEquals(0, TableStats.refreshStaleStatistics());
+        assertSame(s, TableStats.getTableStats("stats"));
+    }
+
+    /**
+     * Unit test for the maintenance of statistics on inserts and deletes
+     * through the BufferPool
+     */
+    @Test public void incrementalUpdates() throws Exception {
+        TableStats s = new TableStats(hf.getId(), IO_COST);
+        TableStats.setTableStats("stats", s);
+        TransactionId tid = new TransactionId();
+
+        // insert tuples with column 0 = 100, outside the range so far
+        for (int i = 0; i < 200; i++) {
+            Tuple t = new Tuple(hf.getTupleDesc());
+            t.setField(0, new IntField(100));
+            t.setField(1, new IntField(7));
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        }
+        assertEquals(ROWS + 200, s.totalTuples());
+        assertEquals(200.0 / (ROWS + 200),
+                s.estimateSelectivity(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(64)), 1e-9);
+
+        // delete the tuples with column 0 = 0, which share a bucket with 1
+        double zeroSel = s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(0));
+        int zeroes = deleteWhere(tid, 0);
+        assertEquals(ROWS + 200 - zeroes, s.totalTuples());
+        assertEquals(zeroSel / 2, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(0)), zeroSel / 4);
+        assertTrue(s.estimateScanCost() >= hf.numPages() * IO_COST);
+    }
+
+    /**
+     * Unit test for the background rebuild of the histograms of a table
+     * that changed a lot
+     */
+    @Test public void backgroundRebuild() throws Exception {
+        TableStats s = new TableStats(hf.getId(), IO_COST);
+        TableStats.setTableStats("stats", s);
+        TransactionId tid = new TransactionId();
+
+        // delete all but column 0 = 31; the histogram keeps its full range
+        // until it is rebuilt
+        int deleted = 0;
+        for (int v = 0; v < 31; v++)
+            deleted += deleteWhere(tid, v);
+        assertTrue(deleted > TableStats.REBUILD_MIN_CHANGES);
+        TableStats.awaitRebuilds();
+        assertTrue(s.getRebuildCount() > 0);
+
+        // deletes made during a background rebuild may be missed by it, so
+        // rebuild once more now that nothing changes
+        s.rebuildHistograms();
+        assertEquals(ROWS - deleted, s.totalTuples());
+        assertEquals(1.0, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(31)), 1e-9);
+        assertEquals(1, s.estimateDistinctValues(0));
+    }
+
+    /**
+     * Unit test for statistics collected from a sample of the pages
+     */
+    @Test public void sampling() throws Exception {
+        int rows = 100000;
+        HashMap<Integer, Integer> spec = new HashMap<Integer, Integer>();
+        spec.put(1, 7);
+        ArrayList<ArrayList<Integer>> big = new ArrayList<ArrayList<Integer>>();
+        // column 0 is nearly unique, column 1 is constant
+        HeapFile bigHf = SystemTestUtil.createRandomHeapFile(2, rows, 1 << 30, spec, big, "c");
+        Database.getCatalog().addTable(bigHf, "big");
+        Database.getCatalog().setSampleRate(bigHf.getId(), 0.2);
+        assertTrue(bigHf.numPages() * 0.2 > TableStats.MIN_SAMPLE_PAGES);
+
+        TableStats s = new TableStats(bigHf.getId(), IO_COST);
+        assertEquals(rows, s.totalTuples(), rows * 0.02);
+        assertEquals((double) bigHf.numPages() * IO_COST, s.estimateScanCost(), 1e-9);
+        assertEquals(0.5, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(1 << 29)), 0.05);
+        assertEquals(1.0, s.estimateSelectivity(1, Predicate.Op.EQUALS, new IntField(7)), 1e-9);
+        assertEquals(rows, s.estimateDistinctValues(0), rows * 0.15);
+        assertEquals(1, s.estimateDistinctValues(1));
+
+        // the default table has fewer pages than the minimum sample
+        TableStats small = new TableStats(hf.getId(), IO_COST, 0.01);
+        assertEquals(ROWS, small.totalTuples());
+        assertEquals(32, small.estimateDistinctValues(0));
+    }
+
+    /** Delete the tuples of the table whose column 0 is v */
+    private int deleteWhere(TransactionId tid, int v) throws Exception {
+        ArrayList<Tuple> matches = new ArrayList<Tuple>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (t.getInt(0) == v)
+                matches.add(t);
+        }
+        it.close();
+        for (Tuple t : matches)
+            Database.getBufferPool().deleteTuple(tid, t);
+        return matches.size();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TableStatsTest.class);
+    }
+}
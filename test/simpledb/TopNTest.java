@@ -0,0 +1,115 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  int numTuples = 1000;
+  int[] values;
+  DbIterator scan;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleList() throws Exception {
+    Random r = new Random(271);
+    values = new int[numTuples * 2];
+    for (int i = 0; i < values.length; i++)
+      values[i] = r.nextInt(100);
+    scan = TestUtil.createTupleList(2, values);
+  }
+
+  private void checkTop(DbIterator op, int col, boolean asc, int n) throws Exception {
+    int[] expected = new int[numTuples];
+    for (int i = 0; i < numTuples; i++)
+      expected[i] = values[i * 2 + col];
+    Arrays.sort(expected);
+    for (int i = 0; i < Math.min(n, numTuples); i++) {
+      assertTrue(op.hasNext());
+      int exp = asc ? expected[i] : expected[numTuples - 1 - i];
+      assertEquals(exp, ((IntField) op.next().getField(col)).getValue());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * Unit test for TopN in both directions
+   */
+  @Test public void topN() throws Exception {
+    TopN op = new TopN(0, true, 10, scan);
+    op.open();
+    checkTop(op, 0, true, 10);
+    op.rewind();
+    checkTop(op, 0, true, 10);
+    op.close();
+
+    op = new TopN(1, false, 37, scan);
+    op.open();
+    checkTop(op, 1, false, 37);
+    op.close();
+  }
+
+  /**
+   * Unit test for TopN with an empty or a larger than input limit
+   */
+  @Test public void limits() throws Exception {
+    TopN op = new TopN(0, true, 0, scan);
+    op.open();
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+
+    op = new TopN(0, false, numTuples * 2, scan);
+    op.open();
+    checkTop(op, 0, false, numTuples);
+    op.close();
+  }
+
+  /**
+   * Unit test for Limit
+   */
+  @Test public void limit() throws Exception {
+    Limit op = new Limit(5, scan);
+    op.open();
+    for (int i = 0; i < 5; i++) {
+      assertTrue(op.hasNext());
+      assertEquals(values[i * 2], ((IntField) op.next().getField(0)).getValue());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+    assertEquals(values[0], ((IntField) op.next().getField(0)).getValue());
+    op.close();
+  }
+
+  /**
+   * Unit test for stripping LIMIT clauses in the Parser
+   */
+  @Test public void parseLimit() throws Exception {
+    Parser p = new Parser();
+    assertEquals("SELECT * FROM t ORDER BY t.a;",
+        p.stripLimit("SELECT * FROM t ORDER BY t.a limit 10 ;"));
+    assertEquals("SELECT * FROM t;", p.stripLimit("SELECT * FROM t;"));
+    assertEquals("SELECT * FROM t;", p.stripLimit("SELECT * FROM t LIMIT 3;\n"));
+    // only at the end of the statement, and not inside a string
+    String inner = "SELECT * FROM t WHERE t.s = ' LIMIT 5;' AND t.a > 1;";
+    assertEquals(inner, p.stripLimit(inner));
+    String quoted = "SELECT * FROM t WHERE t.s = 'x'' LIMIT 5;";
+    assertEquals(quoted, p.stripLimit(quoted));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
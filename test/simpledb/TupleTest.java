@@ -1,6 +1,10 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 import java.util.Iterator;
@@ -97,6 +101,79 @@ public class TupleTest extends SimpleDbTestBase {
 	}
     }
 
+    /**
+     * Unit test for Tuple.getInt(), Tuple.setInt() and unset fields
+     */
+    @Test public void intFields() {
+        Tuple tup = new Tuple(Utility.getTupleDesc(2));
+        assertNull(tup.getField(0));
+        assertFalse(tup.isInt(0));
+
+        tup.setInt(0, Integer.MIN_VALUE);
+        tup.setField(1, new IntField(-7));
+        assertTrue(tup.isInt(0));
+        assertEquals(Integer.MIN_VALUE, tup.getInt(0));
+        assertEquals(new IntField(Integer.MIN_VALUE), tup.getField(0));
+        assertEquals(-7, tup.getInt(1));
+
+        tup.setField(1, null);
+        assertNull(tup.getField(1));
+    }
+
+    /**
+     * Unit test for string fields of tuples read from pages, and
+     * Tuple.copyField() between tuples of different pages
+     */
+    @Test public void pageFields() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+        Database.getCatalog().addTable(new TestUtil.SkeletonFile(-2, td), "strtab");
+        HeapPage[] pages = new HeapPage[2];
+        for (int p = 0; p < pages.length; p++) {
+            HeapPage page = new HeapPage(new HeapPageId(-2, p), HeapPage.createEmptyPageData());
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField("page" + p, Type.STRING_LEN));
+            t.setInt(1, p);
+            page.insertTuple(t);
+            byte[] data = page.getPageData();
+            pages[p] = new HeapPage(new HeapPageId(-2, p), data);
+            // serializing the page read back gives the same bytes
+            assertArrayEquals(data, pages[p].getPageData());
+        }
+        Tuple t0 = pages[0].iterator().next();
+        Tuple t1 = pages[1].iterator().next();
+        assertEquals(new StringField("page0", Type.STRING_LEN), t0.getField(0));
+        assertEquals(1, t1.getInt(1));
+
+        TupleDesc joined = TupleDesc.merge(td, td);
+        Tuple out = new Tuple(joined);
+        for (int i = 0; i < 2; i++) {
+            out.copyField(i, t0, i);
+            out.copyField(i + 2, t1, i);
+        }
+        assertEquals("page0 0 page1 1 \n", out.toString());
+    }
+
+    /**
+     * Unit test for Tuple.detach(), which copies strings out of the data of
+     * a page
+     */
+    @Test public void detach() {
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+        byte[] data = "xxabcxx".getBytes();
+        Tuple t = new Tuple(td);
+        t.setArena(data);
+        t.setArenaString(0, 2, 3);
+        t.setInt(1, 7);
+        Tuple copy = t.detach();
+        data[2] = 'z';
+        assertEquals(new StringField("abc", Type.STRING_LEN), copy.getField(0));
+        assertEquals(7, copy.getInt(1));
+        assertEquals(new StringField("zbc", Type.STRING_LEN), t.getField(0));
+
+        Tuple ints = Utility.getHeapTuple(1);
+        assertTrue(ints == ints.detach());
+    }
+
     /**
      * JUnit suite target
      */